@@ -0,0 +1,264 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaBackend.java                                               */
+/*                                                                              */
+/*      Information about a single ollama server                                */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaBackend implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private String          host_name;
+private int             host_port;
+private String          use_host;
+private int             backend_weight;
+private AtomicInteger   in_flight;
+private AtomicInteger   embed_flight;
+private AtomicLong      request_count;
+private AtomicLong      error_count;
+private volatile boolean is_healthy;
+private LimbaCircuit    backend_circuit;
+private volatile long   last_check;
+
+private static final HttpClient ping_client = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofSeconds(5))
+      .build();
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaBackend(String host,int port,String usehost,int weight,LimbaCircuit circuit)
+{
+   host_name = host;
+   host_port = port;
+   use_host = usehost;
+   backend_weight = Math.max(1,weight);
+   in_flight = new AtomicInteger(0);
+   embed_flight = new AtomicInteger(0);
+   request_count = new AtomicLong(0);
+   error_count = new AtomicLong(0);
+   is_healthy = false;
+   backend_circuit = circuit;
+   last_check = 0;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+String getHost()                        { return host_name; }
+
+int getPort()                           { return host_port; }
+
+String getUseHost()                     { return use_host; }
+
+int getWeight()                         { return backend_weight; }
+
+int getInFlight()                       { return in_flight.get(); }
+
+boolean isHealthy()                     { return is_healthy; }
+
+LimbaCircuit getCircuit()               { return backend_circuit; }
+
+
+/**
+ *      Return true if the backend is healthy and its circuit will take
+ *      a request.
+ **/
+
+boolean isAvailable()
+{
+   return is_healthy && backend_circuit.isAvailable();
+}
+
+String getUrl()
+{
+   return "http://" + host_name + ":" + host_port;
+}
+
+
+/**
+ *      Return the current load relative to the backend's weight.  Lower
+ *      values are better candidates for the next request.  Embedding
+ *      requests add to the load but not to the in-flight count that the
+ *      scheduler limits.
+ **/
+
+double getLoad()
+{
+   return (in_flight.get() + embed_flight.get() + 1.0) / backend_weight;
+}
+
+
+@Override public String toString()
+{
+   return getUrl();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Request accounting                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Start a request on this backend.  Returns false if the backend's
+ *      circuit won't take it (e.g. its single probe is already running).
+ **/
+
+boolean startRequest()
+{
+   if (!backend_circuit.startRequest()) return false;
+   in_flight.incrementAndGet();
+   request_count.incrementAndGet();
+   return true;
+}
+
+
+void endRequest(boolean ok)
+{
+   in_flight.decrementAndGet();
+   if (!ok) error_count.incrementAndGet();
+   backend_circuit.endRequest(ok);
+}
+
+
+/**
+ *      Embedding requests are counted separately so that indexing doesn't
+ *      use up the slots the scheduler keeps for chat requests.
+ **/
+
+boolean startEmbed()
+{
+   if (!backend_circuit.startRequest()) return false;
+   embed_flight.incrementAndGet();
+   request_count.incrementAndGet();
+   return true;
+}
+
+
+void endEmbed(boolean ok)
+{
+   embed_flight.decrementAndGet();
+   if (!ok) error_count.incrementAndGet();
+   backend_circuit.endRequest(ok);
+}
+
+
+void setHealthy(boolean fg)
+{
+   if (fg != is_healthy) {
+      IvyLog.logI("LIMBA","Backend " + getUrl() + (fg ? " admitted" : " ejected"));
+    }
+   is_healthy = fg;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Health checking                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+boolean ping()
+{
+   last_check = System.currentTimeMillis();
+
+   HttpRequest rqst = HttpRequest.newBuilder()
+         .uri(URI.create(getUrl() + "/"))
+         .timeout(Duration.ofSeconds(10))
+         .GET()
+         .build();
+   try {
+      HttpResponse<String> resp = ping_client.send(rqst,
+            HttpResponse.BodyHandlers.ofString());
+      return resp.statusCode() == 200;
+    }
+   catch (InterruptedException e) {
+      return false;
+    }
+   catch (Exception e) {
+      IvyLog.logD("LIMBA","Ping failed for " + getUrl() + ": " + e);
+    }
+
+   return false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void outputXml(IvyXmlWriter xw)
+{
+   xw.begin("BACKEND");
+   xw.field("URL",getUrl());
+   xw.field("WEIGHT",backend_weight);
+   xw.field("HEALTHY",is_healthy);
+   xw.field("INFLIGHT",in_flight.get());
+   xw.field("EMBEDDING",embed_flight.get());
+   xw.field("REQUESTS",request_count.get());
+   xw.field("ERRORS",error_count.get());
+   xw.field("LASTCHECK",last_check);
+   backend_circuit.outputXml(xw);
+   xw.end("BACKEND");
+}
+
+
+
+}       // end of class LimbaBackend
+
+
+
+
+/* end of LimbaBackend.java */
@@ -0,0 +1,382 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaBackendPool.java                                           */
+/*                                                                              */
+/*      Health-checked set of ollama servers with load-based routing            */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaBackendPool implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaMain       limba_main;
+private List<LimbaBackend> all_backends;
+private boolean         use_weighted;
+private long            check_interval;
+private HealthChecker   health_checker;
+
+private static Random   random_gen = new Random();
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaBackendPool(LimbaMain lm)
+{
+   limba_main = lm;
+   all_backends = new CopyOnWriteArrayList<>();
+   String route = lm.getProperty("Limba.ollama.routing","LEAST");
+   use_weighted = route.toUpperCase().startsWith("W");
+   check_interval = lm.getProperty("Limba.ollama.health.interval",30) * 1000L;
+   health_checker = null;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Setup methods                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaBackend addBackend(String host,int port,String usehost,int weight)
+{
+   if (host == null || port <= 0) return null;
+
+   for (LimbaBackend lb : all_backends) {
+      if (lb.getHost().equals(host) && lb.getPort() == port) return lb;
+    }
+
+   LimbaCircuit lc = LimbaCircuit.create(limba_main,host + ":" + port);
+   LimbaBackend lb = new LimbaBackend(host,port,usehost,weight,lc);
+   all_backends.add(lb);
+   IvyLog.logD("LIMBA","Add ollama backend " + lb + " weight " + weight);
+
+   return lb;
+}
+
+
+/**
+ *      Add backends from a property string of the form
+ *      host[:port][*weight][@usehost],...
+ **/
+
+void addBackends(String spec)
+{
+   if (spec == null || spec.isBlank()) return;
+
+   StringTokenizer tok = new StringTokenizer(spec,", ");
+   while (tok.hasMoreTokens()) {
+      String s = tok.nextToken();
+      String usehost = null;
+      int weight = 1;
+      int port = 11434;
+      int idx = s.indexOf("@");
+      if (idx > 0) {
+         usehost = s.substring(idx+1);
+         s = s.substring(0,idx);
+       }
+      idx = s.indexOf("*");
+      if (idx > 0) {
+         try {
+            weight = Integer.parseInt(s.substring(idx+1));
+          }
+         catch (NumberFormatException e) {
+            IvyLog.logE("LIMBA","Bad backend weight " + s);
+          }
+         s = s.substring(0,idx);
+       }
+      idx = s.indexOf(":");
+      if (idx > 0) {
+         try {
+            port = Integer.parseInt(s.substring(idx+1));
+          }
+         catch (NumberFormatException e) {
+            IvyLog.logE("LIMBA","Bad backend port " + s);
+          }
+         s = s.substring(0,idx);
+       }
+      addBackend(s,port,usehost,weight);
+    }
+}
+
+
+void start()
+{
+   if (health_checker != null || check_interval <= 0) return;
+
+   health_checker = new HealthChecker();
+   health_checker.start();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+List<LimbaBackend> getBackends()        { return all_backends; }
+
+
+List<LimbaBackend> getHealthyBackends()
+{
+   List<LimbaBackend> rslt = new ArrayList<>();
+   for (LimbaBackend lb : all_backends) {
+      if (lb.isAvailable()) rslt.add(lb);
+    }
+   return rslt;
+}
+
+
+/**
+ *      Return the backends that failed their last health check but whose
+ *      circuits would still take a request.
+ **/
+
+private List<LimbaBackend> getFallbackBackends()
+{
+   List<LimbaBackend> rslt = new ArrayList<>();
+   for (LimbaBackend lb : all_backends) {
+      if (lb.getCircuit().isAvailable()) rslt.add(lb);
+    }
+   return rslt;
+}
+
+
+boolean isEmpty()                       { return all_backends.isEmpty(); }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Routing methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Choose a backend for a new request and mark it as in use.  The
+ *      caller must call release() when the request finishes.  If no
+ *      backend is currently healthy we still pick one whose circuit is
+ *      available so the request can report the actual failure.
+ **/
+
+LimbaBackend acquire()
+{
+   LimbaBackend lb = start(getHealthyBackends(),false);
+   if (lb == null) lb = start(getFallbackBackends(),false);
+
+   return lb;
+}
+
+
+/**
+ *      Acquire a backend with fewer than limit requests in flight.  Returns
+ *      null if every candidate is at its limit; the scheduler then queues
+ *      the request until release() frees a slot.
+ **/
+
+LimbaBackend tryAcquire(int limit)
+{
+   List<LimbaBackend> cands = getHealthyBackends();
+   if (cands.isEmpty()) cands = getFallbackBackends();
+
+   return start(underLimit(cands,limit),false);
+}
+
+
+/**
+ *      Acquire a backend other than the given one, for hedging.  Returns
+ *      null if there is no other healthy backend below the limit.
+ **/
+
+LimbaBackend acquireOther(LimbaBackend exclude,int limit)
+{
+   List<LimbaBackend> cands = getHealthyBackends();
+   cands.remove(exclude);
+
+   return start(underLimit(cands,limit),false);
+}
+
+
+void release(LimbaBackend lb,boolean ok)
+{
+   if (lb == null) return;
+
+   lb.endRequest(ok);
+}
+
+
+/**
+ *      Choose a backend for an embedding request.  These aren't limited
+ *      by the chat request limit; the ingester bounds them itself.
+ **/
+
+LimbaBackend acquireEmbed()
+{
+   LimbaBackend lb = start(getHealthyBackends(),true);
+   if (lb == null) lb = start(getFallbackBackends(),true);
+
+   return lb;
+}
+
+
+void releaseEmbed(LimbaBackend lb,boolean ok)
+{
+   if (lb == null) return;
+
+   lb.endEmbed(ok);
+}
+
+
+/**
+ *      Start a request on the best of the candidates.  A candidate whose
+ *      circuit refuses the request (another thread took its probe) is
+ *      dropped and the next best tried.
+ **/
+
+private LimbaBackend start(List<LimbaBackend> cands,boolean embed)
+{
+   List<LimbaBackend> left = new ArrayList<>(cands);
+   for ( ; ; ) {
+      LimbaBackend lb = choose(left);
+      if (lb == null) return null;
+      if (embed ? lb.startEmbed() : lb.startRequest()) return lb;
+      left.remove(lb);
+    }
+}
+
+
+private List<LimbaBackend> underLimit(List<LimbaBackend> cands,int limit)
+{
+   if (limit <= 0) return cands;
+
+   List<LimbaBackend> rslt = new ArrayList<>();
+   for (LimbaBackend lb : cands) {
+      if (lb.getInFlight() < limit) rslt.add(lb);
+    }
+   return rslt;
+}
+
+
+private LimbaBackend choose(List<LimbaBackend> cands)
+{
+   if (cands.isEmpty()) return null;
+   if (cands.size() == 1) return cands.get(0);
+
+   if (use_weighted) {
+      int tot = 0;
+      for (LimbaBackend lb : cands) tot += lb.getWeight();
+      int r = random_gen.nextInt(tot);
+      for (LimbaBackend lb : cands) {
+         r -= lb.getWeight();
+         if (r < 0) return lb;
+       }
+    }
+
+   LimbaBackend best = null;
+   for (LimbaBackend lb : cands) {
+      if (best == null || lb.getLoad() < best.getLoad()) best = lb;
+    }
+
+   return best;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Health checking                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+void checkBackends()
+{
+   for (LimbaBackend lb : all_backends) {
+      lb.setHealthy(lb.ping());
+    }
+}
+
+
+private final class HealthChecker extends Thread {
+
+   HealthChecker() {
+      super("LimbaHealthChecker");
+      setDaemon(true);
+    }
+
+   @Override public void run() {
+      for ( ; ; ) {
+         try {
+            Thread.sleep(check_interval);
+          }
+         catch (InterruptedException e) { }
+         checkBackends();
+       }
+    }
+
+}       // end of inner class HealthChecker
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("BACKENDS");
+   xw.field("ROUTING",use_weighted ? "WEIGHTED" : "LEAST");
+   for (LimbaBackend lb : all_backends) {
+      lb.outputXml(xw);
+    }
+   xw.end("BACKENDS");
+}
+
+
+
+}       // end of class LimbaBackendPool
+
+
+
+
+/* end of LimbaBackendPool.java */
@@ -0,0 +1,312 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaChainRegistry.java                                         */
+/*                                                                              */
+/*      Bounded cache of chat chains built once per key                         */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaChainRegistry<T> implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private String          registry_name;
+private Map<String,ChainEntry<T>> chain_map;
+private Map<String,Set<String>> debug_index;
+private int             max_entries;
+private long            max_idle;
+private AtomicLong      hit_count;
+private AtomicLong      build_count;
+private AtomicLong      build_time;
+private AtomicLong      max_build_time;
+private AtomicLong      evict_count;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaChainRegistry(LimbaMain lm,String name)
+{
+   registry_name = name;
+   chain_map = new ConcurrentHashMap<>();
+   debug_index = new ConcurrentHashMap<>();
+   max_entries = lm.getProperty("Limba.chain.entries",64);
+   max_idle = lm.getProperty("Limba.chain.idle",30) * 60000L;
+   hit_count = new AtomicLong(0);
+   build_count = new AtomicLong(0);
+   build_time = new AtomicLong(0);
+   max_build_time = new AtomicLong(0);
+   evict_count = new AtomicLong(0);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return the chain for the given key, building it if needed.  If several
+ *      threads ask for the same new key at once, only one of them runs the
+ *      builder and the others wait for its result.  A null result is not
+ *      saved.  The debug id, if given, lets removeDebug() drop the entry.
+ **/
+
+T get(String key,String debugid,Supplier<T> builder)
+{
+   long now = System.currentTimeMillis();
+
+   ChainEntry<T> ent = chain_map.get(key);
+   if (ent != null && ent.isExpired(now,max_idle)) {
+      if (chain_map.remove(key,ent)) {
+         evict_count.incrementAndGet();
+         unindex(ent,key);
+       }
+      ent = null;
+    }
+
+   if (ent != null) {
+      hit_count.incrementAndGet();
+    }
+   else {
+      ChainEntry<T> nent = new ChainEntry<>(debugid);
+      ent = chain_map.putIfAbsent(key,nent);
+      if (ent == null) {
+         ent = nent;
+         if (debugid != null) {
+            debug_index.computeIfAbsent(debugid,
+                  (String k) -> ConcurrentHashMap.newKeySet()).add(key);
+          }
+         build(key,nent,builder);
+         trim(now);
+       }
+      else {
+         hit_count.incrementAndGet();
+       }
+    }
+
+   return ent.waitFor(now);
+}
+
+
+/**
+ *      Remove all chains built for the given debug session.
+ **/
+
+void removeDebug(String debugid)
+{
+   if (debugid == null) return;
+
+   Set<String> keys = debug_index.remove(debugid);
+   if (keys == null) return;
+
+   for (String key : keys) {
+      chain_map.remove(key);
+    }
+}
+
+
+void clear()
+{
+   chain_map.clear();
+   debug_index.clear();
+}
+
+
+int size()                              { return chain_map.size(); }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Maintenance methods                                                     */
+/*                                                                              */
+/********************************************************************************/
+
+private void build(String key,ChainEntry<T> ent,Supplier<T> builder)
+{
+   long start = System.currentTimeMillis();
+   T rslt = null;
+   try {
+      rslt = builder.get();
+    }
+   catch (RuntimeException | Error e) {
+      chain_map.remove(key,ent);
+      unindex(ent,key);
+      ent.chain_future.completeExceptionally(e);
+      throw e;
+    }
+
+   long time = System.currentTimeMillis() - start;
+   build_count.incrementAndGet();
+   build_time.addAndGet(time);
+   max_build_time.accumulateAndGet(time,Math::max);
+   IvyLog.logD("LIMBA","Built " + registry_name + " chain for " + key + " in " +
+         time + " ms");
+
+   if (rslt == null) {
+      chain_map.remove(key,ent);
+      unindex(ent,key);
+    }
+   ent.chain_future.complete(rslt);
+}
+
+
+/**
+ *      Drop idle entries and, if still over the limit, the least recently
+ *      used ones.
+ **/
+
+private void trim(long now)
+{
+   List<Map.Entry<String,ChainEntry<T>>> ents = new ArrayList<>(chain_map.entrySet());
+   for (Map.Entry<String,ChainEntry<T>> me : ents) {
+      if (me.getValue().isExpired(now,max_idle)) evict(me.getKey(),me.getValue());
+    }
+
+   int over = chain_map.size() - max_entries;
+   if (max_entries <= 0 || over <= 0) return;
+
+   ents = new ArrayList<>(chain_map.entrySet());
+   ents.sort((Map.Entry<String,ChainEntry<T>> e1,Map.Entry<String,ChainEntry<T>> e2) ->
+         Long.compare(e1.getValue().last_used,e2.getValue().last_used));
+   for (int i = 0; i < over && i < ents.size(); ++i) {
+      evict(ents.get(i).getKey(),ents.get(i).getValue());
+    }
+}
+
+
+private void evict(String key,ChainEntry<T> ent)
+{
+   if (!ent.chain_future.isDone()) return;
+   if (chain_map.remove(key,ent)) {
+      evict_count.incrementAndGet();
+      unindex(ent,key);
+    }
+}
+
+
+private void unindex(ChainEntry<T> ent,String key)
+{
+   if (ent.debug_id == null) return;
+
+   debug_index.computeIfPresent(ent.debug_id,(String k,Set<String> keys) -> {
+      keys.remove(key);
+      return keys.isEmpty() ? null : keys;
+    });
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Registry entry                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class ChainEntry<T> {
+
+   private CompletableFuture<T> chain_future;
+   private String debug_id;
+   private volatile long last_used;
+
+   ChainEntry(String debugid) {
+      chain_future = new CompletableFuture<>();
+      debug_id = debugid;
+      last_used = System.currentTimeMillis();
+    }
+
+   boolean isExpired(long now,long idle) {
+      return idle > 0 && chain_future.isDone() && now - last_used > idle;
+    }
+
+   T waitFor(long now) {
+      last_used = now;
+      try {
+         return chain_future.join();
+       }
+      catch (CompletionException e) {
+         Throwable t = e.getCause();
+         if (t instanceof RuntimeException) throw (RuntimeException) t;
+         if (t instanceof Error) throw (Error) t;
+         throw e;
+       }
+    }
+
+}       // end of inner class ChainEntry
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("CHAINS");
+   xw.field("TYPE",registry_name);
+   xw.field("SIZE",chain_map.size());
+   xw.field("MAXSIZE",max_entries);
+   xw.field("DEBUGIDS",debug_index.size());
+   xw.field("HITS",hit_count.get());
+   xw.field("BUILDS",build_count.get());
+   xw.field("EVICTIONS",evict_count.get());
+   xw.field("BUILDTIME",build_time.get());
+   xw.field("MAXBUILDTIME",max_build_time.get());
+   if (build_count.get() > 0) {
+      xw.field("AVGBUILDTIME",((double) build_time.get()) / build_count.get());
+    }
+   xw.end("CHAINS");
+}
+
+
+
+}       // end of class LimbaChainRegistry
+
+
+
+
+/* end of LimbaChainRegistry.java */
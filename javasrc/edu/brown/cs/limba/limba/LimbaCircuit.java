@@ -0,0 +1,269 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaCircuit.java                                               */
+/*                                                                              */
+/*      Circuit breaker tracking the error rate of one LLM target               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaCircuit implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+private String          circuit_name;
+private CircuitState    circuit_state;
+private boolean []      recent_results;
+private int             result_count;
+private int             result_next;
+private int             consecutive_errors;
+private boolean         probe_active;
+private long            open_until;
+private long            open_delay;
+private long            request_count;
+private long            error_count;
+private long            trip_count;
+
+private int             max_failures;
+private double          max_error_rate;
+private long            base_delay;
+private long            max_delay;
+
+private static final int WINDOW_SIZE = 20;
+private static final int MIN_WINDOW = 5;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaCircuit(String name,int failures,double rate,long delay,long maxdelay)
+{
+   circuit_name = name;
+   circuit_state = CircuitState.CLOSED;
+   recent_results = new boolean[WINDOW_SIZE];
+   result_count = 0;
+   result_next = 0;
+   consecutive_errors = 0;
+   probe_active = false;
+   open_until = 0;
+   max_failures = Math.max(1,failures);
+   max_error_rate = rate;
+   base_delay = delay;
+   max_delay = Math.max(delay,maxdelay);
+   open_delay = base_delay;
+   request_count = 0;
+   error_count = 0;
+   trip_count = 0;
+}
+
+
+
+/**
+ *      Create a circuit using the Limba.breaker properties.
+ **/
+
+static LimbaCircuit create(LimbaMain lm,String name)
+{
+   int failures = lm.getProperty("Limba.breaker.failures",3);
+   double rate = lm.getProperty("Limba.breaker.errorrate",50) / 100.0;
+   long delay = lm.getProperty("Limba.breaker.open",30) * 1000L;
+   long maxdelay = lm.getProperty("Limba.breaker.maxopen",300) * 1000L;
+
+   return new LimbaCircuit(name,failures,rate,delay,maxdelay);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return true if a request may be sent now: the circuit is closed, or
+ *      it has been open long enough that a single probe request is allowed.
+ **/
+
+synchronized boolean isAvailable()
+{
+   switch (circuit_state) {
+      case CLOSED :
+         return true;
+      case OPEN :
+         return System.currentTimeMillis() >= open_until;
+      case HALF_OPEN :
+      default :
+         return !probe_active;
+    }
+}
+
+
+synchronized boolean isClosed()
+{
+   return circuit_state == CircuitState.CLOSED;
+}
+
+
+synchronized double getErrorRate()
+{
+   if (result_count == 0) return 0;
+
+   int ct = 0;
+   for (int i = 0; i < result_count; ++i) {
+      if (!recent_results[i]) ++ct;
+    }
+   return ((double) ct) / result_count;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Request accounting                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Start a request if the circuit will take it.  Once the open delay
+ *      is over only a single probe request is let through; the rest are
+ *      refused until the probe decides whether the circuit closes again.
+ **/
+
+synchronized boolean startRequest()
+{
+   if (circuit_state == CircuitState.OPEN &&
+         System.currentTimeMillis() >= open_until) {
+      circuit_state = CircuitState.HALF_OPEN;
+      probe_active = false;
+    }
+
+   switch (circuit_state) {
+      case OPEN :
+         return false;
+      case HALF_OPEN :
+         if (probe_active) return false;
+         probe_active = true;
+         break;
+      case CLOSED :
+      default :
+         break;
+    }
+
+   ++request_count;
+   return true;
+}
+
+
+synchronized void endRequest(boolean ok)
+{
+   recent_results[result_next] = ok;
+   result_next = (result_next + 1) % WINDOW_SIZE;
+   if (result_count < WINDOW_SIZE) ++result_count;
+   if (!ok) ++error_count;
+
+   if (ok) {
+      consecutive_errors = 0;
+      if (circuit_state == CircuitState.HALF_OPEN) close();
+      return;
+    }
+
+   ++consecutive_errors;
+   switch (circuit_state) {
+      case HALF_OPEN :
+         trip(Math.min(max_delay,open_delay * 2));
+         break;
+      case CLOSED :
+         if (consecutive_errors >= max_failures ||
+               (result_count >= MIN_WINDOW && getErrorRate() >= max_error_rate)) {
+            trip(base_delay);
+          }
+         break;
+      case OPEN :
+         break;
+    }
+}
+
+
+private void trip(long delay)
+{
+   circuit_state = CircuitState.OPEN;
+   probe_active = false;
+   open_delay = delay;
+   open_until = System.currentTimeMillis() + delay;
+   ++trip_count;
+   IvyLog.logI("LIMBA","Circuit for " + circuit_name + " opened for " + delay + " ms");
+}
+
+
+private void close()
+{
+   circuit_state = CircuitState.CLOSED;
+   probe_active = false;
+   open_delay = base_delay;
+   result_count = 0;
+   result_next = 0;
+   IvyLog.logI("LIMBA","Circuit for " + circuit_name + " closed");
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized void outputXml(IvyXmlWriter xw)
+{
+   xw.begin("CIRCUIT");
+   xw.field("NAME",circuit_name);
+   xw.field("STATE",circuit_state);
+   xw.field("REQUESTS",request_count);
+   xw.field("ERRORS",error_count);
+   xw.field("ERRORRATE",getErrorRate());
+   xw.field("TRIPS",trip_count);
+   if (circuit_state != CircuitState.CLOSED) {
+      xw.field("OPENUNTIL",open_until);
+    }
+   xw.end("CIRCUIT");
+}
+
+
+
+}       // end of class LimbaCircuit
+
+
+
+
+/* end of LimbaCircuit.java */
@@ -23,7 +23,6 @@
 package edu.brown.cs.limba.limba;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.http.HttpTimeoutException;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -34,7 +33,6 @@ import org.w3c.dom.Element;
 
 import dev.langchain4j.memory.ChatMemory;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
-import edu.brown.cs.ivy.file.IvyFile;
 import edu.brown.cs.ivy.file.IvyLog;
 import edu.brown.cs.ivy.mint.MintConstants.CommandArgs;
 import edu.brown.cs.ivy.xml.IvyXml;
@@ -53,6 +51,7 @@ class LimbaCommandFactory implements LimbaConstants
 
 private LimbaMain                limba_main;
 private Map<String,ChatMemory>   memory_map;
+private LimbaPromptSet           prompt_set;
 
       
 
@@ -66,6 +65,7 @@ LimbaCommandFactory(LimbaMain lm)
 {
    limba_main = lm;
    memory_map = new HashMap<>();
+   prompt_set = new LimbaPromptSet(lm);
 }
 
 
@@ -136,7 +136,12 @@ LimbaCommand createCommand(Element xml)
          return new CommandSetupBubbles(xml);
       case "DEBUGREMOVE" :
          return new CommandDebugRemove(xml);
+      case "STATS" :
+         return new CommandStats(xml);
+      case "RAGSTATUS" :
+         return new CommandRagStatus(xml);
       case "EXIT" :
+         limba_main.transcriptClose();
          System.exit(0);
     }
    
@@ -153,32 +158,7 @@ LimbaCommand createCommand(Element xml)
 
 private String getPrompt(String cmd)
 {
-   InputStream ins = getClass().getClassLoader().getResourceAsStream("resources/prompts.xml");
-   if (ins == null) {
-      ins = getClass().getClassLoader().getResourceAsStream("prompts.xml");
-    }
-   if (ins == null) return null;
-   Element xml = IvyXml.loadXmlFromStream(ins);
-   if (xml == null) return null;
-   String base = null;
-   String ptxt = null;
-   for (Element pmpt : IvyXml.children(xml,"PROMPT")) {
-      String what = IvyXml.getAttrString(pmpt,"COMMAND");
-      if (what == null) base = IvyXml.getText(pmpt).trim();
-      else if (what.equals(cmd)) {
-         ptxt = IvyXml.getText(pmpt).trim();
-       }
-    }
-   
-   Map<String,String> keymap = limba_main.getKeyMap(); 
-   if (keymap != null) {
-      base = IvyFile.expandName(base,keymap);
-      ptxt = IvyFile.expandName(ptxt,keymap);
-    }
-   
-   if (base == null) return ptxt;
-   if (ptxt == null) return base;
-   return base + " " + ptxt;
+   return prompt_set.getPrompt(cmd);
 }
 
 
@@ -210,7 +190,7 @@ private abstract class CommandBase implements LimbaCommand {
           }
          catch (HttpTimeoutException e) {
             IvyLog.logE("LIMBA","Timeout processing " + getCommandName(),e);
-            retry = true;
+            retry = limba_main.getRetryPolicy().canRetry();
           }
          catch (IOException e) {
             IvyLog.logE("LIMBA","I/O Problem processinq query",e);
@@ -435,6 +415,7 @@ private final class CommandQuery extends CommandBase {
    private EnumSet<LimbaToolSet> tool_set;
    private CommandArgs query_context;
    private boolean no_history;
+   private boolean use_cache;
    private String limba_model;
    
    CommandQuery(String nm,String prompt,Element xml) {
@@ -460,6 +441,7 @@ private final class CommandQuery extends CommandBase {
           }
        }
       no_history = IvyXml.getAttrBool(xml,"NOHISTORY");
+      use_cache = !IvyXml.getAttrBool(xml,"NOCACHE");
       
       limba_model = null;
       String mdl = IvyXml.getAttrString(xml,"MODEL");
@@ -495,7 +477,7 @@ private final class CommandQuery extends CommandBase {
       String resp = null;
       for (int i = 0; i < 10; ++i) {
          resp = limba_main.askOllama(cmd,usectx,
-               history,tool_set,query_context,limba_model);  
+               history,tool_set,query_context,limba_model,use_cache && i == 0);  
          if (resp != null && 
                !resp.contains("<function=get") && 
                !resp.equals(NO_RESPONSE)) {
@@ -503,6 +485,7 @@ private final class CommandQuery extends CommandBase {
           }
          IvyLog.logI("LIMBA","Ollama missed agent call: " + resp);
          limba_main.transcriptMessage("OLLAMA BAD AGENT CALL");
+         if (!limba_main.getRetryPolicy().canRetry()) break;
        }
       
       xw.cdataElement("RESPONSE",resp);
@@ -549,7 +532,7 @@ private class CommandProject extends CommandBase {
    @Override public String getCommandName()             { return "PROJECT"; }
    
    @Override public void localProcess(IvyXmlWriter xw) {
-      limba_main.setupRag();
+      limba_main.startRag();
     }
    
 }       // end of inner class CommandProject
@@ -690,6 +673,74 @@ private class CommandDebugRemove extends CommandBase {
 
 
 
+/********************************************************************************/
+/*                                                                              */
+/*      STATS command to report performance information                         */
+/*                                                                              */
+/********************************************************************************/
+
+private class CommandStats extends CommandBase {
+   
+   CommandStats(Element xml) {
+      super(xml);
+    }
+   
+   @Override public String getCommandName()             { return "STATS"; }
+   
+   @Override public void localProcess(IvyXmlWriter xw) {
+      LimbaResponseCache cache = limba_main.getResponseCache();
+      if (cache != null) cache.outputStatistics(xw);
+      LimbaBackendPool pool = limba_main.getBackendPool();
+      if (pool != null) pool.outputStatistics(xw);
+      LimbaHedger hedger = limba_main.getHedger();
+      if (hedger != null) hedger.outputStatistics(xw);
+      LimbaScheduler sched = limba_main.getScheduler();
+      if (sched != null) sched.outputStatistics(xw);
+      LimbaRetryPolicy retry = limba_main.getRetryPolicy();
+      if (retry != null) retry.outputStatistics(xw);
+      limba_main.getExecutor().outputStatistics(xw);
+      LimbaWarmer warm = limba_main.getWarmer();
+      if (warm != null) warm.outputStatistics(xw);
+      limba_main.outputChainStatistics(xw);
+      LimbaRag rag = limba_main.getRagModel();
+      if (rag != null) rag.outputStatistics(xw);
+    }
+   
+}       // end of inner class CommandStats
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      RAGSTATUS command to report how far indexing has gotten                 */
+/*                                                                              */
+/********************************************************************************/
+
+private class CommandRagStatus extends CommandBase {
+   
+   CommandRagStatus(Element xml) {
+      super(xml);
+    }
+   
+   @Override public String getCommandName()             { return "RAGSTATUS"; }
+   
+   @Override public void localProcess(IvyXmlWriter xw) {
+      LimbaRag rag = limba_main.getRagModel();
+      if (rag != null) {
+         rag.outputStatus(xw);
+       }
+      else {
+         xw.begin("RAGSTATUS");
+         xw.field("STATUS",limba_main.isRagStarting() ?
+               LimbaRagStatus.STARTING : LimbaRagStatus.NONE);
+         xw.end("RAGSTATUS");
+       }
+    }
+   
+}       // end of inner class CommandRagStatus
+
+
+
 
 }       // end of class LimbaCommandBase
 
@@ -72,6 +72,30 @@ enum LimbaSolutionFlag {
 };
 
 
+enum LimbaPriority {
+   INTERACTIVE,         // user is waiting for the answer
+   NORMAL,              // user-initiated search (FIND)
+   BACKGROUND,          // bulk requests (javadoc, test generation)
+}
+
+
+enum LimbaRagStatus {
+   NONE,                // no index requested yet
+   STARTING,            // opening the store
+   LEXICAL,             // building the lexical index; saved vectors usable
+   PARTIAL,             // embedding changed files; queries see partial index
+   READY,               // index is complete
+   FAILED,              // indexing failed; serving whatever was indexed
+}
+
+
+enum LimbaStoreType {
+   CHROMA,              // chroma server
+   LOCAL,               // embedded store in the configuration directory
+   MEMORY,              // in-memory store, rebuilt each run
+}
+
+
 enum LimbaToolSet {
    PROJECT,             // limba tools for the current project
    STRUCTURE,           // limba structural tools
@@ -0,0 +1,297 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaContextPacker.java                                         */
+/*                                                                              */
+/*      Fit retrieved segments into a token budget                              */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+/**
+ *      Retriever stage that cleans up what the underlying retriever found
+ *      before it goes into the prompt.  Duplicate and overlapping segments
+ *      are dropped (keeping the better ranked one), segments that are next
+ *      to each other in the same file are merged, and the result is cut to
+ *      a token budget that depends on the command (Limba.rag.budget.<CMD>,
+ *      defaulting to Limba.rag.budget).
+ **/
+
+class LimbaContextPacker implements ContentRetriever, LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaMain       limba_main;
+private ContentRetriever base_retriever;
+private AtomicLong      query_count;
+private AtomicLong      segments_in;
+private AtomicLong      segments_out;
+private AtomicLong      tokens_in;
+private AtomicLong      tokens_out;
+
+private static final int CHARS_PER_TOKEN = 4;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaContextPacker(LimbaMain lm,ContentRetriever base)
+{
+   limba_main = lm;
+   base_retriever = base;
+   query_count = new AtomicLong(0);
+   segments_in = new AtomicLong(0);
+   segments_out = new AtomicLong(0);
+   tokens_in = new AtomicLong(0);
+   tokens_out = new AtomicLong(0);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Retrieval methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public List<Content> retrieve(Query query)
+{
+   List<Content> found = base_retriever.retrieve(query);
+   if (found.isEmpty()) return found;
+
+   // pieces are kept in rank order; merging keeps the better rank
+   List<Piece> pieces = new ArrayList<>();
+   Set<String> seen = new HashSet<>();
+   int tin = 0;
+   for (Content c : found) {
+      TextSegment seg = c.textSegment();
+      if (seg == null) continue;
+      tin += estimateTokens(seg.text());
+      if (!seen.add(seg.text())) continue;
+      Piece np = new Piece(seg);
+      boolean used = false;
+      for (Piece p : pieces) {
+         if (p.overlaps(np)) {
+            used = true;
+            break;
+          }
+         if (p.isAdjacent(np)) {
+            p.merge(np);
+            used = true;
+            break;
+          }
+       }
+      if (!used) pieces.add(np);
+    }
+
+   String cmd = null;
+   LimbaRequest rq = LimbaRequest.getCurrent();
+   if (rq != null) cmd = rq.getCommandName();
+   int budget = getBudget(cmd);
+
+   List<Content> rslt = new ArrayList<>();
+   int tout = 0;
+   for (Piece p : pieces) {
+      int tok = estimateTokens(p.getText());
+      if (budget > 0 && tout + tok > budget) continue;
+      tout += tok;
+      rslt.add(Content.from(p.getSegment()));
+    }
+
+   query_count.incrementAndGet();
+   segments_in.addAndGet(found.size());
+   segments_out.addAndGet(rslt.size());
+   tokens_in.addAndGet(tin);
+   tokens_out.addAndGet(tout);
+   IvyLog.logD("LIMBA","Packed " + found.size() + " segments into " + rslt.size() +
+         " for " + cmd + ": " + tout + " tokens of " + budget + ", " +
+         (tin - tout) + " saved");
+
+   return rslt;
+}
+
+
+private int getBudget(String cmd)
+{
+   int dflt = limba_main.getProperty("Limba.rag.budget",3000);
+   if (cmd == null) return dflt;
+   return limba_main.getProperty("Limba.rag.budget." + cmd,dflt);
+}
+
+
+private static int estimateTokens(String text)
+{
+   return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("PACKER");
+   xw.field("QUERIES",query_count.get());
+   xw.field("SEGMENTSIN",segments_in.get());
+   xw.field("SEGMENTSOUT",segments_out.get());
+   xw.field("TOKENSIN",tokens_in.get());
+   xw.field("TOKENSOUT",tokens_out.get());
+   xw.field("SAVED",tokens_in.get() - tokens_out.get());
+   xw.end("PACKER");
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      A contiguous piece of one file                                          */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class Piece {
+
+   private String file_id;
+   private int start_line;
+   private int end_line;
+   private int first_index;
+   private int last_index;
+   private String header_line;
+   private StringBuffer piece_text;
+   private Metadata piece_metadata;
+
+   Piece(TextSegment seg) {
+      Metadata md = seg.metadata();
+      file_id = md.getString("id");
+      start_line = getInt(md,"start_line");
+      end_line = getInt(md,"end_line");
+      first_index = getInt(md,"index");
+      last_index = first_index;
+      piece_metadata = md.copy();
+      String text = seg.text();
+      header_line = null;
+      if (text.startsWith("// ")) {
+         int idx = text.indexOf("\n");
+         if (idx > 0) header_line = text.substring(0,idx+1);
+       }
+      piece_text = new StringBuffer(text);
+    }
+
+   String getText()                             { return piece_text.toString(); }
+
+   TextSegment getSegment() {
+      return TextSegment.from(piece_text.toString(),piece_metadata);
+    }
+
+   boolean overlaps(Piece p) {
+      if (file_id == null || !file_id.equals(p.file_id)) return false;
+      // distinct segments (e.g. parts of one long method) can share lines
+      if (first_index >= 0 && p.first_index >= 0) {
+         return p.first_index <= last_index && p.last_index >= first_index;
+       }
+      if (start_line < 0 || p.start_line < 0) return false;
+      return p.start_line <= end_line && p.end_line >= start_line;
+    }
+
+   boolean isAdjacent(Piece p) {
+      if (file_id == null || !file_id.equals(p.file_id)) return false;
+      if (start_line >= 0 && p.start_line >= 0) {
+         return p.start_line == end_line + 1 || p.end_line + 1 == start_line;
+       }
+      if (first_index >= 0 && p.first_index >= 0) {
+         return p.first_index == last_index + 1 || p.last_index + 1 == first_index;
+       }
+      return false;
+    }
+
+   void merge(Piece p) {
+      boolean after = (start_line >= 0 ? p.start_line > end_line : p.first_index > last_index);
+      String ptext = p.getText();
+      if (header_line != null && ptext.startsWith(header_line) && after) {
+         ptext = ptext.substring(header_line.length());
+       }
+      else if (header_line != null && ptext.startsWith(header_line)) {
+         piece_text.delete(0,header_line.length());
+       }
+      if (after) {
+         if (piece_text.length() > 0 && piece_text.charAt(piece_text.length()-1) != '\n') {
+            piece_text.append("\n");
+          }
+         piece_text.append(ptext);
+       }
+      else {
+         if (!ptext.endsWith("\n")) ptext = ptext + "\n";
+         piece_text.insert(0,ptext);
+       }
+      start_line = Math.min(start_line,p.start_line);
+      end_line = Math.max(end_line,p.end_line);
+      first_index = Math.min(first_index,p.first_index);
+      last_index = Math.max(last_index,p.last_index);
+      if (start_line >= 0) {
+         piece_metadata.put("start_line",start_line);
+         piece_metadata.put("end_line",end_line);
+       }
+    }
+
+   private static int getInt(Metadata md,String key) {
+      Object o = md.toMap().get(key);
+      if (o == null) return -1;
+      try {
+         return Integer.parseInt(o.toString());
+       }
+      catch (NumberFormatException e) {
+         return -1;
+       }
+    }
+
+}       // end of inner class Piece
+
+
+
+}       // end of class LimbaContextPacker
+
+
+
+
+/* end of LimbaContextPacker.java */
@@ -0,0 +1,137 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaEmbedder.java                                              */
+/*                                                                              */
+/*      Embedding model that routes requests across the ollama backends         */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.ollama.OllamaEmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import edu.brown.cs.ivy.file.IvyLog;
+
+class LimbaEmbedder implements EmbeddingModel, LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaBackendPool backend_pool;
+private LimbaScheduler  llm_scheduler;
+private String          model_name;
+private boolean         log_requests;
+private Map<LimbaBackend,OllamaEmbeddingModel> backend_models;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaEmbedder(LimbaBackendPool pool,LimbaScheduler sched,String model,boolean log)
+{
+   backend_pool = pool;
+   llm_scheduler = sched;
+   model_name = model;
+   log_requests = log;
+   backend_models = new ConcurrentHashMap<>();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+String getModelName()                   { return model_name; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Embedding methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public Response<List<Embedding>> embedAll(List<TextSegment> segs)
+{
+   RuntimeException err = null;
+   int tries = Math.max(1,backend_pool.getBackends().size());
+
+   for (int i = 0; i < tries; ++i) {
+      LimbaBackend lb = llm_scheduler.acquireEmbed();
+      if (lb == null) break;
+      boolean ok = false;
+      try {
+         Response<List<Embedding>> rslt = getModel(lb).embedAll(segs);
+         ok = true;
+         return rslt;
+       }
+      catch (RuntimeException e) {
+         IvyLog.logI("LIMBA","Embedding failed on " + lb + ": " + e);
+         ok = !LimbaRetryPolicy.isBackendFailure(e);
+         err = e;
+       }
+      finally {
+         llm_scheduler.releaseEmbed(lb,ok);
+       }
+    }
+
+   if (err != null) throw err;
+   throw new IllegalStateException("No ollama backend available for embedding");
+}
+
+
+private OllamaEmbeddingModel getModel(LimbaBackend lb)
+{
+   return backend_models.computeIfAbsent(lb,(LimbaBackend b) ->
+      OllamaEmbeddingModel.builder()
+         .baseUrl(b.getUrl())
+         .modelName(model_name)
+         .timeout(Duration.ofMinutes(2))
+         .maxRetries(10)
+         .logRequests(log_requests)
+         .logResponses(log_requests)
+         .build());
+}
+
+
+
+}       // end of class LimbaEmbedder
+
+
+
+
+/* end of LimbaEmbedder.java */
@@ -0,0 +1,420 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaEmbeddingCache.java                                        */
+/*                                                                              */
+/*      On-disk cache of segment embeddings                                     */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+/**
+ *      Embedding model that remembers the embedding of every segment text
+ *      it has seen.  Entries are keyed by a hash of the model name and the
+ *      text and appended to a single file in the configuration directory,
+ *      so they are shared by all workspaces and survive restarts.  Texts
+ *      that are already known (renamed or copied files, switching branches)
+ *      are not sent to the embedding server again.
+ *
+ *      Several limba processes can share the file: appends are done under
+ *      a file lock, and entries added by others are picked up when a lookup
+ *      misses.
+ **/
+
+class LimbaEmbeddingCache implements EmbeddingModel, LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private EmbeddingModel  base_model;
+private String          model_name;
+private File            cache_file;
+private RandomAccessFile cache_raf;
+private FileChannel     cache_channel;
+private Map<String,Long> entry_map;
+private long            scan_end;
+private long            max_size;
+private boolean         cache_full;
+private AtomicLong      cache_hits;
+private AtomicLong      cache_misses;
+
+private static final long MAGIC = 0x4c494d4241454d42L;          // LIMBAEMB
+private static final int VERSION = 1;
+private static final int HEADER_SIZE = 16;
+private static final int KEY_SIZE = 32;
+private static final int ENTRY_HEADER = KEY_SIZE + 4;
+private static final int MAX_DIMENSION = 65536;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaEmbeddingCache(EmbeddingModel base,String model,File dir,long maxsize)
+      throws IOException
+{
+   base_model = base;
+   model_name = model;
+   cache_file = new File(dir,"embeddings.cache");
+   entry_map = new ConcurrentHashMap<>();
+   scan_end = HEADER_SIZE;
+   max_size = maxsize;
+   cache_full = false;
+   cache_hits = new AtomicLong(0);
+   cache_misses = new AtomicLong(0);
+
+   cache_raf = new RandomAccessFile(cache_file,"rw");
+   cache_channel = cache_raf.getChannel();
+   open();
+
+   IvyLog.logD("LIMBA","Embedding cache " + cache_file + " has " +
+         entry_map.size() + " entries");
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+int size()                              { return entry_map.size(); }
+
+long getHitCount()                      { return cache_hits.get(); }
+
+long getMissCount()                     { return cache_misses.get(); }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Embedding methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public Response<List<Embedding>> embedAll(List<TextSegment> segs)
+{
+   int n = segs.size();
+   Embedding [] rslt = new Embedding[n];
+   List<TextSegment> todo = new ArrayList<>();
+   List<Integer> where = new ArrayList<>();
+   List<byte []> keys = new ArrayList<>();
+   boolean refreshed = false;
+
+   for (int i = 0; i < n; ++i) {
+      byte [] key = computeKey(segs.get(i).text());
+      Embedding e = lookup(key);
+      if (e == null && !refreshed) {
+         // another process might have added it
+         refresh();
+         refreshed = true;
+         e = lookup(key);
+       }
+      if (e != null) {
+         rslt[i] = e;
+         cache_hits.incrementAndGet();
+       }
+      else {
+         todo.add(segs.get(i));
+         where.add(i);
+         keys.add(key);
+         cache_misses.incrementAndGet();
+       }
+    }
+
+   if (!todo.isEmpty()) {
+      List<Embedding> embeds = base_model.embedAll(todo).content();
+      for (int i = 0; i < embeds.size(); ++i) {
+         rslt[where.get(i)] = embeds.get(i);
+       }
+      save(keys,embeds);
+    }
+
+   return Response.from(Arrays.asList(rslt));
+}
+
+
+private byte [] computeKey(String text)
+{
+   try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(model_name.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      md.update(text.getBytes(StandardCharsets.UTF_8));
+      return md.digest();
+    }
+   catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available",e);
+    }
+}
+
+
+private static String keyString(byte [] key)
+{
+   StringBuffer buf = new StringBuffer();
+   for (byte b : key) {
+      buf.append(String.format("%02x",b));
+    }
+   return buf.toString();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Lookup methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+private Embedding lookup(byte [] key)
+{
+   String ks = keyString(key);
+   Long off = entry_map.get(ks);
+   if (off == null) return null;
+
+   try {
+      ByteBuffer hdr = ByteBuffer.allocate(ENTRY_HEADER);
+      if (!readFully(hdr,off)) return dropEntry(ks);
+      hdr.flip();
+      byte [] fkey = new byte[KEY_SIZE];
+      hdr.get(fkey);
+      int dim = hdr.getInt();
+      if (!Arrays.equals(key,fkey) || dim <= 0 || dim > MAX_DIMENSION) {
+         // file was reset by another process
+         return dropEntry(ks);
+       }
+      ByteBuffer data = ByteBuffer.allocate(dim * 4);
+      if (!readFully(data,off + ENTRY_HEADER)) return dropEntry(ks);
+      data.flip();
+      float [] v = new float[dim];
+      data.asFloatBuffer().get(v);
+      return Embedding.from(v);
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Problem reading embedding cache",e);
+      return null;
+    }
+}
+
+
+private Embedding dropEntry(String ks)
+{
+   entry_map.remove(ks);
+   return null;
+}
+
+
+private boolean readFully(ByteBuffer buf,long pos) throws IOException
+{
+   while (buf.hasRemaining()) {
+      int ct = cache_channel.read(buf,pos + buf.position());
+      if (ct < 0) return false;
+    }
+   return true;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      File methods                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private synchronized void open() throws IOException
+{
+   try (FileLock lock = cache_channel.lock()) {
+      long len = cache_channel.size();
+      boolean ok = false;
+      if (len >= HEADER_SIZE && len <= max_size) {
+         ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+         ok = readFully(hdr,0);
+         hdr.flip();
+         ok &= hdr.getLong() == MAGIC && hdr.getInt() == VERSION;
+       }
+      if (!ok) {
+         if (len > max_size) IvyLog.logI("LIMBA","Embedding cache is full; starting over");
+         cache_channel.truncate(0);
+         ByteBuffer hdr = ByteBuffer.allocate(HEADER_SIZE);
+         hdr.putLong(MAGIC);
+         hdr.putInt(VERSION);
+         hdr.putInt(0);
+         hdr.flip();
+         cache_channel.write(hdr,0);
+         len = HEADER_SIZE;
+       }
+      scan_end = scan(HEADER_SIZE,len);
+      if (scan_end < len) {
+         // torn entry from a crash
+         cache_channel.truncate(scan_end);
+       }
+    }
+}
+
+
+private synchronized void refresh()
+{
+   try {
+      if (cache_channel.size() <= scan_end) return;
+      try (FileLock lock = cache_channel.lock(0,Long.MAX_VALUE,true)) {
+         long len = cache_channel.size();
+         if (len < scan_end) {
+            // reset by another process
+            entry_map.clear();
+            scan_end = HEADER_SIZE;
+          }
+         scan_end = scan(scan_end,len);
+       }
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Problem refreshing embedding cache",e);
+    }
+}
+
+
+private synchronized void save(List<byte []> keys,List<Embedding> embeds)
+{
+   if (cache_full) return;
+
+   int len = 0;
+   for (Embedding e : embeds) len += ENTRY_HEADER + e.dimension() * 4;
+   ByteBuffer buf = ByteBuffer.allocate(len);
+   for (int i = 0; i < embeds.size(); ++i) {
+      float [] v = embeds.get(i).vector();
+      buf.put(keys.get(i));
+      buf.putInt(v.length);
+      for (float f : v) buf.putFloat(f);
+    }
+   buf.flip();
+
+   try (FileLock lock = cache_channel.lock()) {
+      long pos = cache_channel.size();
+      if (pos < scan_end) {
+         entry_map.clear();
+         scan_end = HEADER_SIZE;
+       }
+      scan_end = scan(scan_end,pos);
+      if (pos + len > max_size) {
+         IvyLog.logI("LIMBA","Embedding cache " + cache_file + " is full");
+         cache_full = true;
+         return;
+       }
+      long off = pos;
+      while (buf.hasRemaining()) {
+         off += cache_channel.write(buf,off);
+       }
+      scan_end = scan(pos,off);
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Problem writing embedding cache",e);
+    }
+}
+
+
+/**
+ *      Add the entries between from and to to the map; returns the end of
+ *      the last complete entry.
+ **/
+
+private long scan(long from,long to) throws IOException
+{
+   ByteBuffer hdr = ByteBuffer.allocate(ENTRY_HEADER);
+   byte [] key = new byte[KEY_SIZE];
+   long pos = from;
+   while (pos + ENTRY_HEADER <= to) {
+      hdr.clear();
+      if (!readFully(hdr,pos)) break;
+      hdr.flip();
+      hdr.get(key);
+      int dim = hdr.getInt();
+      if (dim <= 0 || dim > MAX_DIMENSION) break;
+      long next = pos + ENTRY_HEADER + dim * 4L;
+      if (next > to) break;
+      entry_map.put(keyString(key),pos);
+      pos = next;
+    }
+   return pos;
+}
+
+
+synchronized void close()
+{
+   try {
+      cache_raf.close();
+    }
+   catch (IOException e) { }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("EMBEDCACHE");
+   xw.field("ENTRIES",entry_map.size());
+   xw.field("HITS",cache_hits.get());
+   xw.field("MISSES",cache_misses.get());
+   xw.field("SIZE",scan_end);
+   xw.field("FULL",cache_full);
+   xw.end("EMBEDCACHE");
+}
+
+
+
+}       // end of class LimbaEmbeddingCache
+
+
+
+
+/* end of LimbaEmbeddingCache.java */
@@ -0,0 +1,189 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaExecutor.java                                              */
+/*                                                                              */
+/*      Shared executor for commands and other background tasks                 */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaExecutor implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private ExecutorService task_executor;
+private boolean         use_virtual;
+private AtomicLong      submit_count;
+private AtomicInteger   active_count;
+private AtomicInteger   max_active;
+
+private static AtomicInteger thread_counter = new AtomicInteger(0);
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaExecutor(LimbaMain lm)
+{
+   task_executor = null;
+   use_virtual = false;
+   if (lm.getProperty("Limba.threads.virtual",true)) {
+      task_executor = createVirtualExecutor();
+      use_virtual = task_executor != null;
+    }
+   if (task_executor == null) {
+      task_executor = Executors.newCachedThreadPool((Runnable r) -> {
+         Thread t = new Thread(r,"LimbaTask_" + thread_counter.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+       });
+    }
+   IvyLog.logD("LIMBA","Using " + (use_virtual ? "virtual" : "pooled") +
+         " threads for commands");
+
+   submit_count = new AtomicLong(0);
+   active_count = new AtomicInteger(0);
+   max_active = new AtomicInteger(0);
+}
+
+
+/**
+ *      Virtual threads are only available in newer JVMs, and we still
+ *      compile for older ones, so look for them reflectively.
+ **/
+
+private static ExecutorService createVirtualExecutor()
+{
+   try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke(null);
+    }
+   catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Task methods                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Run the task in the background.  The task runs in a thread with the
+ *      given name and inherits the caller's request context.
+ **/
+
+void execute(String name,Runnable task)
+{
+   task_executor.execute(wrap(name,task));
+}
+
+
+/**
+ *      Run the task in the background returning a future for its result.
+ **/
+
+<T> CompletableFuture<T> submit(String name,Callable<T> task)
+{
+   CompletableFuture<T> rslt = new CompletableFuture<>();
+   task_executor.execute(wrap(name,() -> {
+      if (rslt.isDone()) return;
+      try {
+         rslt.complete(task.call());
+       }
+      catch (Throwable t) {
+         rslt.completeExceptionally(t);
+       }
+    }));
+
+   return rslt;
+}
+
+
+private Runnable wrap(String name,Runnable task)
+{
+   LimbaRequest rq = LimbaRequest.getCurrent();
+   submit_count.incrementAndGet();
+
+   return () -> {
+      Thread th = Thread.currentThread();
+      String oname = th.getName();
+      if (name != null) th.setName(name);
+      LimbaRequest.setCurrent(rq);
+      max_active.accumulateAndGet(active_count.incrementAndGet(),Math::max);
+      try {
+         task.run();
+       }
+      finally {
+         active_count.decrementAndGet();
+         LimbaRequest.setCurrent(null);
+         th.setName(oname);
+       }
+    };
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("EXECUTOR");
+   xw.field("VIRTUAL",use_virtual);
+   xw.field("SUBMITTED",submit_count.get());
+   xw.field("ACTIVE",active_count.get());
+   xw.field("MAXACTIVE",max_active.get());
+   xw.end("EXECUTOR");
+}
+
+
+
+}       // end of class LimbaExecutor
+
+
+
+
+/* end of LimbaExecutor.java */
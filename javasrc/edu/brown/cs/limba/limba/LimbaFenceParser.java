@@ -0,0 +1,155 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaFenceParser.java                                           */
+/*                                                                              */
+/*      Incremental extraction of ``` code blocks from a streamed response      */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import edu.brown.cs.ivy.file.IvyLog;
+
+class LimbaFenceParser implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private String          code_type;
+private Consumer<String> code_consumer;
+private StringBuffer    response_text;
+private int             scan_start;
+private int             block_count;
+private boolean         is_closed;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaFenceParser(String type,Consumer<String> consumer)
+{
+   code_type = type;
+   code_consumer = consumer;
+   response_text = new StringBuffer();
+   scan_start = 0;
+   block_count = 0;
+   is_closed = false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized String getText()           { return response_text.toString(); }
+
+synchronized int getBlockCount()        { return block_count; }
+
+
+/**
+ *      Ignore any further text (e.g. from a stream that was abandoned).
+ **/
+
+synchronized void close()               { is_closed = true; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Add the next piece of the response.  Any code block of the desired
+ *      type that is closed by this text is passed to the consumer before
+ *      returning.  Block recognition matches LimbaMain.getCodeType.
+ **/
+
+void addText(String text)
+{
+   if (text == null || text.isEmpty()) return;
+
+   List<String> found = new ArrayList<>();
+   synchronized (this) {
+      if (is_closed) return;
+      response_text.append(text);
+      scanBlocks(found);
+    }
+
+   for (String code : found) {
+      try {
+         code_consumer.accept(code);
+       }
+      catch (Throwable t) {
+         IvyLog.logE("LIMBA","Problem handling streamed code block",t);
+       }
+    }
+}
+
+
+private void scanBlocks(List<String> found)
+{
+   for ( ; ; ) {
+      int idx0 = response_text.indexOf("```",scan_start);
+      if (idx0 < 0) break;
+      int idx1 = response_text.indexOf("\n",idx0);
+      if (idx1 < 0) break;
+      String type = response_text.substring(idx0+3,idx1).trim();
+      if (type.isEmpty()) {
+         idx1 = idx0 + 3;
+       }
+      else idx1 = idx1+1;
+      int idx2 = response_text.indexOf("```",idx1);
+      if (idx2 < 0) break;
+
+      if (type.equals(code_type)) {
+         List<String> frags = new ArrayList<>();
+         LimbaMain.extractFragments(response_text.substring(idx1,idx2),frags);
+         for (String s : frags) {
+            ++block_count;
+            found.add(s);
+          }
+       }
+      scan_start = idx2 + 3;
+    }
+}
+
+
+
+}       // end of class LimbaFenceParser
+
+
+
+
+/* end of LimbaFenceParser.java */
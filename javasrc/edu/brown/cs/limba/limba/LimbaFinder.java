@@ -30,7 +30,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.w3c.dom.Element;
 
@@ -59,6 +65,7 @@ private String          find_signature;
 private String          find_name;
 private String          find_prefix;
 private boolean         use_context;
+private boolean         use_cache;
 // private boolean         is_remote;
 private String          find_file;
 private LimbaFindContext find_context;
@@ -86,6 +93,7 @@ LimbaFinder(LimbaMain lm,String prompt,Element xml)
    find_prefix = IvyXml.getAttrString(xml,"PREFIX");
    find_file = IvyXml.getAttrString(xml,"FILE");
    use_context = IvyXml.getAttrBool(xml,"USECONTEXT");
+   use_cache = !IvyXml.getAttrBool(xml,"NOCACHE");
 // is_remote = IvyXml.getAttrBool(xml,"REMOTE");
    find_type = IvyXml.getAttrEnum(xml,"WHAT",LimbaFindType.METHOD);
    test_cases = new ArrayList<>();
@@ -153,6 +161,13 @@ LimbaTestCase findTestCase(String nm)
 
 void process(IvyXmlWriter xw) throws Exception
 {
+   LimbaRequest rq = LimbaRequest.getCurrent();
+   if (rq != null && find_context != null) {
+      // look for context in the code being worked on first
+      rq.setScope(find_context.getSourceFileName(),find_context.getPackage(),
+            find_context.getClassName());
+    }
+   
    ChatMemory history = MessageWindowChatMemory.builder()
       .maxMessages(10)
       .build();
@@ -160,11 +175,22 @@ void process(IvyXmlWriter xw) throws Exception
    PriorityQueue<LimbaSolution> finalset = new PriorityQueue<>();
    List<LimbaSolution> rslt = new ArrayList<>();
    
+   Set<String> allimports = new HashSet<>();
+   for (LimbaTestCase ct : test_cases) {
+      Collection<String> imps = ct.getImports();
+      if (imps != null) allimports.addAll(imps);
+    }
+   
    Set<String> undefs = new HashSet<>();
    String addendum = null;
    String testerrs = null;
    boolean again = false;
+   LimbaRetryPolicy retry = limba_main.getRetryPolicy();
    for (int i = 0; i < 10; ++i) {
+      if (i > 0 && !retry.canRetry()) {
+         IvyLog.logD("LIMBA","Retry budget used up after " + i + " rounds");
+         break;
+       }
       StringBuffer pbuf = new StringBuffer();
       if (base_prompt != null) pbuf.append(base_prompt);
       if (!undefs.isEmpty()) {
@@ -221,32 +247,46 @@ void process(IvyXmlWriter xw) throws Exception
          pbuf.append(addendum + ".\n");
        }
       
-      String resp = limba_main.askOllama(pbuf.toString(),
+      // solutions are parsed, and tested if they compile, on this thread
+      // as each one arrives while the query runs in the background.  Only
+      // the first round can come from the cache; later rounds follow up on
+      // solutions that failed and should always be regenerated
+      SolutionBuilder bldr = new SolutionBuilder(allimports);
+      CompletableFuture<String> query = limba_main.askOllamaAsync(pbuf.toString(),
             use_context,history,
             EnumSet.of(LimbaToolSet.PROJECT,LimbaToolSet.STRUCTURE),
-            null,null);
-      List<String> code = LimbaMain.getJavaCode(resp);
-      
-      List<LimbaSolution> tocheck = getSolutions(code);
+            null,null,use_cache && i == 0,"java",bldr::addCode);
+      query.whenComplete((String r,Throwable t) -> bldr.endInput());
+      bldr.run();
+      List<LimbaSolution> tocheck = bldr.finish();
+      try {
+         query.get();
+       }
+      catch (ExecutionException e) {
+         if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+         throw e;
+       }
+      Collection<LimbaSolution> started = bldr.getStartedSolutions();
       
       IvyLog.logD("LIMBA","Found possible solutions: " + tocheck.size() + " " +
-            code);
-      
-      Set<String> allimports = new HashSet<>();
-      for (LimbaTestCase ct : test_cases) {
-         Collection<String> imps = ct.getImports();
-         if (imps != null) allimports.addAll(imps);
-       }
+            started.size() + " already being tested");
       
       String newadd = checkCompilation(undefs,tocheck,(i < 4));
       if (newadd != null && !newadd.isEmpty()) addendum = newadd;
       else addendum = null;
       if (newadd != null) {
+         for (LimbaSolution sol : started) {
+            if (sol.waitForTesting()) {
+               sol.setScore(10);
+               rslt.add(sol);
+             }
+          }
+         if (!rslt.isEmpty()) break;
          again = true;
          continue;
        }
       
-      runTests(tocheck,allimports,rslt);
+      runTests(tocheck,started,rslt);
       
       for (LimbaSolution sol : tocheck) {
          sol.waitForTesting();
@@ -291,37 +331,33 @@ void process(IvyXmlWriter xw) throws Exception
 
 
 
-private List<LimbaSolution> getSolutions(List<String> code)
+private LimbaSolution createSolution(String name,String code)
 {
-   List<LimbaSolution> tocheck = new ArrayList<>();
-   int ct = 1;
-   for (String s : code) {
-      String name = "Solution " + ct++;
-      try {
-         // pass user context to solution so it can be used to resolve things
-         LimbaSolution sol = new LimbaSolution(this,name,s); 
-         if (sol.getAstNode() == null) {
-            IvyLog.logD("LIMBA","Invalid solution -- target not found");
-            // invalid solution 
-            continue;
-          }
-         tocheck.add(sol);
-       }
-      catch (Throwable t) {
-         IvyLog.logE("Problem parsing solution",t);
+   try {
+      // pass user context to solution so it can be used to resolve things
+      LimbaSolution sol = new LimbaSolution(this,name,code); 
+      if (sol.getAstNode() == null) {
+         IvyLog.logD("LIMBA","Invalid solution -- target not found");
+         // invalid solution 
+         return null;
        }
+      return sol;
+    }
+   catch (Throwable t) {
+      IvyLog.logE("Problem parsing solution",t);
     }
    
-   return tocheck;
+   return null;
 }
 
 
 
-private void runTests(List<LimbaSolution> tocheck,Set<String> allimports,List<LimbaSolution> pass)
+private void runTests(List<LimbaSolution> tocheck,Collection<LimbaSolution> started,
+      List<LimbaSolution> pass)
 {
    for (Iterator<LimbaSolution> it = tocheck.iterator(); it.hasNext(); ) {
       LimbaSolution sol = it.next();
-      sol.getImportTypes().addAll(allimports);
+      if (started.contains(sol)) continue;
       if (test_cases.isEmpty()) {
          sol.setTestsPassed(true);
          pass.add(sol);
@@ -329,7 +365,7 @@ private void runTests(List<LimbaSolution> tocheck,Set<String> allimports,List<Li
        }
       else {
          TestRunner tr = new TestRunner(sol);
-         tr.start();
+         limba_main.getExecutor().execute(tr.getName(),tr);
        } 
     }
 }
@@ -440,21 +476,147 @@ private String getTestCorrections(List<LimbaSolution> tocheck)
 
 
 
+/********************************************************************************/
+/*                                                                              */
+/*      Solution builder for streamed code                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private class SolutionBuilder implements Runnable {
+   
+   private List<String> pending_code;
+   private List<LimbaSolution> found_solutions;
+   private List<LimbaSolution> started_solutions;
+   private Set<String> import_set;
+   private int solution_count;
+   private boolean input_done;
+   private boolean is_finished;
+   private Lock builder_lock;
+   private Condition builder_changed;
+   
+   SolutionBuilder(Set<String> imports) {
+      pending_code = new ArrayList<>();
+      found_solutions = new ArrayList<>();
+      started_solutions = new ArrayList<>();
+      import_set = imports;
+      solution_count = 0;
+      input_done = false;
+      is_finished = false;
+      builder_lock = new ReentrantLock();
+      builder_changed = builder_lock.newCondition();
+    }
+   
+   void addCode(String code) {
+      builder_lock.lock();
+      try {
+         pending_code.add(code);
+         builder_changed.signalAll();
+       }
+      finally {
+         builder_lock.unlock();
+       }
+    }
+   
+   void endInput() {
+      builder_lock.lock();
+      try {
+         input_done = true;
+         builder_changed.signalAll();
+       }
+      finally {
+         builder_lock.unlock();
+       }
+    }
+   
+   List<LimbaSolution> finish() {
+      builder_lock.lock();
+      try {
+         input_done = true;
+         builder_changed.signalAll();
+         while (!is_finished) {
+            try {
+               builder_changed.await(3000,TimeUnit.MILLISECONDS);
+             }
+            catch (InterruptedException e) { }
+          }
+         return found_solutions;
+       }
+      finally {
+         builder_lock.unlock();
+       }
+    }
+   
+   Collection<LimbaSolution> getStartedSolutions() {
+      return started_solutions;
+    }
+   
+   @Override public void run() {
+      for ( ; ; ) {
+         String code = null;
+         builder_lock.lock();
+         try {
+            while (pending_code.isEmpty() && !input_done) {
+               try {
+                  builder_changed.await(3000,TimeUnit.MILLISECONDS);
+                }
+               catch (InterruptedException e) { }
+             }
+            if (pending_code.isEmpty()) {
+               is_finished = true;
+               builder_changed.signalAll();
+               return;
+             }
+            code = pending_code.remove(0);
+          }
+         finally {
+            builder_lock.unlock();
+          }
+         
+         String name = "Solution " + (++solution_count);
+         LimbaSolution sol = createSolution(name,code);
+         if (sol == null) continue;
+         
+         sol.getImportTypes().addAll(import_set);
+         List<JcompMessage> errs = sol.getCompilationErrors();
+         boolean start = !test_cases.isEmpty() && (errs == null || errs.isEmpty());
+         if (start) {
+            IvyLog.logD("LIMBA","Start testing " + name + " while streaming");
+            TestRunner tr = new TestRunner(sol);
+            limba_main.getExecutor().execute(tr.getName(),tr);
+          }
+         builder_lock.lock();
+         try {
+            found_solutions.add(sol);
+            if (start) started_solutions.add(sol);
+          }
+         finally {
+            builder_lock.unlock();
+          }
+       }
+    }
+   
+}       // end of inner class SolutionBuilder
+
+
+
 /********************************************************************************/
 /*                                                                              */
 /*      Test Runner                                                             */
 /*                                                                              */
 /********************************************************************************/
 
-private class TestRunner extends Thread {
+private class TestRunner implements Runnable {
   
+   private String runner_name;
    private LimbaSolution for_solution;
    
    TestRunner(LimbaSolution sol) {
-      super("TestRunner_" + test_counter.getAndIncrement());
+      runner_name = "TestRunner_" + test_counter.getAndIncrement();
       for_solution = sol;
     }
    
+   String getName()                     { return runner_name; }
+   
    @Override public void run() {
       LimbaTester tester = new LimbaTester(LimbaFinder.this,for_solution);
       LimbaSuiteReport rpt = tester.runTester();
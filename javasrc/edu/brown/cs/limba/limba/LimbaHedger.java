@@ -0,0 +1,337 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaHedger.java                                                */
+/*                                                                              */
+/*      Hedged LLM requests across backends to cut tail latency                 */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaHedger implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaBackendPool backend_pool;
+private LimbaScheduler  llm_scheduler;
+private LimbaExecutor   task_executor;
+private boolean         hedge_enabled;
+private double          hedge_percentile;
+private long            min_delay;
+private long            max_delay;
+private long []         latency_samples;
+private int             sample_count;
+private int             sample_next;
+private long            request_count;
+private long            hedge_count;
+private long            hedge_wins;
+private long            primary_wins;
+
+private static final int NUM_SAMPLES = 256;
+private static final int MIN_SAMPLES = 20;
+
+private static final EnumSet<LimbaToolSet> READONLY_TOOLS =
+   EnumSet.of(LimbaToolSet.PROJECT,LimbaToolSet.STRUCTURE);
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaHedger(LimbaMain lm,LimbaBackendPool pool,LimbaScheduler sched,
+      LimbaExecutor exec)
+{
+   backend_pool = pool;
+   llm_scheduler = sched;
+   task_executor = exec;
+   hedge_enabled = lm.getProperty("Limba.hedge.enable",false);
+   hedge_percentile = lm.getProperty("Limba.hedge.percentile",95) / 100.0;
+   min_delay = lm.getProperty("Limba.hedge.min",20) * 1000L;
+   max_delay = lm.getProperty("Limba.hedge.max",300) * 1000L;
+   latency_samples = new long[NUM_SAMPLES];
+   sample_count = 0;
+   sample_next = 0;
+   request_count = 0;
+   hedge_count = 0;
+   hedge_wins = 0;
+   primary_wins = 0;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Hedging only makes sense if there is a second healthy backend and the
+ *      request has no side effects: a shared chat memory would see both
+ *      exchanges, and tools that evaluate or run code in the debugger would
+ *      be invoked twice.  Only the read-only source tools are allowed.
+ **/
+
+boolean canHedge(LimbaBackend primary,boolean history,EnumSet<LimbaToolSet> tools)
+{
+   if (!hedge_enabled || primary == null || history) return false;
+   if (tools != null) {
+      for (LimbaToolSet ts : tools) {
+         if (!READONLY_TOOLS.contains(ts)) return false;
+       }
+    }
+
+   for (LimbaBackend lb : backend_pool.getHealthyBackends()) {
+      if (lb != primary) return true;
+    }
+
+   return false;
+}
+
+
+synchronized void recordLatency(long ms)
+{
+   latency_samples[sample_next] = ms;
+   sample_next = (sample_next + 1) % NUM_SAMPLES;
+   if (sample_count < NUM_SAMPLES) ++sample_count;
+}
+
+
+synchronized long getHedgeDelay()
+{
+   if (sample_count < MIN_SAMPLES) return max_delay;
+
+   long [] v = Arrays.copyOf(latency_samples,sample_count);
+   Arrays.sort(v);
+   int idx = (int) Math.ceil(hedge_percentile * sample_count) - 1;
+   idx = Math.max(0,Math.min(idx,sample_count-1));
+   long delay = v[idx];
+
+   return Math.max(min_delay,Math.min(max_delay,delay));
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Hedged execution                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Run the request on the primary backend (which the caller has already
+ *      acquired).  If it hasn't answered within the hedge delay, issue the
+ *      same request on a second backend and return whichever answers first,
+ *      cancelling the other.  Each backend is released by its own request
+ *      when that request actually ends, so the hedger takes over the release
+ *      of the primary: a cancelled request may still be running on the
+ *      server and must keep its slot until it is done.
+ **/
+
+String execute(LimbaBackend primary,Function<LimbaBackend,String> chat) throws Exception
+{
+   long start = System.currentTimeMillis();
+   long delay = getHedgeDelay();
+   synchronized (this) {
+      ++request_count;
+    }
+
+   AtomicBoolean decided = new AtomicBoolean(false);
+   CompletionService<String> cs = new ExecutorCompletionService<>((Runnable r) ->
+      task_executor.execute("LimbaHedge_" + Thread.currentThread().getName(),r));
+   HedgeRequest r1 = new HedgeRequest(primary,chat,decided);
+   HedgeRequest r2 = null;
+   Future<String> f1 = null;
+   try {
+      f1 = cs.submit(r1);
+    }
+   finally {
+      if (f1 == null) r1.abandon();
+    }
+   Future<String> f2 = null;
+
+   try {
+      Future<String> done = cs.poll(delay,TimeUnit.MILLISECONDS);
+      if (done == null) {
+         LimbaBackend second = llm_scheduler.acquireOther(primary);
+         if (second != null) {
+            IvyLog.logD("LIMBA","Hedge request after " + delay + " ms on " + second);
+            synchronized (this) {
+               ++hedge_count;
+             }
+            r2 = new HedgeRequest(second,chat,decided);
+            f2 = cs.submit(r2);
+          }
+         done = cs.take();
+       }
+
+      String rslt = null;
+      Exception err = null;
+      int pending = (f2 == null ? 1 : 2);
+      for ( ; ; ) {
+         --pending;
+         try {
+            rslt = done.get();
+            break;
+          }
+         catch (ExecutionException e) {
+            if (err == null) err = e;
+            if (pending == 0) break;
+            done = cs.take();
+          }
+       }
+      if (rslt == null && err != null) throw unwrap(err);
+
+      synchronized (this) {
+         if (done == f2) ++hedge_wins;
+         else if (f2 != null) ++primary_wins;
+       }
+      if (done == f1) recordLatency(System.currentTimeMillis() - start);
+
+      return rslt;
+    }
+   finally {
+      decided.set(true);
+      f1.cancel(true);
+      r1.abandon();
+      if (f2 != null) {
+         f2.cancel(true);
+         r2.abandon();
+       }
+    }
+}
+
+
+private Exception unwrap(Exception e)
+{
+   Throwable t = e.getCause();
+   if (t instanceof Exception) return (Exception) t;
+   if (t instanceof Error) throw (Error) t;
+   return e;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      One copy of a hedged request                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      A copy of the request releases its backend when it actually ends.
+ *      If it was cancelled before it started, abandon() releases it instead;
+ *      whichever claims the request first owns the release.  A copy that
+ *      fails after the other copy has already answered was most likely
+ *      cancelled, so the failure is not held against the backend; nor are
+ *      failures that aren't the backend's fault.
+ **/
+
+private class HedgeRequest implements Callable<String> {
+
+   private LimbaBackend for_backend;
+   private Function<LimbaBackend,String> chat_function;
+   private AtomicBoolean is_decided;
+   private AtomicBoolean is_claimed;
+
+   HedgeRequest(LimbaBackend lb,Function<LimbaBackend,String> chat,AtomicBoolean decided) {
+      for_backend = lb;
+      chat_function = chat;
+      is_decided = decided;
+      is_claimed = new AtomicBoolean(false);
+    }
+
+   @Override public String call() {
+      if (!is_claimed.compareAndSet(false,true)) return null;
+      boolean ok = false;
+      try {
+         String rslt = chat_function.apply(for_backend);
+         ok = true;
+         return rslt;
+       }
+      catch (RuntimeException e) {
+         ok = !LimbaRetryPolicy.isBackendFailure(e);
+         throw e;
+       }
+      finally {
+         llm_scheduler.release(for_backend,ok || is_decided.get());
+       }
+    }
+
+   void abandon() {
+      if (is_claimed.compareAndSet(false,true)) {
+         llm_scheduler.release(for_backend,true);
+       }
+    }
+
+}       // end of inner class HedgeRequest
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("HEDGE");
+   xw.field("ENABLED",hedge_enabled);
+   xw.field("REQUESTS",request_count);
+   xw.field("HEDGED",hedge_count);
+   xw.field("HEDGEWINS",hedge_wins);
+   xw.field("PRIMARYWINS",primary_wins);
+   if (request_count > 0) {
+      xw.field("HEDGERATE",((double) hedge_count) / request_count);
+    }
+   xw.field("DELAY",getHedgeDelay());
+   xw.field("SAMPLES",sample_count);
+   xw.end("HEDGE");
+}
+
+
+
+}       // end of class LimbaHedger
+
+
+
+
+/* end of LimbaHedger.java */
@@ -0,0 +1,314 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaHnswBenchmark.java                                         */
+/*                                                                              */
+/*      Compare HNSW and exact search on the local embedding store              */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+
+/**
+ *      Standalone benchmark: fill a LimbaLocalStore with synthetic clustered
+ *      vectors and compare latency and recall@k of the HNSW index against
+ *      the exact scan for several ef values.
+ *
+ *      LimbaHnswBenchmark [-n segments] [-d dimension] [-q queries] [-k k]
+ *              [-m links] [-c efconstruction] [-e ef,ef,...] [-int8] [-rerank]
+ *
+ *      With -int8 the store keeps int8 codes and recall is measured against
+ *      a float store holding the same vectors; -rerank adds the exact
+ *      rescoring of candidates.
+ **/
+
+public final class LimbaHnswBenchmark
+{
+
+/********************************************************************************/
+/*                                                                              */
+/*      Main program                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+public static void main(String [] args)
+{
+   LimbaHnswBenchmark bm = new LimbaHnswBenchmark(args);
+
+   try {
+      bm.process();
+    }
+   catch (Exception e) {
+      System.err.println("LimbaHnswBenchmark: " + e);
+      e.printStackTrace();
+      System.exit(1);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private int     num_segments;
+private int     num_dimensions;
+private int     num_queries;
+private int     num_results;
+private int     max_links;
+private int     ef_construction;
+private int []  ef_values;
+private boolean use_int8;
+private boolean use_rerank;
+private Random  random_gen;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaHnswBenchmark(String [] args)
+{
+   num_segments = 100000;
+   num_dimensions = 768;
+   num_queries = 200;
+   num_results = 10;
+   max_links = 16;
+   ef_construction = 100;
+   ef_values = new int [] { 16, 32, 64, 128, 256 };
+   use_int8 = false;
+   use_rerank = false;
+   random_gen = new Random(12345);
+
+   scanArgs(args);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Argument scanning                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+private void scanArgs(String [] args)
+{
+   for (int i = 0; i < args.length; ++i) {
+      if (args[i].startsWith("-i")) {
+         use_int8 = true;
+         continue;
+       }
+      else if (args[i].startsWith("-r")) {
+         use_rerank = true;
+         continue;
+       }
+      if (i+1 >= args.length) badArgs();
+      try {
+         if (args[i].startsWith("-n")) num_segments = Integer.parseInt(args[++i]);
+         else if (args[i].startsWith("-d")) num_dimensions = Integer.parseInt(args[++i]);
+         else if (args[i].startsWith("-q")) num_queries = Integer.parseInt(args[++i]);
+         else if (args[i].startsWith("-k")) num_results = Integer.parseInt(args[++i]);
+         else if (args[i].startsWith("-m")) max_links = Integer.parseInt(args[++i]);
+         else if (args[i].startsWith("-c")) ef_construction = Integer.parseInt(args[++i]);
+         else if (args[i].startsWith("-e")) {
+            String [] vals = args[++i].split(",");
+            ef_values = new int[vals.length];
+            for (int j = 0; j < vals.length; ++j) ef_values[j] = Integer.parseInt(vals[j]);
+          }
+         else badArgs();
+       }
+      catch (NumberFormatException e) {
+         badArgs();
+       }
+    }
+}
+
+
+private void badArgs()
+{
+   System.err.println("LimbaHnswBenchmark [-n segments] [-d dimension] [-q queries] " +
+         "[-k k] [-m links] [-c efconstruction] [-e ef,...] [-int8] [-rerank]");
+   System.exit(1);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Processing methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+private void process() throws IOException, InterruptedException
+{
+   File dir = Files.createTempDirectory("limbabench").toFile();
+   LimbaLocalStore store = new LimbaLocalStore(dir,"bench",use_int8,use_rerank);
+   LimbaLocalStore truthstore = store;
+   if (use_int8) truthstore = new LimbaLocalStore(dir,"truth",false,false);
+
+   try {
+      float [][] centers = new float[Math.max(1,num_segments / 100)][];
+      for (int i = 0; i < centers.length; ++i) centers[i] = randomVector(null,1.0f);
+
+      long t0 = System.currentTimeMillis();
+      List<Embedding> embs = new ArrayList<>();
+      List<TextSegment> segs = new ArrayList<>();
+      for (int i = 0; i < num_segments; ++i) {
+         float [] c = centers[random_gen.nextInt(centers.length)];
+         embs.add(Embedding.from(randomVector(c,0.3f)));
+         segs.add(TextSegment.from("segment " + i,Metadata.from("id","doc" + (i / 20))));
+         if (embs.size() >= 1000 || i == num_segments-1) {
+            List<String> ids = store.generateIds(embs.size());
+            store.addAll(ids,embs,segs);
+            if (truthstore != store) truthstore.addAll(ids,embs,segs);
+            embs.clear();
+            segs.clear();
+          }
+       }
+      long t1 = System.currentTimeMillis();
+      System.out.println("Loaded " + num_segments + " x " + num_dimensions +
+            " vectors in " + (t1-t0) + " ms");
+      System.out.println("Vector bytes/segment " + store.getVectorBytes() +
+            (use_int8 ? " (int8" + (use_rerank ? ", float copy for rerank" : "") + ")" : " (float)") +
+            ", disk " + store.getDiskSize() + " bytes");
+
+      store.enableIndex(max_links,ef_construction,ef_values[0],0);
+      store.waitForIndex();
+      long t2 = System.currentTimeMillis();
+      System.out.println("Built index (m=" + max_links + ", efc=" + ef_construction +
+            ") in " + (t2-t1) + " ms");
+
+      List<Embedding> queries = new ArrayList<>();
+      for (int i = 0; i < num_queries; ++i) {
+         float [] c = centers[random_gen.nextInt(centers.length)];
+         queries.add(Embedding.from(randomVector(c,0.3f)));
+       }
+
+      List<Set<String>> truth = new ArrayList<>();
+      long [] times = new long[num_queries];
+      for (int i = 0; i < num_queries; ++i) {
+         long s = System.nanoTime();
+         EmbeddingSearchResult<TextSegment> r = truthstore.search(request(queries.get(i)),true);
+         times[i] = System.nanoTime() - s;
+         truth.add(ids(r));
+       }
+      report("exact",times,1.0);
+
+      if (use_int8) {
+         double recall = 0;
+         for (int i = 0; i < num_queries; ++i) {
+            long s = System.nanoTime();
+            EmbeddingSearchResult<TextSegment> r = store.search(request(queries.get(i)),true);
+            times[i] = System.nanoTime() - s;
+            Set<String> found = ids(r);
+            found.retainAll(truth.get(i));
+            recall += ((double) found.size()) / Math.max(1,truth.get(i).size());
+          }
+         report("exact int8",times,recall / num_queries);
+       }
+
+      for (int ef : ef_values) {
+         store.setSearchEf(ef);
+         double recall = 0;
+         for (int i = 0; i < num_queries; ++i) {
+            long s = System.nanoTime();
+            EmbeddingSearchResult<TextSegment> r = store.search(request(queries.get(i)),false);
+            times[i] = System.nanoTime() - s;
+            Set<String> found = ids(r);
+            found.retainAll(truth.get(i));
+            recall += ((double) found.size()) / Math.max(1,truth.get(i).size());
+          }
+         report("hnsw ef=" + ef,times,recall / num_queries);
+       }
+    }
+   finally {
+      store.close();
+      if (truthstore != store) truthstore.close();
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+}
+
+
+private EmbeddingSearchRequest request(Embedding q)
+{
+   return EmbeddingSearchRequest.builder()
+      .queryEmbedding(q)
+      .maxResults(num_results)
+      .build();
+}
+
+
+private static Set<String> ids(EmbeddingSearchResult<TextSegment> r)
+{
+   Set<String> rslt = new HashSet<>();
+   for (EmbeddingMatch<TextSegment> m : r.matches()) rslt.add(m.embeddingId());
+   return rslt;
+}
+
+
+private float [] randomVector(float [] base,float scale)
+{
+   float [] v = new float[num_dimensions];
+   for (int i = 0; i < num_dimensions; ++i) {
+      v[i] = (base == null ? 0 : base[i]) + (float) random_gen.nextGaussian() * scale;
+    }
+   return v;
+}
+
+
+private void report(String what,long [] times,double recall)
+{
+   long [] sorted = Arrays.copyOf(times,times.length);
+   Arrays.sort(sorted);
+   double tot = 0;
+   for (long t : sorted) tot += t;
+   double avg = tot / sorted.length / 1000000.0;
+   double p95 = sorted[Math.min(sorted.length-1,(int) (sorted.length * 0.95))] / 1000000.0;
+   System.out.println(String.format("%-14s avg %8.3f ms  p95 %8.3f ms  recall@%d %.3f",
+         what,avg,p95,num_results,recall));
+}
+
+
+
+}       // end of class LimbaHnswBenchmark
+
+
+
+
+/* end of LimbaHnswBenchmark.java */
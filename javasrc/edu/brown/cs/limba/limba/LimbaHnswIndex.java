@@ -0,0 +1,475 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaHnswIndex.java                                             */
+/*                                                                              */
+/*      Approximate nearest neighbor index (HNSW) for the local store           */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+/**
+ *      Hierarchical navigable small world graph over the slots of a
+ *      LimbaLocalStore.  Vectors are not copied; distances are computed
+ *      through a VectorSource that reads the store's mapped file.  Inserts
+ *      are incremental.  Deletes mark the node so it is still used for
+ *      navigation but never returned; reinserting a slot relinks it.  The
+ *      owner rebuilds the index once getChurn() gets large.
+ **/
+
+class LimbaHnswIndex implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private VectorSource    vector_source;
+private int             max_links;
+private int             max_links0;
+private int             ef_construction;
+private double          level_mult;
+private List<int [][]>  node_links;
+private BitSet          node_present;
+private BitSet          node_deleted;
+private int             entry_point;
+private int             top_level;
+private int             live_count;
+private int             churn_count;
+private ReadWriteLock   index_lock;
+private Random          random_gen;
+
+private static final int [] NO_LINKS = new int [] { 0 };
+
+
+interface VectorSource {
+   double dot(int slot,float [] q);
+   double dot(int slot1,int slot2);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaHnswIndex(VectorSource src,int m,int efc)
+{
+   vector_source = src;
+   max_links = Math.max(2,m);
+   max_links0 = 2 * max_links;
+   ef_construction = Math.max(max_links,efc);
+   level_mult = 1.0 / Math.log(max_links);
+   node_links = new ArrayList<>();
+   node_present = new BitSet();
+   node_deleted = new BitSet();
+   entry_point = -1;
+   top_level = -1;
+   live_count = 0;
+   churn_count = 0;
+   index_lock = new ReentrantReadWriteLock();
+   random_gen = new Random(max_links * 31L + ef_construction);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+int size()                              { return live_count; }
+
+int getChurn()                          { return churn_count; }
+
+int getMaxLinks()                       { return max_links; }
+
+int getEfConstruction()                 { return ef_construction; }
+
+
+boolean contains(int slot)
+{
+   index_lock.readLock().lock();
+   try {
+      return node_present.get(slot) && !node_deleted.get(slot);
+    }
+   finally {
+      index_lock.readLock().unlock();
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Update methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Add the vector currently in the given slot.  If the slot was used
+ *      before, its old links are dropped first.
+ **/
+
+void insert(int slot)
+{
+   index_lock.writeLock().lock();
+   try {
+      if (node_present.get(slot)) {
+         unlink(slot);
+         ++churn_count;
+       }
+      int level = (int) (-Math.log(1.0 - random_gen.nextDouble()) * level_mult);
+      int [][] links = new int[level+1][];
+      for (int i = 0; i <= level; ++i) {
+         links[i] = new int[(i == 0 ? max_links0 : max_links) + 1];
+       }
+      while (node_links.size() <= slot) node_links.add(null);
+      node_links.set(slot,links);
+      node_present.set(slot);
+      node_deleted.clear(slot);
+      ++live_count;
+
+      if (entry_point < 0) {
+         entry_point = slot;
+         top_level = level;
+         return;
+       }
+
+      int cur = entry_point;
+      double curd = distance(cur,slot);
+      for (int lvl = top_level; lvl > level; --lvl) {
+         boolean chng = true;
+         while (chng) {
+            chng = false;
+            int [] nbrs = getLinks(cur,lvl);
+            for (int i = 1; i <= nbrs[0]; ++i) {
+               double d = distance(nbrs[i],slot);
+               if (d < curd) {
+                  curd = d;
+                  cur = nbrs[i];
+                  chng = true;
+                }
+             }
+          }
+       }
+
+      for (int lvl = Math.min(level,top_level); lvl >= 0; --lvl) {
+         final int target = slot;
+         List<Candidate> cands = searchLayer(cur,curd,lvl,ef_construction,
+               (n) -> distance(n,target),null);
+         int max = (lvl == 0 ? max_links0 : max_links);
+         List<Candidate> sel = selectNeighbors(cands,max_links);
+         int [] mine = links[lvl];
+         for (Candidate c : sel) {
+            if (c.node_id == slot) continue;
+            mine[++mine[0]] = c.node_id;
+            addLink(c.node_id,slot,lvl,max);
+          }
+         if (!cands.isEmpty()) {
+            cur = cands.get(0).node_id;
+            curd = cands.get(0).node_distance;
+          }
+       }
+
+      if (level > top_level) {
+         top_level = level;
+         entry_point = slot;
+       }
+    }
+   finally {
+      index_lock.writeLock().unlock();
+    }
+}
+
+
+void remove(int slot)
+{
+   index_lock.writeLock().lock();
+   try {
+      if (!node_present.get(slot) || node_deleted.get(slot)) return;
+      node_deleted.set(slot);
+      --live_count;
+      ++churn_count;
+    }
+   finally {
+      index_lock.writeLock().unlock();
+    }
+}
+
+
+private void unlink(int slot)
+{
+   int [][] links = node_links.get(slot);
+   for (int lvl = 0; lvl < links.length; ++lvl) {
+      int [] nbrs = links[lvl];
+      for (int i = 1; i <= nbrs[0]; ++i) {
+         int [][] olinks = node_links.get(nbrs[i]);
+         if (olinks == null || olinks.length <= lvl) continue;
+         removeLink(olinks[lvl],slot);
+       }
+    }
+   if (!node_deleted.get(slot)) --live_count;
+   node_deleted.clear(slot);
+
+   if (slot == entry_point) {
+      entry_point = -1;
+      top_level = -1;
+      for (int i = node_present.nextSetBit(0); i >= 0; i = node_present.nextSetBit(i+1)) {
+         if (i == slot) continue;
+         int lvl = node_links.get(i).length - 1;
+         if (lvl > top_level) {
+            top_level = lvl;
+            entry_point = i;
+          }
+       }
+    }
+   node_present.clear(slot);
+   node_links.set(slot,null);
+}
+
+
+private void addLink(int node,int nbr,int lvl,int max)
+{
+   int [] nbrs = getLinks(node,lvl);
+   if (nbrs == NO_LINKS) return;
+   if (nbrs[0] < max) {
+      nbrs[++nbrs[0]] = nbr;
+      return;
+    }
+
+   List<Candidate> cands = new ArrayList<>();
+   cands.add(new Candidate(nbr,distance(node,nbr)));
+   for (int i = 1; i <= nbrs[0]; ++i) {
+      cands.add(new Candidate(nbrs[i],distance(node,nbrs[i])));
+    }
+   Collections.sort(cands);
+   List<Candidate> sel = selectNeighbors(cands,max);
+   nbrs[0] = 0;
+   for (Candidate c : sel) nbrs[++nbrs[0]] = c.node_id;
+}
+
+
+private static void removeLink(int [] nbrs,int slot)
+{
+   for (int i = 1; i <= nbrs[0]; ++i) {
+      if (nbrs[i] == slot) {
+         nbrs[i] = nbrs[nbrs[0]];
+         --nbrs[0];
+         return;
+       }
+    }
+}
+
+
+/**
+ *      Neighbor selection heuristic: keep a candidate only if it is closer
+ *      to the base than to any neighbor already kept, so links spread out
+ *      in different directions.  Fill with the closest rejects if needed.
+ **/
+
+private List<Candidate> selectNeighbors(List<Candidate> cands,int max)
+{
+   List<Candidate> rslt = new ArrayList<>();
+   List<Candidate> skipped = new ArrayList<>();
+   for (Candidate c : cands) {
+      if (rslt.size() >= max) break;
+      boolean ok = true;
+      for (Candidate r : rslt) {
+         if (distance(c.node_id,r.node_id) < c.node_distance) {
+            ok = false;
+            break;
+          }
+       }
+      if (ok) rslt.add(c);
+      else skipped.add(c);
+    }
+   for (int i = 0; i < skipped.size() && rslt.size() < max; ++i) {
+      rslt.add(skipped.get(i));
+    }
+
+   return rslt;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Search methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return up to k slots nearest to the (normalized) query, best first,
+ *      with their cosine similarity.  Larger ef gives better recall at
+ *      higher cost.  Slots rejected by the filter are still traversed.
+ **/
+
+List<Candidate> search(float [] q,int k,int ef,IntPredicate filter)
+{
+   index_lock.readLock().lock();
+   try {
+      if (entry_point < 0) return new ArrayList<>();
+
+      int cur = entry_point;
+      double curd = 1 - vector_source.dot(cur,q);
+      for (int lvl = top_level; lvl > 0; --lvl) {
+         boolean chng = true;
+         while (chng) {
+            chng = false;
+            int [] nbrs = getLinks(cur,lvl);
+            for (int i = 1; i <= nbrs[0]; ++i) {
+               double d = 1 - vector_source.dot(nbrs[i],q);
+               if (d < curd) {
+                  curd = d;
+                  cur = nbrs[i];
+                  chng = true;
+                }
+             }
+          }
+       }
+
+      IntPredicate accept = (n) -> !node_deleted.get(n) && (filter == null || filter.test(n));
+      List<Candidate> cands = searchLayer(cur,curd,0,Math.max(ef,k),
+            (n) -> 1 - vector_source.dot(n,q),accept);
+      if (cands.size() > k) cands = new ArrayList<>(cands.subList(0,k));
+      return cands;
+    }
+   finally {
+      index_lock.readLock().unlock();
+    }
+}
+
+
+private interface Distance {
+   double distance(int node);
+}
+
+
+/**
+ *      Best-first search of one layer.  Returns up to ef accepted nodes,
+ *      closest first.  If accept is null every node is accepted.
+ **/
+
+private List<Candidate> searchLayer(int start,double startd,int lvl,int ef,
+      Distance dist,IntPredicate accept)
+{
+   BitSet visited = new BitSet(node_links.size());
+   PriorityQueue<Candidate> todo = new PriorityQueue<>();
+   PriorityQueue<Candidate> found = new PriorityQueue<>(Collections.reverseOrder());
+
+   visited.set(start);
+   Candidate sc = new Candidate(start,startd);
+   todo.add(sc);
+   if (accept == null || accept.test(start)) found.add(sc);
+
+   while (!todo.isEmpty()) {
+      Candidate c = todo.poll();
+      if (found.size() >= ef && c.node_distance > found.peek().node_distance) break;
+      int [] nbrs = getLinks(c.node_id,lvl);
+      for (int i = 1; i <= nbrs[0]; ++i) {
+         int n = nbrs[i];
+         if (visited.get(n)) continue;
+         visited.set(n);
+         double d = dist.distance(n);
+         if (found.size() < ef || d < found.peek().node_distance) {
+            Candidate nc = new Candidate(n,d);
+            todo.add(nc);
+            if (accept == null || accept.test(n)) {
+               found.add(nc);
+               if (found.size() > ef) found.poll();
+             }
+          }
+       }
+    }
+
+   List<Candidate> rslt = new ArrayList<>(found);
+   Collections.sort(rslt);
+   return rslt;
+}
+
+
+/**
+ *      Return the links of a node at a level.  A reused slot can still be
+ *      the target of one-way links from levels it no longer has; those
+ *      lead nowhere.
+ **/
+
+private int [] getLinks(int node,int lvl)
+{
+   int [][] links = node_links.get(node);
+   if (links == null || lvl >= links.length) return NO_LINKS;
+   return links[lvl];
+}
+
+
+private double distance(int a,int b)
+{
+   return 1 - vector_source.dot(a,b);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Search result                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+static final class Candidate implements Comparable<Candidate> {
+
+   private int node_id;
+   private double node_distance;
+
+   Candidate(int id,double d) {
+      node_id = id;
+      node_distance = d;
+    }
+
+   int getSlot()                        { return node_id; }
+   double getSimilarity()               { return 1 - node_distance; }
+
+   @Override public int compareTo(Candidate c) {
+      return Double.compare(node_distance,c.node_distance);
+    }
+
+}       // end of inner class Candidate
+
+
+
+}       // end of class LimbaHnswIndex
+
+
+
+
+/* end of LimbaHnswIndex.java */
@@ -0,0 +1,219 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaHybridRetriever.java                                       */
+/*                                                                              */
+/*      Combine lexical and vector retrieval with rank fusion                   */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.rag.content.Content;
+import dev.langchain4j.rag.content.retriever.ContentRetriever;
+import dev.langchain4j.rag.query.Query;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import edu.brown.cs.ivy.file.IvyLog;
+
+/**
+ *      Content retriever that embeds the query once, runs it against the
+ *      vector store and the lexical index, and merges the two rankings
+ *      with reciprocal rank fusion.  Exact identifier matches that the
+ *      embedding misses still make it into the context.
+ **/
+
+class LimbaHybridRetriever implements ContentRetriever, LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private EmbeddingModel  embed_model;
+private EmbeddingStore<TextSegment> embed_store;
+private LimbaLexicalIndex lexical_index;
+private int             max_results;
+private int             num_candidates;
+private int             fusion_k;
+private Function<Query,List<Filter>> scope_function;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaHybridRetriever(LimbaMain lm,EmbeddingModel embed,EmbeddingStore<TextSegment> store,
+      LimbaLexicalIndex lex)
+{
+   embed_model = embed;
+   embed_store = store;
+   lexical_index = lex;
+   max_results = Math.max(1,lm.getProperty("Limba.rag.results",10));
+   num_candidates = Math.max(max_results,lm.getProperty("Limba.rag.candidates",30));
+   fusion_k = Math.max(1,lm.getProperty("Limba.rag.rrf.k",60));
+   scope_function = null;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void setMaxResults(int n)
+{
+   max_results = Math.max(1,n);
+   num_candidates = Math.max(num_candidates,max_results);
+}
+
+
+/**
+ *      Provide metadata filters, narrowest first, to restrict a query to
+ *      the part of the workspace it is about.  Each scope is searched in
+ *      turn until there are enough results, then the whole workspace.
+ **/
+
+void setScopeFunction(Function<Query,List<Filter>> fct)
+{
+   scope_function = fct;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Retrieval methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public List<Content> retrieve(Query query)
+{
+   Map<String,Fused> fused = new LinkedHashMap<>();
+
+   Embedding qe = null;
+   try {
+      qe = embed_model.embed(query.text()).content();
+    }
+   catch (RuntimeException e) {
+      IvyLog.logE("LIMBA","Problem with vector retrieval",e);
+    }
+
+   // segments found in narrower scopes are ranked again in wider ones
+   List<Filter> scopes = new ArrayList<>();
+   if (scope_function != null) {
+      List<Filter> fs = scope_function.apply(query);
+      if (fs != null) scopes.addAll(fs);
+    }
+   scopes.add(null);
+   for (Filter f : scopes) {
+      search(query,qe,f,fused);
+      if (f != null && fused.size() >= max_results) break;
+    }
+
+   List<Fused> all = new ArrayList<>(fused.values());
+   all.sort((a,b) -> Double.compare(b.fused_score,a.fused_score));
+
+   List<Content> rslt = new ArrayList<>();
+   for (int i = 0; i < all.size() && i < max_results; ++i) {
+      rslt.add(Content.from(all.get(i).text_segment));
+    }
+
+   return rslt;
+}
+
+
+private void search(Query query,Embedding qe,Filter filter,Map<String,Fused> fused)
+{
+   if (qe != null) {
+      try {
+         EmbeddingSearchRequest req = EmbeddingSearchRequest.builder()
+            .queryEmbedding(qe)
+            .maxResults(num_candidates)
+            .filter(filter)
+            .build();
+         List<EmbeddingMatch<TextSegment>> matches = embed_store.search(req).matches();
+         for (int i = 0; i < matches.size(); ++i) {
+            TextSegment seg = matches.get(i).embedded();
+            if (seg != null) addRank(fused,seg,i);
+          }
+       }
+      catch (RuntimeException e) {
+         IvyLog.logE("LIMBA","Problem with vector retrieval",e);
+       }
+    }
+
+   Predicate<TextSegment> accept = null;
+   if (filter != null) accept = (TextSegment seg) -> filter.test(seg.metadata());
+   List<TextSegment> lex = lexical_index.search(query.text(),num_candidates,accept);
+   for (int i = 0; i < lex.size(); ++i) {
+      addRank(fused,lex.get(i),i);
+    }
+}
+
+
+private void addRank(Map<String,Fused> fused,TextSegment seg,int rank)
+{
+   String key = LimbaLexicalIndex.getSegmentKey(seg);
+   Fused f = fused.get(key);
+   if (f == null) {
+      f = new Fused(seg);
+      fused.put(key,f);
+    }
+   f.fused_score += 1.0 / (fusion_k + rank + 1);
+}
+
+
+private static final class Fused {
+
+   private TextSegment text_segment;
+   private double fused_score;
+
+   Fused(TextSegment seg) {
+      text_segment = seg;
+      fused_score = 0;
+    }
+
+}       // end of inner class Fused
+
+
+
+}       // end of class LimbaHybridRetriever
+
+
+
+
+/* end of LimbaHybridRetriever.java */
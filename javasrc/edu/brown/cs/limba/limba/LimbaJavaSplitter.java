@@ -0,0 +1,324 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaJavaSplitter.java                                          */
+/*                                                                              */
+/*      Split Java source into declaration-based RAG segments                   */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.BodyDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.EnumConstantDeclaration;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.PackageDeclaration;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.segment.TextSegment;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.jcomp.JcompAst;
+
+/**
+ *      Splitter that parses Java source and produces one segment per type
+ *      header, per group of fields, and per method.  Small adjacent members
+ *      of the same type are merged so trivial accessors don't each cost an
+ *      embedding; large methods are split by line.  Every segment carries
+ *      package, class, type, kind, member and line metadata and starts with a
+ *      comment naming its class.  Anything that doesn't parse goes to the
+ *      fallback splitter.
+ **/
+
+class LimbaJavaSplitter implements DocumentSplitter, LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private DocumentSplitter fallback_splitter;
+private int             max_chars;
+private int             min_chars;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaJavaSplitter(DocumentSplitter fallback,int max,int min)
+{
+   fallback_splitter = fallback;
+   max_chars = Math.max(200,max);
+   min_chars = Math.min(min,max_chars/2);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Splitting methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public List<TextSegment> split(Document doc)
+{
+   String text = doc.text();
+   String fnm = doc.metadata().getString("file_name");
+   if (fnm != null && !fnm.endsWith(".java")) return fallback_splitter.split(doc);
+
+   CompilationUnit cu = null;
+   try {
+      cu = JcompAst.parseSourceFile(text);
+    }
+   catch (Throwable t) {
+      IvyLog.logD("LIMBA","Can't parse " + fnm + " for splitting: " + t);
+    }
+   if (cu == null || cu.types().isEmpty()) return fallback_splitter.split(doc);
+
+   SplitContext ctx = new SplitContext(doc,cu);
+   for (Object o : cu.types()) {
+      splitType(ctx,(AbstractTypeDeclaration) o,null);
+    }
+
+   return ctx.getSegments();
+}
+
+
+private void splitType(SplitContext ctx,AbstractTypeDeclaration td,String outer)
+{
+   String tnm = td.getName().getIdentifier();
+   if (outer != null) tnm = outer + "." + tnm;
+
+   List<BodyDeclaration> members = new ArrayList<>();
+   for (Object o : td.bodyDeclarations()) members.add((BodyDeclaration) o);
+
+   int tstart = td.getStartPosition();
+   int tend = tstart + td.getLength();
+   int hend = tend;
+   if (td instanceof EnumDeclaration) {
+      EnumDeclaration ed = (EnumDeclaration) td;
+      if (!ed.enumConstants().isEmpty()) {
+         EnumConstantDeclaration ec = (EnumConstantDeclaration) ed.enumConstants().get(0);
+         hend = ec.getStartPosition();
+       }
+    }
+   if (!members.isEmpty()) hend = Math.min(hend,members.get(0).getStartPosition());
+
+   String header = ctx.getText(tstart,hend).trim();
+   if (hend < tend) header += "\n   ...\n}";
+   ctx.startType(tnm);
+   ctx.addPiece("TYPE",null,tstart,hend,header);
+   ctx.flush();
+
+   if (td instanceof EnumDeclaration) {
+      EnumDeclaration ed = (EnumDeclaration) td;
+      int n = ed.enumConstants().size();
+      if (n > 0) {
+         ASTNode first = (ASTNode) ed.enumConstants().get(0);
+         ASTNode last = (ASTNode) ed.enumConstants().get(n-1);
+         int s = first.getStartPosition();
+         int e = last.getStartPosition() + last.getLength();
+         ctx.addPiece("FIELDS",null,s,e,ctx.getText(s,e));
+       }
+    }
+
+   List<AbstractTypeDeclaration> inner = new ArrayList<>();
+   for (BodyDeclaration bd : members) {
+      int s = bd.getStartPosition();
+      int e = s + bd.getLength();
+      switch (bd.getNodeType()) {
+         case ASTNode.METHOD_DECLARATION :
+            MethodDeclaration md = (MethodDeclaration) bd;
+            String mnm = md.getName().getIdentifier();
+            ctx.addPiece("METHOD",mnm,s,e,ctx.getText(s,e));
+            break;
+         case ASTNode.TYPE_DECLARATION :
+         case ASTNode.ENUM_DECLARATION :
+         case ASTNode.ANNOTATION_TYPE_DECLARATION :
+            inner.add((AbstractTypeDeclaration) bd);
+            break;
+         default :
+            // fields, initializers, annotation members
+            ctx.addPiece("FIELDS",null,s,e,ctx.getText(s,e));
+            break;
+       }
+    }
+   ctx.flush();
+
+   for (AbstractTypeDeclaration itd : inner) {
+      splitType(ctx,itd,tnm);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Segment accumulation                                                    */
+/*                                                                              */
+/********************************************************************************/
+
+private final class SplitContext {
+
+   private Document base_document;
+   private CompilationUnit comp_unit;
+   private String source_text;
+   private String package_name;
+   private String type_name;
+   private List<TextSegment> result_segments;
+   private StringBuilder cur_text;
+   private String cur_kind;
+   private List<String> cur_members;
+   private int cur_start;
+   private int cur_end;
+
+   SplitContext(Document doc,CompilationUnit cu) {
+      base_document = doc;
+      comp_unit = cu;
+      source_text = doc.text();
+      PackageDeclaration pd = cu.getPackage();
+      package_name = (pd == null ? null : pd.getName().getFullyQualifiedName());
+      type_name = null;
+      result_segments = new ArrayList<>();
+      cur_text = new StringBuilder();
+      cur_kind = null;
+      cur_members = new ArrayList<>();
+      cur_start = -1;
+      cur_end = -1;
+    }
+
+   List<TextSegment> getSegments()              { return result_segments; }
+
+   String getText(int s,int e) {
+      s = Math.max(0,Math.min(s,source_text.length()));
+      e = Math.max(s,Math.min(e,source_text.length()));
+      return source_text.substring(s,e);
+    }
+
+   void startType(String nm) {
+      flush();
+      type_name = nm;
+    }
+
+   /**
+    *   Add a declaration.  Consecutive small pieces are merged into one
+    *   segment; a piece that is large on its own stands alone.
+    **/
+
+   void addPiece(String kind,String member,int s,int e,String text) {
+      if (text.isBlank()) return;
+      boolean small = text.length() < min_chars;
+      if (cur_kind != null) {
+         boolean fits = cur_text.length() + text.length() + 2 <= max_chars;
+         boolean merge = fits && (small || cur_text.length() < min_chars) &&
+            !cur_kind.equals("TYPE");
+         if (!merge) flush();
+       }
+      if (cur_kind == null) {
+         cur_kind = kind;
+         cur_start = s;
+       }
+      else {
+         if (!cur_kind.equals(kind)) cur_kind = "MEMBERS";
+         cur_text.append("\n\n");
+       }
+      cur_text.append(text);
+      cur_end = e;
+      if (member != null) cur_members.add(member);
+      if (!small && cur_text.length() >= min_chars) flush();
+    }
+
+   void flush() {
+      if (cur_kind == null) return;
+      String text = cur_text.toString();
+      int sline = comp_unit.getLineNumber(cur_start);
+      int eline = comp_unit.getLineNumber(Math.max(cur_start,cur_end-1));
+      if (text.length() <= max_chars) {
+         addSegment(text,-1,sline,eline);
+       }
+      else {
+         // each part gets its own lines so the parts remain distinct
+         Document d = Document.from(text);
+         int part = 0;
+         int pos = 0;
+         for (TextSegment ts : fallback_splitter.split(d)) {
+            String ptext = ts.text();
+            int idx = text.indexOf(ptext,pos);
+            if (idx < 0) idx = pos;
+            int ps = Math.min(eline,sline + countLines(text,0,idx));
+            int pe = Math.min(eline,ps + countLines(ptext,0,ptext.length()));
+            addSegment(ptext,part++,ps,pe);
+            pos = Math.min(idx+1,text.length());
+          }
+       }
+      cur_text.setLength(0);
+      cur_kind = null;
+      cur_members.clear();
+      cur_start = -1;
+      cur_end = -1;
+    }
+
+   private int countLines(String text,int s,int e) {
+      int ct = 0;
+      for (int i = s; i < e; ++i) {
+         if (text.charAt(i) == '\n') ++ct;
+       }
+      return ct;
+    }
+
+   private void addSegment(String text,int part,int sline,int eline) {
+      Metadata md = base_document.metadata().copy();
+      md.put("index",String.valueOf(result_segments.size()));
+      md.put("kind",cur_kind);
+      if (package_name != null) md.put("package",package_name);
+      String cls = type_name;
+      if (package_name != null) cls = package_name + "." + type_name;
+      md.put("class",cls);
+      md.put("type",type_name.substring(type_name.lastIndexOf(".")+1));
+      if (!cur_members.isEmpty()) md.put("member",String.join(",",cur_members));
+      md.put("start_line",sline);
+      md.put("end_line",eline);
+      if (part >= 0) md.put("part",part);
+
+      String pfx = "// " + cls + "\n";
+      result_segments.add(TextSegment.from(pfx + text,md));
+    }
+
+}       // end of inner class SplitContext
+
+
+
+}       // end of class LimbaJavaSplitter
+
+
+
+
+/* end of LimbaJavaSplitter.java */
@@ -0,0 +1,393 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaLexicalIndex.java                                          */
+/*                                                                              */
+/*      BM25 inverted index over RAG segments                                   */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import dev.langchain4j.data.segment.TextSegment;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+/**
+ *      In-memory inverted index over RAG segments scored with BM25.  Java
+ *      identifiers are indexed both whole and split at camelCase, digit and
+ *      underscore boundaries, so a query for "getContentRetriever" or for
+ *      "content retriever" finds the same code.  Segments are added and
+ *      replaced a file at a time as the vector store is updated.
+ **/
+
+class LimbaLexicalIndex implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private Map<String,List<IndexDoc>> file_docs;
+private Map<String,Map<IndexDoc,Integer>> term_postings;
+private long            total_length;
+private int             doc_count;
+private ReadWriteLock   index_lock;
+
+private static final double BM25_K1 = 1.2;
+private static final double BM25_B = 0.75;
+private static final int MIN_TOKEN = 2;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaLexicalIndex()
+{
+   file_docs = new HashMap<>();
+   term_postings = new HashMap<>();
+   total_length = 0;
+   doc_count = 0;
+   index_lock = new ReentrantReadWriteLock();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+int size()                              { return doc_count; }
+
+
+/**
+ *      Key used to match a segment here with the same segment from the
+ *      vector store: the file id and the segment index within the file.
+ **/
+
+static String getSegmentKey(TextSegment seg)
+{
+   String id = seg.metadata().getString("id");
+   String idx = seg.metadata().getString("index");
+   if (id == null || idx == null) return "#" + seg.text().hashCode();
+
+   return id + "#" + idx;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Update methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Replace whatever is indexed for the given file with these segments.
+ **/
+
+void setSegments(String fileid,List<TextSegment> segs)
+{
+   List<IndexDoc> docs = new ArrayList<>();
+   for (TextSegment seg : segs) {
+      Map<String,Integer> tf = new HashMap<>();
+      int len = 0;
+      for (String tok : tokenize(seg.text())) {
+         tf.merge(tok,1,Integer::sum);
+         ++len;
+       }
+      docs.add(new IndexDoc(seg,len,tf));
+    }
+
+   index_lock.writeLock().lock();
+   try {
+      removeLocked(fileid);
+      if (docs.isEmpty()) return;
+      file_docs.put(fileid,docs);
+      for (IndexDoc d : docs) {
+         for (Map.Entry<String,Integer> ent : d.term_counts.entrySet()) {
+            term_postings.computeIfAbsent(ent.getKey(),(k) -> new HashMap<>()).put(d,ent.getValue());
+          }
+         total_length += d.doc_length;
+         ++doc_count;
+       }
+    }
+   finally {
+      index_lock.writeLock().unlock();
+    }
+}
+
+
+void removeFile(String fileid)
+{
+   index_lock.writeLock().lock();
+   try {
+      removeLocked(fileid);
+    }
+   finally {
+      index_lock.writeLock().unlock();
+    }
+}
+
+
+void clear()
+{
+   index_lock.writeLock().lock();
+   try {
+      file_docs.clear();
+      term_postings.clear();
+      total_length = 0;
+      doc_count = 0;
+    }
+   finally {
+      index_lock.writeLock().unlock();
+    }
+}
+
+
+private void removeLocked(String fileid)
+{
+   List<IndexDoc> old = file_docs.remove(fileid);
+   if (old == null) return;
+
+   for (IndexDoc d : old) {
+      for (String term : d.term_counts.keySet()) {
+         Map<IndexDoc,Integer> post = term_postings.get(term);
+         if (post == null) continue;
+         post.remove(d);
+         if (post.isEmpty()) term_postings.remove(term);
+       }
+      total_length -= d.doc_length;
+      --doc_count;
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Search methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return up to max segments ranked by BM25 score for the query,
+ *      best first.
+ **/
+
+List<TextSegment> search(String query,int max)
+{
+   return search(query,max,null);
+}
+
+
+/**
+ *      Search only the segments accepted by the given test (e.g. a
+ *      metadata filter).
+ **/
+
+List<TextSegment> search(String query,int max,Predicate<TextSegment> accept)
+{
+   List<TextSegment> rslt = new ArrayList<>();
+   Map<String,Integer> qterms = new LinkedHashMap<>();
+   for (String tok : tokenize(query)) qterms.merge(tok,1,Integer::sum);
+   if (qterms.isEmpty() || max <= 0) return rslt;
+
+   index_lock.readLock().lock();
+   try {
+      if (doc_count == 0) return rslt;
+      double avglen = ((double) total_length) / doc_count;
+      Map<IndexDoc,Double> scores = new HashMap<>();
+      for (Map.Entry<String,Integer> qent : qterms.entrySet()) {
+         Map<IndexDoc,Integer> post = term_postings.get(qent.getKey());
+         if (post == null) continue;
+         double n = post.size();
+         double idf = Math.log(1 + (doc_count - n + 0.5) / (n + 0.5));
+         for (Map.Entry<IndexDoc,Integer> pent : post.entrySet()) {
+            IndexDoc d = pent.getKey();
+            double tf = pent.getValue();
+            double norm = BM25_K1 * (1 - BM25_B + BM25_B * d.doc_length / avglen);
+            double s = idf * tf * (BM25_K1 + 1) / (tf + norm) * qent.getValue();
+            scores.merge(d,s,Double::sum);
+          }
+       }
+
+      PriorityQueue<Map.Entry<IndexDoc,Double>> best =
+         new PriorityQueue<>((a,b) -> Double.compare(a.getValue(),b.getValue()));
+      for (Map.Entry<IndexDoc,Double> ent : scores.entrySet()) {
+         if (accept != null && !accept.test(ent.getKey().text_segment)) continue;
+         best.add(ent);
+         if (best.size() > max) best.poll();
+       }
+      while (!best.isEmpty()) {
+         rslt.add(0,best.poll().getKey().text_segment);
+       }
+    }
+   finally {
+      index_lock.readLock().unlock();
+    }
+
+   return rslt;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Tokenization                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Split text into lower case terms.  Each identifier yields itself and,
+ *      if it is compound, its camelCase/snake_case/digit parts.
+ **/
+
+static List<String> tokenize(String text)
+{
+   List<String> rslt = new ArrayList<>();
+   int len = text.length();
+   int i = 0;
+   while (i < len) {
+      char c = text.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '_' && c != '$') {
+         ++i;
+         continue;
+       }
+      int start = i;
+      while (i < len) {
+         char c1 = text.charAt(i);
+         if (!Character.isLetterOrDigit(c1) && c1 != '_' && c1 != '$') break;
+         ++i;
+       }
+      addIdentifier(text.substring(start,i),rslt);
+    }
+
+   return rslt;
+}
+
+
+private static void addIdentifier(String id,List<String> rslt)
+{
+   List<String> parts = new ArrayList<>();
+   StringBuilder buf = new StringBuilder();
+   int n = id.length();
+   for (int i = 0; i < n; ++i) {
+      char c = id.charAt(i);
+      if (c == '_' || c == '$') {
+         addPart(buf,parts);
+         continue;
+       }
+      if (buf.length() > 0) {
+         char p = buf.charAt(buf.length()-1);
+         boolean brk = false;
+         if (Character.isUpperCase(c) && Character.isLowerCase(p)) brk = true;
+         else if (Character.isDigit(c) != Character.isDigit(p)) brk = true;
+         else if (Character.isUpperCase(c) && Character.isUpperCase(p) && i+1 < n &&
+               Character.isLowerCase(id.charAt(i+1))) brk = true;    // XMLParser -> XML Parser
+         if (brk) addPart(buf,parts);
+       }
+      buf.append(c);
+    }
+   addPart(buf,parts);
+
+   String whole = id.replace("$","").toLowerCase();
+   if (whole.length() >= MIN_TOKEN) rslt.add(whole);
+   for (String p : parts) {
+      if (!p.equals(whole)) rslt.add(p);
+    }
+}
+
+
+private static void addPart(StringBuilder buf,List<String> parts)
+{
+   if (buf.length() >= MIN_TOKEN && !Character.isDigit(buf.charAt(0))) {
+      parts.add(buf.toString().toLowerCase());
+    }
+   buf.setLength(0);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   index_lock.readLock().lock();
+   try {
+      xw.begin("LEXICAL");
+      xw.field("FILES",file_docs.size());
+      xw.field("SEGMENTS",doc_count);
+      xw.field("TERMS",term_postings.size());
+      xw.end("LEXICAL");
+    }
+   finally {
+      index_lock.readLock().unlock();
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Indexed segment                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class IndexDoc {
+
+   private TextSegment text_segment;
+   private int doc_length;
+   private Map<String,Integer> term_counts;
+
+   IndexDoc(TextSegment seg,int len,Map<String,Integer> tf) {
+      text_segment = seg;
+      doc_length = len;
+      term_counts = tf;
+    }
+
+}       // end of inner class IndexDoc
+
+
+
+}       // end of class LimbaLexicalIndex
+
+
+
+
+/* end of LimbaLexicalIndex.java */
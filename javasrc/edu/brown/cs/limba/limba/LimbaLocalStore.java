@@ -0,0 +1,1319 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaLocalStore.java                                            */
+/*                                                                              */
+/*      Persistent memory-mapped embedding store                                */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+/**
+ *      Embedding store kept in two files.  The vector file holds normalized
+ *      vectors (float or int8 codes) in fixed slots and is memory mapped, so
+ *      opening an existing index does not copy the vectors onto the heap.  The segment file is an
+ *      append-only log of ADD and DEL records holding the id, metadata and
+ *      text for each slot; only the ids, metadata and text offsets are kept
+ *      in memory.  Deleted slots are reused and the log is compacted when it
+ *      is mostly dead records.
+ **/
+
+class LimbaLocalStore implements EmbeddingStore<TextSegment>, LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private File            vector_file;
+private File            exact_file;
+private File            segment_file;
+private FileChannel     vector_channel;
+private FileChannel     segment_channel;
+private MappedByteBuffer vector_buffer;
+private FileChannel     exact_channel;
+private MappedByteBuffer exact_buffer;
+private boolean         use_quantize;
+private boolean         use_rerank;
+private int             rerank_factor;
+private int             record_size;
+private int             vector_dimension;
+private int             slot_capacity;
+private long            segment_length;
+private List<SlotData>  slot_data;
+private Map<String,Integer> id_map;
+private Deque<Integer>  free_slots;
+private int             dead_records;
+private ReadWriteLock   store_lock;
+private LimbaHnswIndex  ann_index;
+private LimbaHnswIndex  ann_pending;
+private volatile boolean ann_ready;
+private int             ann_links;
+private int             ann_construction;
+private int             ann_ef;
+private int             ann_min;
+private IndexBuilder    index_builder;
+
+private static final int VECTOR_MAGIC = 0x4c4d5653;            // LMVS
+private static final int SEGMENT_MAGIC = 0x4c4d5347;           // LMSG
+private static final int FORMAT_VERSION = 1;
+private static final int VECTOR_VERSION = 2;
+private static final int VECTOR_HEADER = 32;
+private static final int SEGMENT_HEADER = 8;
+private static final int INITIAL_SLOTS = 1024;
+
+private static final int MODE_FLOAT = 0;
+private static final int MODE_INT8 = 1;
+
+private static final byte OP_ADD = 1;
+private static final byte OP_DEL = 2;
+
+private static final byte TYPE_STRING = 1;
+private static final byte TYPE_INT = 2;
+private static final byte TYPE_LONG = 3;
+private static final byte TYPE_FLOAT = 4;
+private static final byte TYPE_DOUBLE = 5;
+private static final byte TYPE_UUID = 6;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Create or open the store.  If quantize is set, vectors are scanned as
+ *      int8 codes with a per-vector scale (about a quarter of the size);
+ *      if rerank is also set, float copies are kept in a separate mapped
+ *      file and used to rescore the best candidates.
+ **/
+
+LimbaLocalStore(File dir,String name,boolean quantize,boolean rerank) throws IOException
+{
+   vector_file = new File(dir,name + ".vectors");
+   exact_file = new File(dir,name + ".fvectors");
+   segment_file = new File(dir,name + ".segments");
+   use_quantize = quantize;
+   use_rerank = quantize && rerank;
+   rerank_factor = 4;
+   vector_dimension = 0;
+   record_size = 0;
+   slot_capacity = 0;
+   vector_buffer = null;
+   exact_channel = null;
+   exact_buffer = null;
+   slot_data = new ArrayList<>();
+   id_map = new HashMap<>();
+   free_slots = new ArrayDeque<>();
+   dead_records = 0;
+   store_lock = new ReentrantReadWriteLock();
+   ann_index = null;
+   ann_pending = null;
+   ann_ready = false;
+   ann_links = 16;
+   ann_construction = 100;
+   ann_ef = 64;
+   ann_min = 0;
+   index_builder = null;
+
+   open();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+int size()
+{
+   store_lock.readLock().lock();
+   try {
+      return id_map.size();
+    }
+   finally {
+      store_lock.readLock().unlock();
+    }
+}
+
+
+boolean isEmpty()                       { return size() == 0; }
+
+
+int getDimension()                      { return vector_dimension; }
+
+
+void setRerankFactor(int f)             { rerank_factor = Math.max(1,f); }
+
+
+/**
+ *      Bytes of mapped vector data scanned per segment.
+ **/
+
+int getVectorBytes()                    { return record_size; }
+
+
+boolean isIndexReady()                  { return ann_ready; }
+
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("STORE");
+   xw.field("TYPE","LOCAL");
+   xw.field("SEGMENTS",size());
+   xw.field("DIMENSION",vector_dimension);
+   xw.field("DISK",getDiskSize());
+   xw.field("QUANTIZE",use_quantize ? "INT8" : "NONE");
+   xw.field("RERANK",use_rerank);
+   xw.field("VECTORBYTES",record_size);
+   if (ann_index == null) xw.field("INDEX","NONE");
+   else {
+      xw.field("INDEX",ann_ready ? "READY" : "BUILDING");
+      xw.field("INDEXSIZE",ann_index.size());
+      xw.field("CHURN",ann_index.getChurn());
+      xw.field("LINKS",ann_links);
+      xw.field("EF",ann_ef);
+      xw.field("MIN",ann_min);
+    }
+   xw.end("STORE");
+}
+
+
+long getDiskSize()
+{
+   return vector_file.length() + exact_file.length() + segment_file.length();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Add methods                                                             */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public String add(Embedding emb)
+{
+   String id = UUID.randomUUID().toString();
+   add(id,emb);
+   return id;
+}
+
+
+@Override public void add(String id,Embedding emb)
+{
+   addAll(List.of(id),List.of(emb),null);
+}
+
+
+@Override public String add(Embedding emb,TextSegment seg)
+{
+   String id = UUID.randomUUID().toString();
+   addAll(List.of(id),List.of(emb),List.of(seg));
+   return id;
+}
+
+
+@Override public List<String> addAll(List<Embedding> embs)
+{
+   List<String> ids = generateIds(embs.size());
+   addAll(ids,embs,null);
+   return ids;
+}
+
+
+@Override public void addAll(List<String> ids,List<Embedding> embs,List<TextSegment> segs)
+{
+   if (ids.isEmpty()) return;
+
+   store_lock.writeLock().lock();
+   try {
+      ByteBuffer log = ByteBuffer.allocate(4096);
+      List<SlotData> added = new ArrayList<>();
+      for (int i = 0; i < ids.size(); ++i) {
+         String id = ids.get(i);
+         Embedding emb = embs.get(i);
+         TextSegment seg = (segs == null ? null : segs.get(i));
+         if (vector_dimension == 0) setDimension(emb.dimension());
+         else if (emb.dimension() != vector_dimension) {
+            throw new IllegalArgumentException("Embedding dimension " + emb.dimension() +
+                  " doesn't match store dimension " + vector_dimension);
+          }
+         Integer old = id_map.get(id);
+         if (old != null) {
+            log = appendDelete(log,id);
+            freeSlot(old);
+          }
+         int slot = allocateSlot();
+         writeVector(slot,emb.vector());
+         Metadata md = (seg == null ? new Metadata() : seg.metadata());
+         String text = (seg == null ? null : seg.text());
+         SlotData sd = new SlotData(id,md);
+         log = appendAdd(log,slot,sd,text);
+         slot_data.set(slot,sd);
+         id_map.put(id,slot);
+         added.add(sd);
+         if (ann_index != null) ann_index.insert(slot);
+         if (ann_pending != null) ann_pending.insert(slot);
+       }
+      writeLog(log,added);
+      vector_buffer.force();
+      if (exact_buffer != null) exact_buffer.force();
+      checkRebuild();
+    }
+   catch (IOException e) {
+      throw new IllegalStateException("Problem writing local embedding store",e);
+    }
+   finally {
+      store_lock.writeLock().unlock();
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Remove methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public void remove(String id)
+{
+   removeAll(List.of(id));
+}
+
+
+@Override public void removeAll(Collection<String> ids)
+{
+   store_lock.writeLock().lock();
+   try {
+      ByteBuffer log = ByteBuffer.allocate(1024);
+      for (String id : ids) {
+         Integer slot = id_map.remove(id);
+         if (slot == null) continue;
+         freeSlot(slot);
+         log = appendDelete(log,id);
+       }
+      writeLog(log,null);
+      checkCompact();
+      checkRebuild();
+    }
+   catch (IOException e) {
+      throw new IllegalStateException("Problem writing local embedding store",e);
+    }
+   finally {
+      store_lock.writeLock().unlock();
+    }
+}
+
+
+@Override public void removeAll(Filter filter)
+{
+   List<String> ids = new ArrayList<>();
+   store_lock.readLock().lock();
+   try {
+      for (SlotData sd : slot_data) {
+         if (sd != null && filter.test(sd.slot_metadata)) ids.add(sd.slot_id);
+       }
+    }
+   finally {
+      store_lock.readLock().unlock();
+    }
+
+   if (!ids.isEmpty()) removeAll(ids);
+}
+
+
+@Override public void removeAll()
+{
+   store_lock.writeLock().lock();
+   try {
+      close();
+      vector_file.delete();
+      exact_file.delete();
+      segment_file.delete();
+      vector_dimension = 0;
+      record_size = 0;
+      slot_capacity = 0;
+      slot_data.clear();
+      id_map.clear();
+      free_slots.clear();
+      dead_records = 0;
+      open();
+      if (ann_index != null) {
+         // an empty index is complete; any running build is now obsolete
+         ann_index = createIndex();
+         ann_pending = null;
+         ann_ready = true;
+         index_builder = null;
+       }
+    }
+   catch (IOException e) {
+      throw new IllegalStateException("Problem clearing local embedding store",e);
+    }
+   finally {
+      store_lock.writeLock().unlock();
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Search methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest req)
+{
+   return search(req,false);
+}
+
+
+/**
+ *      Search using the HNSW index when it is built and the store is large
+ *      enough, otherwise (or if exact is set) scan every slot.
+ **/
+
+EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest req,boolean exact)
+{
+   List<EmbeddingMatch<TextSegment>> rslt = new ArrayList<>();
+   int max = req.maxResults();
+   Filter filter = req.filter();
+
+   store_lock.readLock().lock();
+   try {
+      if (vector_dimension == 0 || id_map.isEmpty() || max <= 0) {
+         return new EmbeddingSearchResult<>(rslt);
+       }
+      float [] q = normalize(req.queryEmbedding().vector());
+      if (q.length != vector_dimension) {
+         throw new IllegalArgumentException("Query dimension " + q.length +
+               " doesn't match store dimension " + vector_dimension);
+       }
+
+      int nfind = max;
+      double minscore = req.minScore();
+      if (exact_buffer != null) {
+         // find extra candidates with the codes, then rescore with floats
+         nfind = max * rerank_factor;
+         minscore = 0;
+       }
+      PriorityQueue<ScoredSlot> best = null;
+      if (!exact && ann_ready && id_map.size() >= ann_min) {
+         best = searchIndex(q,nfind,filter,minscore);
+       }
+      if (best == null) best = searchExact(q,nfind,filter,minscore);
+      if (exact_buffer != null) best = rerank(best,q,max,req.minScore());
+
+      while (!best.isEmpty()) {
+         ScoredSlot ss = best.poll();
+         SlotData sd = slot_data.get(ss.slot_index);
+         TextSegment seg = null;
+         String text = readText(sd);
+         if (text != null) seg = TextSegment.from(text,sd.slot_metadata.copy());
+         Embedding emb = Embedding.from(readVector(ss.slot_index));
+         rslt.add(0,new EmbeddingMatch<>(ss.slot_score,sd.slot_id,emb,seg));
+       }
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Problem reading local embedding store",e);
+    }
+   finally {
+      store_lock.readLock().unlock();
+    }
+
+   return new EmbeddingSearchResult<>(rslt);
+}
+
+
+private PriorityQueue<ScoredSlot> searchExact(float [] q,int max,Filter filter,double minscore)
+{
+   PriorityQueue<ScoredSlot> best = new PriorityQueue<>();
+   for (int slot = 0; slot < slot_data.size(); ++slot) {
+         SlotData sd = slot_data.get(slot);
+         if (sd == null) continue;
+      if (filter != null && !filter.test(sd.slot_metadata)) continue;
+      double cos = Math.max(-1,Math.min(1,dot(slot,q)));
+      double score = RelevanceScore.fromCosineSimilarity(cos);
+      if (score < minscore) continue;
+      if (best.size() < max) best.add(new ScoredSlot(slot,score));
+      else if (score > best.peek().slot_score) {
+         best.poll();
+         best.add(new ScoredSlot(slot,score));
+       }
+    }
+
+   return best;
+}
+
+
+/**
+ *      Search the HNSW index.  Returns null if a filter left too few results
+ *      so the caller can fall back to the exact scan.
+ **/
+
+private PriorityQueue<ScoredSlot> searchIndex(float [] q,int max,Filter filter,double minscore)
+{
+   IntPredicate accept = null;
+   if (filter != null) {
+      accept = (slot) -> {
+         SlotData sd = slot_data.get(slot);
+         return sd != null && filter.test(sd.slot_metadata);
+       };
+    }
+
+   List<LimbaHnswIndex.Candidate> cands = ann_index.search(q,max,ann_ef,accept);
+   if (filter != null && cands.size() < max) return null;
+
+   PriorityQueue<ScoredSlot> best = new PriorityQueue<>();
+   for (LimbaHnswIndex.Candidate c : cands) {
+      if (slot_data.get(c.getSlot()) == null) continue;
+      double cos = Math.max(-1,Math.min(1,c.getSimilarity()));
+      double score = RelevanceScore.fromCosineSimilarity(cos);
+      if (score < minscore) continue;
+      best.add(new ScoredSlot(c.getSlot(),score));
+    }
+
+   return best;
+}
+
+
+private PriorityQueue<ScoredSlot> rerank(PriorityQueue<ScoredSlot> cands,float [] q,
+      int max,double minscore)
+{
+   PriorityQueue<ScoredSlot> best = new PriorityQueue<>();
+   for (ScoredSlot ss : cands) {
+      double cos = Math.max(-1,Math.min(1,exactDot(ss.slot_index,q)));
+      double score = RelevanceScore.fromCosineSimilarity(cos);
+      if (score < minscore) continue;
+      best.add(new ScoredSlot(ss.slot_index,score));
+      if (best.size() > max) best.poll();
+    }
+
+   return best;
+}
+
+
+private double dot(int slot,float [] q)
+{
+   int base = VECTOR_HEADER + slot * record_size;
+   double sum = 0;
+   if (use_quantize) {
+      float scale = vector_buffer.getFloat(base);
+      base += 4;
+      for (int i = 0; i < vector_dimension; ++i) {
+         sum += q[i] * vector_buffer.get(base + i);
+       }
+      return sum * scale;
+    }
+
+   for (int i = 0; i < vector_dimension; ++i) {
+      sum += q[i] * vector_buffer.getFloat(base + i*4);
+    }
+   return sum;
+}
+
+
+private double dot(int slot1,int slot2)
+{
+   int base1 = VECTOR_HEADER + slot1 * record_size;
+   int base2 = VECTOR_HEADER + slot2 * record_size;
+   if (use_quantize) {
+      float scale = vector_buffer.getFloat(base1) * vector_buffer.getFloat(base2);
+      base1 += 4;
+      base2 += 4;
+      long isum = 0;
+      for (int i = 0; i < vector_dimension; ++i) {
+         isum += vector_buffer.get(base1 + i) * vector_buffer.get(base2 + i);
+       }
+      return isum * (double) scale;
+    }
+
+   double sum = 0;
+   for (int i = 0; i < vector_dimension; ++i) {
+      sum += vector_buffer.getFloat(base1 + i*4) * vector_buffer.getFloat(base2 + i*4);
+    }
+   return sum;
+}
+
+
+private double exactDot(int slot,float [] q)
+{
+   int base = slot * vector_dimension * 4;
+   double sum = 0;
+   for (int i = 0; i < vector_dimension; ++i) {
+      sum += q[i] * exact_buffer.getFloat(base + i*4);
+    }
+   return sum;
+}
+
+
+private static final class ScoredSlot implements Comparable<ScoredSlot> {
+
+   private int slot_index;
+   private double slot_score;
+
+   ScoredSlot(int slot,double score) {
+      slot_index = slot;
+      slot_score = score;
+    }
+
+   @Override public int compareTo(ScoredSlot ss) {
+      return Double.compare(slot_score,ss.slot_score);
+    }
+
+}       // end of inner class ScoredSlot
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Vector file methods                                                     */
+/*                                                                              */
+/********************************************************************************/
+
+private void setDimension(int dim) throws IOException
+{
+   vector_dimension = dim;
+   record_size = getRecordSize(dim);
+   mapVectors(INITIAL_SLOTS);
+}
+
+
+private int getRecordSize(int dim)
+{
+   if (use_quantize) return 4 + dim;
+
+   return 4 * dim;
+}
+
+
+private void mapVectors(int cap) throws IOException
+{
+   long size = VECTOR_HEADER + ((long) cap) * record_size;
+   long esize = (use_rerank ? ((long) cap) * vector_dimension * 4 : 0);
+   if (size > Integer.MAX_VALUE || esize > Integer.MAX_VALUE) {
+      throw new IOException("Local embedding store too large");
+    }
+   vector_buffer = vector_channel.map(FileChannel.MapMode.READ_WRITE,0,size);
+   vector_buffer.putInt(0,VECTOR_MAGIC);
+   vector_buffer.putInt(4,VECTOR_VERSION);
+   vector_buffer.putInt(8,vector_dimension);
+   vector_buffer.putInt(12,cap);
+   vector_buffer.putInt(16,use_quantize ? MODE_INT8 : MODE_FLOAT);
+   if (use_rerank) {
+      exact_buffer = exact_channel.map(FileChannel.MapMode.READ_WRITE,0,esize);
+    }
+   slot_capacity = cap;
+}
+
+
+private int allocateSlot() throws IOException
+{
+   Integer slot = free_slots.pollFirst();
+   if (slot != null) return slot;
+
+   int idx = slot_data.size();
+   if (idx >= slot_capacity) mapVectors(slot_capacity * 2);
+   slot_data.add(null);
+
+   return idx;
+}
+
+
+private void freeSlot(int slot)
+{
+   if (ann_index != null) ann_index.remove(slot);
+   if (ann_pending != null) ann_pending.remove(slot);
+   slot_data.set(slot,null);
+   free_slots.add(slot);
+   ++dead_records;
+}
+
+
+private void writeVector(int slot,float [] v)
+{
+   float [] nv = normalize(v);
+   int base = VECTOR_HEADER + slot * record_size;
+   if (use_quantize) {
+      float maxv = 0;
+      for (float f : nv) maxv = Math.max(maxv,Math.abs(f));
+      float scale = maxv / 127;
+      vector_buffer.putFloat(base,scale);
+      for (int i = 0; i < vector_dimension; ++i) {
+         int c = (scale == 0 ? 0 : Math.round(nv[i] / scale));
+         vector_buffer.put(base + 4 + i,(byte) Math.max(-127,Math.min(127,c)));
+       }
+      if (exact_buffer != null) {
+         int ebase = slot * vector_dimension * 4;
+         for (int i = 0; i < vector_dimension; ++i) {
+            exact_buffer.putFloat(ebase + i*4,nv[i]);
+          }
+       }
+      return;
+    }
+
+   for (int i = 0; i < vector_dimension; ++i) {
+      vector_buffer.putFloat(base + i*4,nv[i]);
+    }
+}
+
+
+private float [] readVector(int slot)
+{
+   float [] v = new float[vector_dimension];
+   if (exact_buffer != null) {
+      int ebase = slot * vector_dimension * 4;
+      for (int i = 0; i < vector_dimension; ++i) {
+         v[i] = exact_buffer.getFloat(ebase + i*4);
+       }
+      return v;
+    }
+
+   int base = VECTOR_HEADER + slot * record_size;
+   if (use_quantize) {
+      float scale = vector_buffer.getFloat(base);
+      for (int i = 0; i < vector_dimension; ++i) {
+         v[i] = vector_buffer.get(base + 4 + i) * scale;
+       }
+      return v;
+    }
+
+   for (int i = 0; i < vector_dimension; ++i) {
+      v[i] = vector_buffer.getFloat(base + i*4);
+    }
+   return v;
+}
+
+
+private static float [] normalize(float [] v)
+{
+   double tot = 0;
+   for (float f : v) tot += f*f;
+   if (tot == 0) return v;
+
+   double norm = Math.sqrt(tot);
+   float [] rslt = new float[v.length];
+   for (int i = 0; i < v.length; ++i) rslt[i] = (float) (v[i] / norm);
+
+   return rslt;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Segment log methods                                                     */
+/*                                                                              */
+/********************************************************************************/
+
+private ByteBuffer appendAdd(ByteBuffer buf,int slot,SlotData sd,String text)
+{
+   byte [] tbytes = (text == null ? null : text.getBytes(StandardCharsets.UTF_8));
+   byte [] ibytes = sd.slot_id.getBytes(StandardCharsets.UTF_8);
+   Map<String,Object> md = sd.slot_metadata.toMap();
+
+   int need = 1 + 4 + 4 + ibytes.length + 2 + 4 + (tbytes == null ? 0 : tbytes.length);
+   for (Map.Entry<String,Object> ent : md.entrySet()) {
+      need += 4 + ent.getKey().length() * 3 + 1 + 20 + String.valueOf(ent.getValue()).length() * 3;
+    }
+   buf = ensure(buf,need);
+
+   buf.put(OP_ADD);
+   buf.putInt(slot);
+   putBytes(buf,ibytes);
+   buf.putShort((short) md.size());
+   for (Map.Entry<String,Object> ent : md.entrySet()) {
+      putString(buf,ent.getKey());
+      putValue(buf,ent.getValue());
+    }
+   if (tbytes == null) buf.putInt(-1);
+   else {
+      buf.putInt(tbytes.length);
+      sd.text_offset = buf.position();          // relative until written
+      sd.text_length = tbytes.length;
+      buf.put(tbytes);
+    }
+
+   return buf;
+}
+
+
+private ByteBuffer appendDelete(ByteBuffer buf,String id)
+{
+   byte [] ibytes = id.getBytes(StandardCharsets.UTF_8);
+   buf = ensure(buf,1 + 4 + ibytes.length);
+   ++dead_records;
+   buf.put(OP_DEL);
+   putBytes(buf,ibytes);
+   return buf;
+}
+
+
+private void writeLog(ByteBuffer buf,List<SlotData> added) throws IOException
+{
+   buf.flip();
+   if (!buf.hasRemaining()) return;
+
+   long start = segment_length;
+   if (added != null) {
+      for (SlotData sd : added) {
+         if (sd.text_offset >= 0) sd.text_offset += start;
+       }
+    }
+   long pos = start;
+   while (buf.hasRemaining()) {
+      pos += segment_channel.write(buf,pos);
+    }
+   segment_length = pos;
+}
+
+
+private String readText(SlotData sd) throws IOException
+{
+   if (sd.text_offset < 0) return null;
+
+   ByteBuffer buf = ByteBuffer.allocate(sd.text_length);
+   long pos = sd.text_offset;
+   while (buf.hasRemaining()) {
+      int ct = segment_channel.read(buf,pos);
+      if (ct < 0) throw new IOException("Truncated local embedding store");
+      pos += ct;
+    }
+
+   return new String(buf.array(),StandardCharsets.UTF_8);
+}
+
+
+private static ByteBuffer ensure(ByteBuffer buf,int need)
+{
+   if (buf.remaining() >= need) return buf;
+
+   ByteBuffer nbuf = ByteBuffer.allocate(Math.max(buf.capacity() * 2,buf.position() + need + 1024));
+   buf.flip();
+   nbuf.put(buf);
+   return nbuf;
+}
+
+
+private static void putBytes(ByteBuffer buf,byte [] b)
+{
+   buf.putInt(b.length);
+   buf.put(b);
+}
+
+
+private static void putString(ByteBuffer buf,String s)
+{
+   putBytes(buf,s.getBytes(StandardCharsets.UTF_8));
+}
+
+
+private static String getString(ByteBuffer buf)
+{
+   int len = buf.getInt();
+   if (len < 0 || len > buf.remaining()) throw new BufferUnderflowException();
+   byte [] b = new byte[len];
+   buf.get(b);
+   return new String(b,StandardCharsets.UTF_8);
+}
+
+
+private static void putValue(ByteBuffer buf,Object v)
+{
+   if (v instanceof Integer) {
+      buf.put(TYPE_INT);
+      buf.putInt((Integer) v);
+    }
+   else if (v instanceof Long) {
+      buf.put(TYPE_LONG);
+      buf.putLong((Long) v);
+    }
+   else if (v instanceof Float) {
+      buf.put(TYPE_FLOAT);
+      buf.putFloat((Float) v);
+    }
+   else if (v instanceof Double) {
+      buf.put(TYPE_DOUBLE);
+      buf.putDouble((Double) v);
+    }
+   else if (v instanceof UUID) {
+      buf.put(TYPE_UUID);
+      putString(buf,v.toString());
+    }
+   else {
+      buf.put(TYPE_STRING);
+      putString(buf,String.valueOf(v));
+    }
+}
+
+
+private static void getValue(ByteBuffer buf,Metadata md,String key)
+{
+   byte type = buf.get();
+   switch (type) {
+      case TYPE_INT :
+         md.put(key,buf.getInt());
+         break;
+      case TYPE_LONG :
+         md.put(key,buf.getLong());
+         break;
+      case TYPE_FLOAT :
+         md.put(key,buf.getFloat());
+         break;
+      case TYPE_DOUBLE :
+         md.put(key,buf.getDouble());
+         break;
+      case TYPE_UUID :
+         md.put(key,UUID.fromString(getString(buf)));
+         break;
+      default :
+         md.put(key,getString(buf));
+         break;
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Approximate index management                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Enable the HNSW index.  m and efc trade build time and memory for
+ *      recall, ef trades search latency for recall, and stores with fewer
+ *      than min segments are always scanned.  The index is built in the
+ *      background; exact search is used until it is ready.
+ **/
+
+void enableIndex(int m,int efc,int ef,int min)
+{
+   store_lock.writeLock().lock();
+   try {
+      if (ann_index != null) return;
+      ann_links = m;
+      ann_construction = efc;
+      ann_ef = Math.max(1,ef);
+      ann_min = min;
+      ann_index = createIndex();
+      ann_ready = false;
+      startBuild(ann_index);
+    }
+   finally {
+      store_lock.writeLock().unlock();
+    }
+}
+
+
+void setSearchEf(int ef)                { ann_ef = Math.max(1,ef); }
+
+
+/**
+ *      Wait for the background index build to finish; used by the benchmark.
+ **/
+
+void waitForIndex() throws InterruptedException
+{
+   IndexBuilder ib = index_builder;
+   if (ib != null) ib.join();
+}
+
+
+private LimbaHnswIndex createIndex()
+{
+   return new LimbaHnswIndex(new StoreVectors(),ann_links,ann_construction);
+}
+
+
+private void startBuild(LimbaHnswIndex idx)
+{
+   index_builder = new IndexBuilder(idx);
+   index_builder.start();
+}
+
+
+/**
+ *      Deleted and replaced nodes degrade the graph; rebuild it in the
+ *      background (while still searching the old one) once enough of it
+ *      has changed.
+ **/
+
+private void checkRebuild()
+{
+   if (ann_index == null || !ann_ready || index_builder != null) return;
+
+   int churn = ann_index.getChurn();
+   if (churn < 1000 || churn < ann_index.size() / 4) return;
+
+   IvyLog.logD("LIMBA","Rebuilding local store index after " + churn + " changes");
+   ann_pending = createIndex();
+   startBuild(ann_pending);
+}
+
+
+private final class StoreVectors implements LimbaHnswIndex.VectorSource {
+
+   @Override public double dot(int slot,float [] q) {
+      return LimbaLocalStore.this.dot(slot,q);
+    }
+
+   @Override public double dot(int slot1,int slot2) {
+      return LimbaLocalStore.this.dot(slot1,slot2);
+    }
+
+}       // end of inner class StoreVectors
+
+
+private final class IndexBuilder extends Thread {
+
+   private LimbaHnswIndex build_index;
+
+   IndexBuilder(LimbaHnswIndex idx) {
+      super("LimbaIndexBuilder_" + vector_file.getName());
+      setDaemon(true);
+      build_index = idx;
+    }
+
+   @Override public void run() {
+      long start = System.currentTimeMillis();
+      int slot = 0;
+      for ( ; ; ) {
+         store_lock.readLock().lock();
+         try {
+            if (build_index != ann_index && build_index != ann_pending) break;
+            if (slot >= slot_data.size()) break;
+            int end = Math.min(slot + 256,slot_data.size());
+            for ( ; slot < end; ++slot) {
+               if (slot_data.get(slot) != null && !build_index.contains(slot)) {
+                  build_index.insert(slot);
+                }
+             }
+          }
+         finally {
+            store_lock.readLock().unlock();
+          }
+       }
+
+      store_lock.writeLock().lock();
+      try {
+         if (build_index == ann_pending) {
+            ann_index = ann_pending;
+            ann_pending = null;
+          }
+         if (build_index == ann_index) ann_ready = true;
+         if (index_builder == this) index_builder = null;
+       }
+      finally {
+         store_lock.writeLock().unlock();
+       }
+
+      IvyLog.logD("LIMBA","Built local store index of " + build_index.size() +
+            " segments in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+}       // end of inner class IndexBuilder
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Open/close/compaction                                                   */
+/*                                                                              */
+/********************************************************************************/
+
+private void open() throws IOException
+{
+   vector_channel = new RandomAccessFile(vector_file,"rw").getChannel();
+   segment_channel = new RandomAccessFile(segment_file,"rw").getChannel();
+   if (use_rerank) exact_channel = new RandomAccessFile(exact_file,"rw").getChannel();
+   else exact_file.delete();
+
+   if (vector_channel.size() >= VECTOR_HEADER && segment_channel.size() >= SEGMENT_HEADER) {
+      MappedByteBuffer hdr = vector_channel.map(FileChannel.MapMode.READ_ONLY,0,VECTOR_HEADER);
+      int magic = hdr.getInt(0);
+      int vers = hdr.getInt(4);
+      int dim = hdr.getInt(8);
+      int cap = hdr.getInt(12);
+      int mode = hdr.getInt(16);
+      int want = (use_quantize ? MODE_INT8 : MODE_FLOAT);
+      long need = VECTOR_HEADER + ((long) cap) * getRecordSize(dim);
+      long eneed = (use_rerank ? ((long) cap) * dim * 4 : 0);
+      if (magic == VECTOR_MAGIC && vers == VECTOR_VERSION && dim > 0 && mode == want &&
+            vector_channel.size() >= need &&
+            (exact_channel == null || exact_channel.size() >= eneed)) {
+         vector_dimension = dim;
+         record_size = getRecordSize(dim);
+         mapVectors(cap);
+         if (loadSegments()) {
+            IvyLog.logD("LIMBA","Opened local embedding store " + vector_file +
+                  " with " + id_map.size() + " segments");
+            checkCompact();
+            return;
+          }
+       }
+      IvyLog.logI("LIMBA","Local embedding store " + vector_file + " is invalid; resetting");
+      vector_dimension = 0;
+      record_size = 0;
+      slot_capacity = 0;
+      vector_buffer = null;
+      exact_buffer = null;
+      slot_data.clear();
+      id_map.clear();
+      free_slots.clear();
+      dead_records = 0;
+    }
+
+   vector_channel.truncate(0);
+   if (exact_channel != null) exact_channel.truncate(0);
+   segment_channel.truncate(0);
+   ByteBuffer hdr = ByteBuffer.allocate(SEGMENT_HEADER);
+   hdr.putInt(SEGMENT_MAGIC);
+   hdr.putInt(FORMAT_VERSION);
+   hdr.flip();
+   segment_channel.write(hdr,0);
+   segment_length = SEGMENT_HEADER;
+}
+
+
+private boolean loadSegments() throws IOException
+{
+   long len = segment_channel.size();
+   if (len > Integer.MAX_VALUE) return false;
+   MappedByteBuffer buf = segment_channel.map(FileChannel.MapMode.READ_ONLY,0,len);
+   if (buf.getInt() != SEGMENT_MAGIC || buf.getInt() != FORMAT_VERSION) return false;
+
+   long good = buf.position();
+   try {
+      while (buf.hasRemaining()) {
+         byte op = buf.get();
+         if (op == OP_ADD) {
+            int slot = buf.getInt();
+            String id = getString(buf);
+            int nmd = buf.getShort();
+            Metadata md = new Metadata();
+            for (int i = 0; i < nmd; ++i) {
+               String key = getString(buf);
+               getValue(buf,md,key);
+             }
+            SlotData sd = new SlotData(id,md);
+            int tlen = buf.getInt();
+            if (tlen >= 0) {
+               if (tlen > buf.remaining()) throw new BufferUnderflowException();
+               sd.text_offset = buf.position();
+               sd.text_length = tlen;
+               buf.position(buf.position() + tlen);
+             }
+            if (slot < 0 || slot >= slot_capacity) throw new BufferUnderflowException();
+            while (slot_data.size() <= slot) slot_data.add(null);
+            Integer old = id_map.put(id,slot);
+            if (old != null && old != slot) {
+               slot_data.set(old,null);
+               ++dead_records;
+             }
+            if (slot_data.get(slot) != null) {
+               id_map.remove(slot_data.get(slot).slot_id);
+               ++dead_records;
+             }
+            slot_data.set(slot,sd);
+          }
+         else if (op == OP_DEL) {
+            String id = getString(buf);
+            Integer slot = id_map.remove(id);
+            if (slot != null) {
+               slot_data.set(slot,null);
+               ++dead_records;
+             }
+            ++dead_records;
+          }
+         else break;
+         good = buf.position();
+       }
+    }
+   catch (BufferUnderflowException e) {
+      // partial record from an interrupted write
+    }
+
+   if (good < len) {
+      IvyLog.logI("LIMBA","Truncating local embedding store log at " + good);
+      segment_channel.truncate(good);
+    }
+   segment_length = good;
+
+   for (int i = 0; i < slot_data.size(); ++i) {
+      if (slot_data.get(i) == null) free_slots.add(i);
+    }
+
+   return true;
+}
+
+
+/**
+ *      Rewrite the segment log with only the live records once most of it
+ *      is dead.  Vectors stay where they are since slots are reused.
+ **/
+
+private void checkCompact() throws IOException
+{
+   if (dead_records < 1000 || dead_records < id_map.size()) return;
+
+   File tmp = new File(segment_file.getPath() + ".tmp");
+   List<SlotData> live = new ArrayList<>();
+   List<String> texts = new ArrayList<>();
+   for (SlotData sd : slot_data) {
+      if (sd == null) continue;
+      live.add(sd);
+      texts.add(readText(sd));
+    }
+
+   long [] oldoffsets = new long[live.size()];
+   ByteBuffer buf = ByteBuffer.allocate(65536);
+   buf.putInt(SEGMENT_MAGIC);
+   buf.putInt(FORMAT_VERSION);
+   for (int i = 0; i < live.size(); ++i) {
+      SlotData sd = live.get(i);
+      oldoffsets[i] = sd.text_offset;
+      sd.text_offset = -1;
+      buf = appendAdd(buf,id_map.get(sd.slot_id),sd,texts.get(i));
+    }
+   buf.flip();
+
+   boolean ok = false;
+   try {
+      try (FileChannel fc = new RandomAccessFile(tmp,"rw").getChannel()) {
+         fc.truncate(0);
+         while (buf.hasRemaining()) fc.write(buf);
+         fc.force(true);
+       }
+      segment_channel.force(true);
+      ok = tmp.renameTo(segment_file);
+    }
+   finally {
+      if (!ok) {
+         tmp.delete();
+         for (int i = 0; i < live.size(); ++i) live.get(i).text_offset = oldoffsets[i];
+       }
+    }
+   if (!ok) {
+      IvyLog.logI("LIMBA","Can't compact local embedding store log " + segment_file);
+      return;
+    }
+
+   segment_channel.close();
+   segment_channel = new RandomAccessFile(segment_file,"rw").getChannel();
+   segment_length = segment_channel.size();
+   dead_records = 0;
+   IvyLog.logD("LIMBA","Compacted local embedding store log to " + live.size() + " segments");
+}
+
+
+void close()
+{
+   try {
+      if (vector_buffer != null) vector_buffer.force();
+      if (vector_channel != null) vector_channel.close();
+      if (exact_buffer != null) exact_buffer.force();
+      if (exact_channel != null) exact_channel.close();
+      if (segment_channel != null) {
+         segment_channel.force(true);
+         segment_channel.close();
+       }
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Problem closing local embedding store",e);
+    }
+   vector_buffer = null;
+   vector_channel = null;
+   exact_buffer = null;
+   exact_channel = null;
+   segment_channel = null;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Per-slot information                                                    */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class SlotData {
+
+   private String slot_id;
+   private Metadata slot_metadata;
+   private long text_offset;
+   private int text_length;
+
+   SlotData(String id,Metadata md) {
+      slot_id = id;
+      slot_metadata = md;
+      text_offset = -1;
+      text_length = 0;
+    }
+
+}       // end of inner class SlotData
+
+
+
+}       // end of class LimbaLocalStore
+
+
+
+
+/* end of LimbaLocalStore.java */
@@ -25,10 +25,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -38,16 +36,20 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -55,23 +57,34 @@ import org.json.JSONObject;
 import org.w3c.dom.Element;
 
 import dev.langchain4j.chain.ConversationalRetrievalChain;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.exception.UnresolvedModelServerException;
 import dev.langchain4j.memory.ChatMemory;
 import dev.langchain4j.model.anthropic.AnthropicChatModel;
+import dev.langchain4j.model.anthropic.AnthropicStreamingChatModel;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingHandle;
 import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
+import dev.langchain4j.model.googleai.GoogleAiGeminiStreamingChatModel;
 import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
 import dev.langchain4j.rag.content.Content;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.service.AiServices;
+import dev.langchain4j.service.TokenStream;
 import io.github.ollama4j.OllamaAPI;
 import io.github.ollama4j.models.response.Model;
 import io.github.ollama4j.utils.Options;
 import io.github.ollama4j.utils.OptionsBuilder;
 import edu.brown.cs.ivy.exec.IvyExec;
-import edu.brown.cs.ivy.file.IvyFormat;
 import edu.brown.cs.ivy.file.IvyLog;
 import edu.brown.cs.ivy.jcomp.JcompControl;
 import edu.brown.cs.ivy.mint.MintControl;
@@ -124,8 +137,10 @@ private String gemini_key;
 private boolean raw_flag;
 private Options generate_options;
 private LimbaCommandFactory command_factory;
-private LimbaRag rag_model;
+private volatile LimbaRag rag_model;
+private RagStarter rag_starter;
 private Map<String,String> key_map;
+private volatile int key_version;
 private boolean remote_files;
 private File log_file;
 private IvyLog.LogLevel log_level;
@@ -134,13 +149,25 @@ private JcompControl jcomp_main;
 private LimbaMonitor msg_server;
 private String user_style;
 private String user_context;
-private Set<String> inited_models;
 private String workspace_name;
-private Map<String,LimbaChatter> chat_interfaces;
-private PrintWriter limba_transcript;
+private LimbaChainRegistry<LimbaChatter> chat_interfaces;
+private LimbaChainRegistry<LimbaStreamer> stream_interfaces;
+private Map<ChatMemory,Long> memory_ids;
+private boolean use_streaming;
+private LimbaTranscript limba_transcript;
 private Lock rag_lock;
+private LimbaResponseCache response_cache;
+private LimbaBackendPool backend_pool;
+private LimbaHedger limba_hedger;
+private LimbaScheduler llm_scheduler;
+private LimbaRetryPolicy retry_policy;
+private LimbaExecutor limba_executor;
+private LimbaWarmer limba_warmer;
+private long start_time;
 
 private static final String SPLIT_PATTERN;
+
+private static AtomicLong memory_counter = new AtomicLong(0);
 private static boolean http_log = false;
 
 static {
@@ -196,10 +223,12 @@ private LimbaMain(String [] args)
    input_file = null;
    raw_flag = false;
    rag_model = null;
+   rag_starter = null;
    generate_options = new OptionsBuilder().build();
    command_factory = null;
    key_map = new HashMap<>();
    key_map.put("LANGUAGE","java");
+   key_version = 0;
    remote_files = false;
    jcomp_main = new JcompControl();
    user_style = "";
@@ -209,9 +238,19 @@ private LimbaMain(String [] args)
    openai_key = null;
    gemini_key = null;
    model_map = new HashMap<>();
-   inited_models = new HashSet<>();
-   chat_interfaces = new HashMap<>();
-   limba_transcript = null;
+   chat_interfaces = new LimbaChainRegistry<>(this,"CHAT");
+   stream_interfaces = new LimbaChainRegistry<>(this,"STREAM");
+   memory_ids = new WeakHashMap<>();
+   use_streaming = getProperty("Limba.stream.enable",true);
+   limba_transcript = new LimbaTranscript(this);
+   response_cache = null;
+   backend_pool = null;
+   limba_hedger = null;
+   llm_scheduler = null;
+   retry_policy = null;
+   limba_executor = new LimbaExecutor(this);
+   limba_warmer = null;
+   start_time = System.currentTimeMillis();
 
    scanArgs(args);
 }
@@ -240,10 +279,13 @@ String getUrl()
 
 Map<String,String> getKeyMap()          { return key_map; }
 
+int getKeyMapVersion()                  { return key_version; }
+
 void setKeyMap(String key,String val)
 {
    if (val == null) key_map.remove(key);
    else key_map.put(key,val);
+   ++key_version;
 }
 
 boolean getRemoteFileAccess()           { return remote_files; }
@@ -263,6 +305,20 @@ void setupMessageServer(String mintid)
 
 JcompControl getJcompControl()          { return jcomp_main; }
 
+LimbaResponseCache getResponseCache()   { return response_cache; }
+
+LimbaBackendPool getBackendPool()       { return backend_pool; }
+
+LimbaHedger getHedger()                 { return limba_hedger; }
+
+LimbaScheduler getScheduler()           { return llm_scheduler; }
+
+LimbaRetryPolicy getRetryPolicy()       { return retry_policy; }
+
+LimbaExecutor getExecutor()             { return limba_executor; }
+
+LimbaWarmer getWarmer()                 { return limba_warmer; }
+
 String getUserStyle()                   { return user_style; }
 
 String getUserContext()                 { return user_context; }
@@ -586,18 +642,30 @@ private void process()
    IvyLog.logD("LIMBA","Running with " + getUrl() + " " + getModel() + " " +
          new Date());
 
-   boolean fg = startOllama(ollama_host,ollama_port,ollama_usehost);
-   if (!fg) {
-      IvyLog.logD("LIMBA","Try alternate host " + alt_host + ":" + alt_port);
-      if (alt_host != null && alt_port != 0) {
-         fg = startOllama(alt_host,alt_port,alt_usehost);
-         if (fg) {
-            ollama_host = alt_host;
-            ollama_port = alt_port;
-            ollama_usehost = alt_usehost;
-          }
+   retry_policy = new LimbaRetryPolicy(this);
+   backend_pool = new LimbaBackendPool(this);
+   backend_pool.addBackend(ollama_host,ollama_port,ollama_usehost,
+         getProperty("Limba.ollama.weight",1));
+   if (alt_host != null && alt_port != 0) {
+      backend_pool.addBackend(alt_host,alt_port,alt_usehost,
+            getProperty("Limba.ollama.altweight",1));
+    }
+   backend_pool.addBackends(getProperty("Limba.ollama.hosts",null));
+   backend_pool.checkBackends();
+   
+   boolean fg = false;
+   for (LimbaBackend lb : backend_pool.getHealthyBackends()) {
+      fg = startOllama(lb.getHost(),lb.getPort(),lb.getUseHost());
+      if (fg) {
+         ollama_host = lb.getHost();
+         ollama_port = lb.getPort();
+         ollama_usehost = lb.getUseHost();
+         break;
        }
     }
+   backend_pool.start();
+   llm_scheduler = new LimbaScheduler(this,backend_pool);
+   limba_hedger = new LimbaHedger(this,backend_pool,llm_scheduler,limba_executor);
    
    anthropic_key = getProperty("Limba.anthropic.api.key",null);
    if (anthropic_key == null || anthropic_key.isEmpty() || anthropic_key.equals("*")) {
@@ -620,9 +688,16 @@ private void process()
    if (getModel() != null) {
       setModel(ollama_model);
     }
+   
+   limba_warmer = new LimbaWarmer(this,backend_pool,start_time);
+   if (fg) {
+      limba_warmer.start(model_type == LimbaModelType.OLLAMA_MODEL ? ollama_model : null);
+    }
 
    rag_model = null;
    chat_interfaces.clear();
+   stream_interfaces.clear();
+   response_cache = new LimbaResponseCache(this);
 
    command_factory = new LimbaCommandFactory(this);
 
@@ -641,8 +716,7 @@ private void process()
 
    if (server_mode) {
       if (getProperty("Limba.start.rag",true)) {
-         RagStarter rb = new RagStarter();
-         rb.start();
+         startRag();
        }
       boolean haveping = msg_server.sendPing();
       synchronized (this) {
@@ -657,6 +731,7 @@ private void process()
             else if (!haveping && chk) haveping = true;
           }
        }
+      transcriptClose();
     }
 }
 
@@ -670,24 +745,13 @@ private void process()
 
 void transcriptStart(String nm,boolean append)
 {
-   IvyLog.logD("LIMBA","Start transcript " + nm);
-   File ft = new File(nm);
-   boolean fg = ft.exists() && append;
-   try {
-      limba_transcript = new PrintWriter(new FileWriter(ft,append),true);
-      if (!fg) {
-         transcript("<html>");
-       }
-      transcriptMessage(new Date().toString());
-    }
-   catch (IOException e) {
-      IvyLog.logE("LIMBA","Can't open transcript file " + ft);
-    }
+   limba_transcript.start(nm,append);
+   transcriptMessage(new Date().toString());
 }
 
 private void transcriptModel() 
 {
-   if (limba_transcript != null) {
+   if (limba_transcript.isActive()) {
       if (ollama_model != null) {
          transcriptMessage("Using model " + ollama_model);
        }
@@ -698,56 +762,51 @@ private void transcriptModel()
 
 void transcript(String cnts)
 {
-   if (limba_transcript == null) return;
-   
-   limba_transcript.println(cnts);
+   limba_transcript.addRaw(cnts);
 }
 
 
 void transcriptResponse(String cnts)
 {
-   if (limba_transcript == null) return;
-   
-   String text = IvyFormat.formatText(cnts);
-   String disp = "<div align='left'><p><font color='black'>" + text +
-         "</font></p></div>";
-   transcript(disp);
-   
-   transcript("<br><hl><br>");
+   limba_transcript.addResponse(cnts);
 }
 
 
 void transcriptRequest(String cnts)
 {
-   if (limba_transcript == null) return;
-   
-   String text = IvyFormat.formatText(cnts);
-   String disp = "<div align='right'><p style='text-indent: 50px;'><font color='blue'>" + text + 
-         "</font></p></div>";
-   transcript(disp);
+   limba_transcript.addRequest(cnts);
 }
 
 
 void transcriptAgent(String cnts)
 {
-   if (limba_transcript == null) return;
+   if (!limba_transcript.isActive()) return;
    
-   String text = IvyFormat.formatText(cnts);
    IvyLog.logD("LIMBA","Agent " + cnts);
-   String disp = "<br><div align='left'><p><font color='darkmagenta'>AGENT: " + text +
-         "</font></p></div>";
-   transcript(disp);
+   limba_transcript.addAgent(cnts);
 }
 
 
 void transcriptMessage(String cnts)
 {
-   if (limba_transcript == null) return;
-   
-   String text = IvyFormat.formatText(cnts);
-   String disp = "<br><div align='center'><p><font color='darkgreen'>" + text +
-         "</font></p></div><br>";
-   transcript(disp);
+   limba_transcript.addMessage(cnts);
+}
+
+
+/**
+ *      Note that the current request is finished, letting its section of
+ *      the transcript be written.
+ **/
+
+void transcriptEnd()
+{
+   limba_transcript.endRequest();
+}
+
+
+void transcriptClose()
+{
+   limba_transcript.close();
 }
 
 
@@ -767,6 +826,7 @@ private void processXmlFile(FileReader fr)
          Element xml = IvyXml.convertStringToXml(xmlstr);
          try {
             LimbaCommand cmd = setupLimbaCommand(xml);
+            LimbaRequest.begin(this,"FILE",cmd.getCommandName());
             try (IvyXmlWriter xw = new IvyXmlWriter()) {
                xw.begin("RESULT");
                cmd.process(xw);
@@ -778,6 +838,10 @@ private void processXmlFile(FileReader fr)
                IvyLog.logE("LIMBA",
                    "Problem prcessing command " + cmd.getCommandName(),t);
              }
+            finally {
+               transcriptEnd();
+               LimbaRequest.end();
+             }
           }
          catch (LimbaException e) {
             IvyLog.logE("LIMBA","Bad command",e);
@@ -810,6 +874,35 @@ LimbaCommand setupLimbaCommand(Element xml) throws LimbaException
 LimbaRag getRagModel()                  { return rag_model; }
 
 
+boolean isRagStarting()
+{
+   RagStarter rs = rag_starter;
+   return rs != null && rs.isAlive();
+}
+
+
+/**
+ *      Find the project sources and start indexing them in the background.
+ *      Queries made before the index is ready use whatever is available.
+ **/
+
+void startRag()
+{
+   if (rag_model != null) return;
+   
+   rag_lock.lock();
+   try {
+      if (rag_model == null && !isRagStarting()) {
+         rag_starter = new RagStarter();
+         rag_starter.start();
+       }
+    }
+   finally {
+      rag_lock.unlock();
+    }
+}
+
+
 
 void setupRag()
 {
@@ -821,13 +914,14 @@ void setupRag()
    else {
       List<File> sources = msg_server.getSources();
       IvyLog.logD("LIMBA","Found " + sources.size() + " sources");
-      int mxsrc = getProperty("Limba.rag.max",10000);
-      if (sources != null && !sources.isEmpty() && 
-            workspace_name != null && sources.size() <= mxsrc) {
+      // large workspaces are indexed in tiers (see LimbaRag)
+      if (sources != null && !sources.isEmpty() && workspace_name != null) {
          rag_lock.lock();
          try {
             if (rag_model == null) {
-               rag_model = new LimbaRag(this,sources,workspace_name); 
+               LimbaRag rag = new LimbaRag(this,sources,workspace_name); 
+               rag.startIndexing();
+               rag_model = rag;
              }
           }
          finally {
@@ -877,10 +971,14 @@ String askOllamaWithRetry(String cmd0,boolean usectx) throws Exception
             break;
           }
        }
+      catch (LimbaException e) {
+         throw e;
+       }
       catch (Exception e) {
-         if (i == 2) throw e;
+         if (i == 2 || !retry_policy.canRetry()) throw e;
          IvyLog.logD("LIMBA","Ollama exception",e);
        }
+      if (!retry_policy.canRetry()) break;
       IvyLog.logD("LIMBA","Need to retry the query to ollama");
       if (i == 0) { 
          cmd += "\nThe previous response included a failed attempt at making an agent call. ";
@@ -895,19 +993,52 @@ String askOllamaWithRetry(String cmd0,boolean usectx) throws Exception
 String askOllama(String cmd0,boolean usectx,ChatMemory history,
       EnumSet<LimbaToolSet> tools,Map<String,?> context,String model)
    throws Exception
+{
+   return askOllama(cmd0,usectx,history,tools,context,model,true);
+}
+
+
+/**
+ *      Asynchronous version of askOllama.  The query, including any tool
+ *      calls the model makes, runs on the shared executor under the
+ *      caller's request context and the future completes with the response.
+ *      If a code consumer is given the response is streamed and each code
+ *      block of the given type is passed on as it arrives.
+ **/
+
+CompletableFuture<String> askOllamaAsync(String cmd0,boolean usectx,ChatMemory history,
+      EnumSet<LimbaToolSet> tools,Map<String,?> context,String model,
+      boolean usecache,String codetype,Consumer<String> codeconsumer)
+{
+   return limba_executor.submit("LimbaAsk_" + Thread.currentThread().getName(),() -> {
+      if (codeconsumer == null) {
+         return askOllama(cmd0,usectx,history,tools,context,model,usecache);
+       }
+      return askOllamaStreaming(cmd0,usectx,history,tools,context,model,usecache,
+            codetype,codeconsumer);
+    });
+}
+
+
+String askOllama(String cmd0,boolean usectx,ChatMemory history,
+      EnumSet<LimbaToolSet> tools,Map<String,?> context,String model,
+      boolean usecache)
+   throws Exception
 {
    long start = System.currentTimeMillis();
    
-   String cmd = cmd0;
-   if (user_style != null && cmd != null) {
-      cmd = cmd.replace("$STYLE",user_style);
-    }
-   if (user_context != null && cmd != null) {
-      cmd = cmd.replace("$CONTEXT",user_context);
-    }
+   String cmd = expandPrompt(cmd0);
    
    if (model == null) model = getModel();
    if (model == null) return null;
+   
+   String cachekey = null;
+   if (usecache) {
+      cachekey = getCacheKey(cmd,usectx,history,tools,context,model);
+      String resp = getCachedResponse(cachekey,cmd,history,start);
+      if (resp != null) return resp;
+    }
+   
    initializeModel(model);
 
    IvyLog.logD("LIMBA","Query " + usectx + " " + getModel() + " " +
@@ -918,19 +1049,40 @@ String askOllama(String cmd0,boolean usectx,ChatMemory history,
    transcriptRequest(cmd);
 
    for (int i = 0; i < 3; ++i) {
+      if (i > 0 && !retry_policy.canRetry()) break;
+      retry_policy.startAttempt();
+      LimbaBackend backend = acquireBackend();
+      boolean ok = false;
+      boolean hedged = false;
       try {
-         String resp = getChain(history,usectx,tools,
-               context,null).chat(cmd);
+         String resp = null;
+         if (limba_hedger.canHedge(backend,history != null,tools)) {
+            // the hedger releases the backend when its request really ends
+            hedged = true;
+            resp = limba_hedger.execute(backend,(LimbaBackend lb) ->
+               getChain(null,usectx,tools,context,null,lb).chat(cmd));
+          }
+         else {
+            long t0 = System.currentTimeMillis();
+            resp = getChain(history,usectx,tools,
+                  context,null,backend).chat(cmd);
+            if (backend != null) {
+               limba_hedger.recordLatency(System.currentTimeMillis() - t0);
+             }
+          }
+         ok = true;
          IvyLog.logD("LIMBA","Context Response: " + resp);
          IvyLog.logD("LIMBA","------------------------\n\n");
+         limba_warmer.noteResponse();
          if (resp == null) resp = NO_RESPONSE; 
+         else if (cachekey != null) response_cache.store(cachekey,resp);
          transcriptResponse(resp);
          long time = System.currentTimeMillis() - start;
          transcriptMessage("Time: " + time + " ms");
          return resp;
        }
       catch (UnresolvedModelServerException e) {
-         if (i != 2) {
+         if (i != 2 && retry_policy.canRetry()) {
             IvyLog.logE("LIMBA","Query failed, will retry",e);
           }
          else {
@@ -938,18 +1090,28 @@ String askOllama(String cmd0,boolean usectx,ChatMemory history,
           }
        }
       catch (RuntimeException e) {
-         if (e.getMessage().contains("trying to execute")) {
-            if (i != 2) {
+         // tool and output errors don't count against the backend's circuit
+         ok = !LimbaRetryPolicy.isBackendFailure(e);
+         String msg = e.getMessage();
+         if (msg != null && msg.contains("trying to execute")) {
+            if (i != 2 && retry_policy.canRetry()) {
                IvyLog.logE("LIMBA","Query failed, will retry",e);
              }
             else {
                throw e;
              }
           }
+         else {
+            IvyLog.logE("LIMBA","Problem with chained response",e);
+          }
        }
       catch (Throwable t) {
+         ok = !LimbaRetryPolicy.isBackendFailure(t);
          IvyLog.logE("LIMBA","Problem with chained response",t);
        }
+      finally {
+         if (!hedged) releaseBackend(backend,ok);
+       }
     }
    
    String rslt = NO_RESPONSE;
@@ -958,8 +1120,186 @@ String askOllama(String cmd0,boolean usectx,ChatMemory history,
 }
 
 
+/**
+ *      Ask a query, streaming the response.  Each complete code block of
+ *      the given type is passed to the consumer as soon as its closing
+ *      fence arrives so the caller can start working on it while the rest
+ *      of the response is being generated.  The full response is returned.
+ **/
+
+String askOllamaStreaming(String cmd0,boolean usectx,ChatMemory history,
+      EnumSet<LimbaToolSet> tools,Map<String,?> context,String model,
+      boolean usecache,String codetype,Consumer<String> codeconsumer)
+   throws Exception
+{
+   LimbaFenceParser parser = new LimbaFenceParser(codetype,codeconsumer);
+   
+   if (!use_streaming) {
+      String resp = askOllama(cmd0,usectx,history,tools,context,model,usecache);
+      parser.addText(resp);
+      return resp;
+    }
+   
+   long start = System.currentTimeMillis();
+   
+   String cmd = expandPrompt(cmd0);
+   
+   if (model == null) model = getModel();
+   if (model == null) return null;
+   
+   String cachekey = null;
+   if (usecache) {
+      cachekey = getCacheKey(cmd,usectx,history,tools,context,model);
+      String resp = getCachedResponse(cachekey,cmd,history,start);
+      if (resp != null) {
+         parser.addText(resp);
+         return resp;
+       }
+    }
+   
+   initializeModel(model);
+   retry_policy.startAttempt();
+   
+   IvyLog.logD("LIMBA","Streaming query " + usectx + " " + model + " " +
+         tools + " " + Thread.currentThread().getName() + ":\n" + cmd);
+   
+   LimbaBackend backend = acquireBackend();
+   String resp = null;
+   boolean complete = false;
+   boolean failed = false;
+   AtomicBoolean abandoned = new AtomicBoolean(false);
+   AtomicReference<StreamingHandle> handle = new AtomicReference<>();
+   try {
+      LimbaStreamer streamer = getStreamingChain(history,usectx,tools,context,model,backend);
+      if (streamer != null) {
+         CompletableFuture<String> done = new CompletableFuture<>();
+         streamer.chat(cmd)
+            .onPartialResponseWithContext((PartialResponse pr,PartialResponseContext pc) -> {
+                handle.set(pc.streamingHandle());
+                if (abandoned.get()) pc.streamingHandle().cancel();
+                else parser.addText(pr.text());
+              })
+            .onCompleteResponse((ChatResponse r) -> done.complete(parser.getText()))
+            .onError((Throwable t) -> done.completeExceptionally(t))
+            .start();
+         resp = done.get(15,TimeUnit.MINUTES);
+         complete = true;
+       }
+    }
+   catch (Throwable t) {
+      IvyLog.logE("LIMBA","Problem with streamed response",t);
+      failed = LimbaRetryPolicy.isBackendFailure(t);
+      // stop the stream and ignore anything it still sends
+      abandoned.set(true);
+      parser.close();
+      StreamingHandle sh = handle.get();
+      if (sh != null) sh.cancel();
+      if (parser.getBlockCount() > 0) resp = parser.getText();
+    }
+   finally {
+      releaseBackend(backend,!failed);
+    }
+   
+   if (resp == null) {
+      // nothing usable was streamed (so no code was passed on); fall back
+      // to the blocking query with a fresh parser
+      if (!retry_policy.canRetry()) return NO_RESPONSE;
+      resp = askOllama(cmd0,usectx,history,tools,context,model,false);
+      LimbaFenceParser fallback = new LimbaFenceParser(codetype,codeconsumer);
+      fallback.addText(resp);
+      return resp;
+    }
+   
+   IvyLog.logD("LIMBA","Streamed Response: " + resp);
+   limba_warmer.noteResponse();
+   transcriptRequest(cmd);
+   if (resp.isEmpty()) resp = NO_RESPONSE;
+   else if (cachekey != null && complete) response_cache.store(cachekey,resp);
+   transcriptResponse(resp);
+   long time = System.currentTimeMillis() - start;
+   transcriptMessage("Time: " + time + " ms");
+   
+   return resp;
+}
+
+
+private String expandPrompt(String cmd0)
+{
+   String cmd = cmd0;
+   if (user_style != null && cmd != null) {
+      cmd = cmd.replace("$STYLE",user_style);
+    }
+   if (user_context != null && cmd != null) {
+      cmd = cmd.replace("$CONTEXT",user_context);
+    }
+   
+   return cmd;
+}
+
+
+private String getCacheKey(String cmd,boolean usectx,ChatMemory history,
+      EnumSet<LimbaToolSet> tools,Map<String,?> context,String model)
+{
+   if (response_cache == null || !response_cache.canCache(tools)) return null;
+   
+   // answers from tools that read the source are tied to the current
+   // version of the source files, which the index fingerprint identifies
+   boolean source = response_cache.usesSource(tools);
+   if (source && rag_model == null) return null;
+   
+   String ragid = null;
+   if ((usectx || source) && rag_model != null) {
+      // don't remember answers based on a partial index
+      if (!rag_model.isReady()) return null;
+      ragid = rag_model.getFingerprint();
+      if (!usectx) ragid = "SOURCE:" + ragid;
+    }
+   
+   return response_cache.computeKey(cmd,model,tools,context,ragid,history);
+}
+
+
+private String getCachedResponse(String cachekey,String cmd,ChatMemory history,long start)
+{
+   if (cachekey == null) return null;
+   
+   String resp = response_cache.lookup(cachekey);
+   if (resp == null) return null;
+   
+   if (history != null) {
+      history.add(UserMessage.from(cmd));
+      history.add(AiMessage.from(resp));
+    }
+   transcriptRequest(cmd);
+   transcriptResponse(resp);
+   long time = System.currentTimeMillis() - start;
+   transcriptMessage("Time: " + time + " ms (cached)");
+   
+   return resp;
+}
+
+
+private LimbaBackend acquireBackend() throws InterruptedException, LimbaException
+{
+   retry_policy.checkAvailable(model_type);
+   
+   LimbaBackend lb = llm_scheduler.acquire(model_type == LimbaModelType.OLLAMA_MODEL);
+   if (lb == null) retry_policy.startApiRequest(model_type);
+   
+   return lb;
+}
+
+
+private void releaseBackend(LimbaBackend lb,boolean ok)
+{
+   if (lb == null) retry_policy.endApiRequest(model_type,ok);
+   llm_scheduler.release(lb,ok);
+}
+
+
 private LimbaChatter getChain(ChatMemory mem,boolean usectx,
-      EnumSet<LimbaToolSet> toolids,Map<String,?> context,String model)
+      EnumSet<LimbaToolSet> toolids,Map<String,?> context,String model,
+      LimbaBackend backend)
 {
    if (model == null) model = getModel();
    if (model_type == null) return null;
@@ -967,11 +1307,26 @@ private LimbaChatter getChain(ChatMemory mem,boolean usectx,
    if (toolids == null) {
       toolids = EnumSet.of(LimbaToolSet.PROJECT);
     }
-   String key = getKey(toolids,context,model);
+   String key = getKey(toolids,usectx,mem,context,model,backend);
+   String debugid = getDebugId(toolids,context);
+   String cmodel = model;
+   EnumSet<LimbaToolSet> ctools = toolids;
 
-   LimbaChatter rslt = chat_interfaces.get(key);
-   if (rslt != null) return rslt;
-   
+   if (isRagPending(usectx,toolids)) {
+      // chain would lack retrieval and project tools; use it once only
+      return buildChain(mem,usectx,toolids,context,model,backend,key);
+    }
+
+   return chat_interfaces.get(key,debugid,() ->
+         buildChain(mem,usectx,ctools,context,cmodel,backend,key));
+}
+
+
+private LimbaChatter buildChain(ChatMemory mem,boolean usectx,
+      EnumSet<LimbaToolSet> toolids,Map<String,?> context,String model,
+      LimbaBackend backend,String key)
+{
+   LimbaChatter rslt = null;
    ChatModel chat = null;
    
    IvyLog.logD("LIMBA","Get chain with " + model_type + " " +
@@ -980,8 +1335,8 @@ private LimbaChatter getChain(ChatMemory mem,boolean usectx,
    switch (model_type) {
       case OLLAMA_MODEL :
          chat = OllamaChatModel.builder()
-            .baseUrl(getUrl())
-            .maxRetries(3)
+            .baseUrl(backend == null ? getUrl() : backend.getUrl())
+            .maxRetries(retry_policy.getModelRetries())
             .timeout(Duration.ofMinutes(15))
             .logRequests(http_log)
             .logResponses(http_log)
@@ -995,7 +1350,7 @@ private LimbaChatter getChain(ChatMemory mem,boolean usectx,
             .logRequests(http_log)
             .logResponses(http_log)
             .timeout(Duration.ofMinutes(15))
-            .maxRetries(3)
+            .maxRetries(retry_policy.getModelRetries())
             .build();
          break;
       case ANTHROPIC_MODEL :
@@ -1005,7 +1360,7 @@ private LimbaChatter getChain(ChatMemory mem,boolean usectx,
             .logRequests(http_log)
             .logResponses(http_log)
             .timeout(Duration.ofMinutes(15))
-            .maxRetries(3)
+            .maxRetries(retry_policy.getModelRetries())
             .build();
          break;
       case GEMINI_MODEL :
@@ -1015,7 +1370,7 @@ private LimbaChatter getChain(ChatMemory mem,boolean usectx,
             .logRequests(http_log)
             .logResponses(http_log)
             .timeout(Duration.ofMinutes(15))
-            .maxRetries(3)
+            .maxRetries(retry_policy.getModelRetries())
             .allowCodeExecution(true)
             .build();
          break;
@@ -1026,16 +1381,7 @@ private LimbaChatter getChain(ChatMemory mem,boolean usectx,
    ConversationalRetrievalChain.Builder bldr = ConversationalRetrievalChain.builder();
    bldr.chatModel(chat);
 
-   ContentRetriever cr = null;
-   if (rag_model == null) {
-      setupRag();
-    }
-   if (rag_model != null && usectx) {
-      cr = rag_model.getContentRetriever();
-    }
-   if (cr == null) {
-      cr = new EmptyContentRetriever();
-    }
+   ContentRetriever cr = getRetriever(usectx);
 
    bldr.contentRetriever(cr);
    if (mem != null) {
@@ -1071,12 +1417,141 @@ private LimbaChatter getChain(ChatMemory mem,boolean usectx,
    
    IvyLog.logD("LIMBA","Chat interface set for " + key);
 
-   chat_interfaces.put(key,rslt);
+   return rslt;
+}
+
 
+
+private LimbaStreamer getStreamingChain(ChatMemory mem,boolean usectx,
+      EnumSet<LimbaToolSet> toolids,Map<String,?> context,String model,
+      LimbaBackend backend)
+{
+   if (model == null) model = getModel();
+   if (model_type == null) return null;
+   
+   if (toolids == null) {
+      toolids = EnumSet.of(LimbaToolSet.PROJECT);
+    }
+   String key = getKey(toolids,usectx,mem,context,model,backend);
+   String debugid = getDebugId(toolids,context);
+   String cmodel = model;
+   EnumSet<LimbaToolSet> ctools = toolids;
+   
+   if (isRagPending(usectx,toolids)) {
+      return buildStreamingChain(mem,usectx,toolids,context,model,backend,key);
+    }
+   
+   return stream_interfaces.get(key,debugid,() ->
+         buildStreamingChain(mem,usectx,ctools,context,cmodel,backend,key));
+}
+
+
+private LimbaStreamer buildStreamingChain(ChatMemory mem,boolean usectx,
+      EnumSet<LimbaToolSet> toolids,Map<String,?> context,String model,
+      LimbaBackend backend,String key)
+{
+   LimbaStreamer rslt = null;
+   StreamingChatModel chat = null;
+   switch (model_type) {
+      case OLLAMA_MODEL :
+         chat = OllamaStreamingChatModel.builder()
+            .baseUrl(backend == null ? getUrl() : backend.getUrl())
+            .timeout(Duration.ofMinutes(15))
+            .logRequests(http_log)
+            .logResponses(http_log)
+            .modelName(model)
+            .build();
+         break;
+      case OPENAI_MODEL :
+         chat = OpenAiStreamingChatModel.builder()
+            .apiKey(openai_key)
+            .modelName(model)
+            .logRequests(http_log)
+            .logResponses(http_log)
+            .timeout(Duration.ofMinutes(15))
+            .build();
+         break;
+      case ANTHROPIC_MODEL :
+         chat = AnthropicStreamingChatModel.builder()
+            .apiKey(anthropic_key)
+            .modelName(model)
+            .logRequests(http_log)
+            .logResponses(http_log)
+            .timeout(Duration.ofMinutes(15))
+            .build();
+         break;
+      case GEMINI_MODEL :
+         chat = GoogleAiGeminiStreamingChatModel.builder()
+            .apiKey(gemini_key)
+            .modelName(model)
+            .logRequests(http_log)
+            .logResponses(http_log)
+            .timeout(Duration.ofMinutes(15))
+            .build();
+         break;
+      default :
+         return null;
+    }
+   
+   ContentRetriever cr = getRetriever(usectx);
+   List<Object> tools = getTools(toolids,context);
+   
+   try {
+      AiServices<LimbaStreamer> aib = AiServices.builder(LimbaStreamer.class)
+         .streamingChatModel(chat)
+         .contentRetriever(cr);
+      if (!tools.isEmpty()) {
+         aib.tools(tools);
+       }
+      if (mem != null) {
+         aib.chatMemory(mem);
+       }
+      rslt = aib.build();
+    }
+   catch (Throwable t) {
+      IvyLog.logE("LIMBA","Problem setting up streaming assistant",t);
+      return null;
+    }
+   
+   IvyLog.logD("LIMBA","Streaming interface set for " + key);
+   
    return rslt;
 }
 
 
+/**
+ *      Chains built before the RAG model exists have no retriever and no
+ *      project tools.  They must not be registered, or the registry would
+ *      keep handing out the degraded chain after RAG is available.
+ **/
+
+private boolean isRagPending(boolean usectx,EnumSet<LimbaToolSet> toolids)
+{
+   if (rag_model != null) return false;
+   if (usectx) return true;
+   return toolids.contains(LimbaToolSet.PROJECT) ||
+      toolids.contains(LimbaToolSet.STRUCTURE);
+}
+
+
+private ContentRetriever getRetriever(boolean usectx)
+{
+   ContentRetriever cr = null;
+   if (rag_model == null) {
+      startRag();
+    }
+   LimbaRag rag = rag_model;
+   if (rag != null && usectx) {
+      cr = rag.getContentRetriever();
+    }
+   if (cr == null) {
+      cr = new EmptyContentRetriever();
+    }
+   
+   return cr;
+}
+
+
 
 private List<Object> getTools(EnumSet<LimbaToolSet> toolids,Map<String,?> context)
 {
@@ -1125,31 +1600,68 @@ private List<Object> getTools(EnumSet<LimbaToolSet> toolids,Map<String,?> contex
 }
 
 
-private String getKey(EnumSet<LimbaToolSet> tools,Map<String,?> context,String model)
+/**
+ *      The key covers everything the chain is built from.  A chain with
+ *      chat memory is specific to that memory, so a unique id for the
+ *      memory is included.
+ **/
+
+private String getKey(EnumSet<LimbaToolSet> tools,boolean usectx,ChatMemory mem,
+      Map<String,?> context,String model,LimbaBackend backend)
 {
    String k = "*";
    if (!tools.isEmpty()) {
       k = tools.toString();
     }
-   if (tools.contains(LimbaToolSet.DEBUG)) {
-      k += "." + context.get("DEBUGID") + ".";
+   String debugid = getDebugId(tools,context);
+   if (debugid != null) {
+      k += "." + debugid + ".";
     }
+   if (!usectx) k += "!";
    if (model != null) k += model;
+   if (backend != null) k += "@" + backend.getUrl();
+   if (mem != null) k += "#" + getMemoryId(mem);
 
    return k;
 }
 
-void removeDebugContext(String debugid)
+
+/**
+ *      Identity hash codes can collide, and the memory's own id is usually
+ *      the shared default, so each memory is numbered when first seen.
+ **/
+
+private long getMemoryId(ChatMemory mem)
 {
-   for (Iterator<String> it = chat_interfaces.keySet().iterator(); it.hasNext(); ) {
-      String key = it.next();
-      if (key.contains("DEBUG") && key.contains(debugid + ".")) {
-         it.remove();
-       }
+   synchronized (memory_ids) {
+      return memory_ids.computeIfAbsent(mem,(ChatMemory m) -> memory_counter.incrementAndGet());
     }
 }
 
 
+private String getDebugId(EnumSet<LimbaToolSet> tools,Map<String,?> context)
+{
+   if (!tools.contains(LimbaToolSet.DEBUG) || context == null) return null;
+
+   Object id = context.get("DEBUGID");
+   return (id == null ? null : id.toString());
+}
+
+
+void removeDebugContext(String debugid)
+{
+   chat_interfaces.removeDebug(debugid);
+   stream_interfaces.removeDebug(debugid);
+}
+
+
+void outputChainStatistics(IvyXmlWriter xw)
+{
+   chat_interfaces.outputStatistics(xw);
+   stream_interfaces.outputStatistics(xw);
+}
+
+
 
 private interface LimbaChatter {
    String chat(String msg);
@@ -1159,6 +1671,10 @@ private interface LimbaAssistant extends LimbaChatter {
    String chat(String msg);
 }
 
+private interface LimbaStreamer {
+   TokenStream chat(String msg);
+}
+
 private class ChainChatter implements LimbaAssistant {
 
    private ConversationalRetrievalChain ret_chain;
@@ -1268,7 +1784,7 @@ static List<String> getCodeType(String resp,String find,boolean dflt)
 }
 
 
-private static void extractFragments(String text,List<String> rslt)
+static void extractFragments(String text,List<String> rslt)
 {
    String [] elements = text.split(SPLIT_PATTERN);
    for (String s : elements) {
@@ -1384,12 +1900,15 @@ private boolean startOllama(String hostname,int port,String usehost)
    try {
       ollama_api = new OllamaAPI(host);
       ollama_api.setRequestTimeoutSeconds(900L);
+      long delay = 250;
       for (int i = 0; i < 5; ++i) {
          boolean ping = ollama_api.ping();
          if (ping) {
             IvyLog.logD("LIMBA","OLLAMA started successfully on " + host);
             return true;
           }
+         Thread.sleep(delay);
+         delay *= 2;
        }
       IvyLog.logD("LIMBA","Pings failed to talk to ollama api");
     }
@@ -1401,29 +1920,17 @@ private boolean startOllama(String hostname,int port,String usehost)
 }
 
 
+/**
+ *      Make sure the model is available.  If a backend doesn't have the
+ *      model this waits for it to be fetched, since the request would fail
+ *      otherwise.  It doesn't wait for the model to be loaded into memory;
+ *      ollama queues the request behind the load anyway.
+ **/
+
 private void initializeModel(String model)
 {
-   if (model == null) return;
-   if (inited_models.contains(model)) return;
-   inited_models.add(model);
-
-   try {
-      String host = "http://" + ollama_host + ":" + ollama_port + "/";
-      String cmd = "limballama.csh " + model;
-      if (ollama_usehost != null && !ollama_host.isEmpty()) {
-         cmd += " " + ollama_usehost + " " + ollama_host;
-       }
-      else {
-         cmd += " " + host;
-       }
-      IvyExec exec = new IvyExec(cmd,IvyExec.IGNORE_OUTPUT);
-      IvyLog.logD("LIMBA","Running setup commands: " + exec.getCommand());
-      exec.waitFor();
-    }
-   catch (IOException e) {
-      IvyLog.logI("LIMBA","Problem prepping ollama: " + e);
-    }
-
+   if (model == null || model_type != LimbaModelType.OLLAMA_MODEL) return;
+   if (limba_warmer != null) limba_warmer.useModel(model);
 }
 
 
@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.w3c.dom.Element;
 
@@ -58,6 +59,7 @@ class LimbaMonitor implements LimbaConstants
 
 private MintControl     mint_control;
 private LimbaMain       limba_main;
+private Map<File,String> source_projects;
 
 private static Random   random_gen = new Random();
 
@@ -71,6 +73,7 @@ private static Random   random_gen = new Random();
 LimbaMonitor(LimbaMain lm,String mintid)
 {
    limba_main = lm;
+   source_projects = new ConcurrentHashMap<>();
    mint_control = MintControl.create(mintid,MintSyncMode.ONLY_REPLIES);
    mint_control.register("<LIMBA DO='_VAR_0' />",
          new CommandHandler());
@@ -108,6 +111,8 @@ private String processCommand(String cmd,Element xml) throws LimbaException
          case "DETAILS" :
          case "PING" :
          case "DEBUGREMOVE" :
+         case "STATS" :
+         case "RAGSTATUS" :
             // immediate commands
             try {
                LimbaCommand lcmd = limba_main.setupLimbaCommand(xml);
@@ -129,7 +134,7 @@ private String processCommand(String cmd,Element xml) throws LimbaException
              }
             CommandProcessor cp = new CommandProcessor(bcmd,rid);
             xw.field("RID",rid);
-            cp.start();
+            limba_main.getExecutor().execute(cp.getName(),cp);
        }
       
       xw.end("RESULT");
@@ -244,6 +249,7 @@ List<File> getSources()
          if (!done.add(f1)) continue;
          if (f1.getName().endsWith(".java")) {
             srcs.add(f1);
+            source_projects.put(f1,pnm);
           }
        }
     }
@@ -251,6 +257,19 @@ List<File> getSources()
    return srcs;
 }
 
+
+/**
+ *      Return the project a source file returned by getSources belongs to.
+ **/
+
+String getSourceProject(File f)
+{
+   if (f == null) return null;
+   String p = source_projects.get(f);
+   if (p == null) p = source_projects.get(IvyFile.getCanonical(f));
+   return p;
+}
+
 Element findClass(String name,boolean def)
 {
    CommandArgs args = new CommandArgs("PATTERN",name,
@@ -322,18 +341,22 @@ boolean sendPing()
 /*                                                                              */
 /********************************************************************************/
 
-private class CommandProcessor extends Thread {
+private class CommandProcessor implements Runnable {
    
    private LimbaCommand for_command;
    private String reply_id;
    
    CommandProcessor(LimbaCommand cmd,String rid) {
-      super("LIMBA_" + cmd.getCommandName() + "_" + rid);
       for_command = cmd;
       reply_id = rid;
     }
    
+   String getName() {
+      return "LIMBA_" + for_command.getCommandName() + "_" + reply_id;
+    }
+   
    @Override public void run() {
+      LimbaRequest.begin(limba_main,reply_id,for_command.getCommandName());
       try (IvyXmlWriter xw = new IvyXmlWriter()) {
          xw.begin("LIMBAREPLY");
          xw.field("RID",reply_id);
@@ -357,6 +380,10 @@ private class CommandProcessor extends Thread {
          mint_control.send(xw.toString());
          xw.close();
        }
+      finally {
+         limba_main.transcriptEnd();
+         LimbaRequest.end();
+       }
     }
 
 }       // end of inner class CommandProecessor
@@ -410,6 +437,7 @@ private final class ExitHandler implements MintHandler {
    @Override public void receive(MintMessage msg,MintArguments args) {
       IvyLog.logD("LIMBA","EXIT from Code Bubbles");
       limba_main.transcriptMessage("Exit at " + (new Date().toString()));
+      limba_main.transcriptClose();
       
       System.exit(0);
     }
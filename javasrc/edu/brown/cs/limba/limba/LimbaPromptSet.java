@@ -0,0 +1,202 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaPromptSet.java                                             */
+/*                                                                              */
+/*      Cached prompt templates loaded from prompts.xml                         */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+
+import edu.brown.cs.ivy.file.IvyFile;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXml;
+
+class LimbaPromptSet implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaMain       limba_main;
+private URL             prompt_url;
+private File            prompt_file;
+private long            file_stamp;
+private long            last_check;
+private String          base_prompt;
+private Map<String,String> command_prompts;
+private Map<String,String> expanded_prompts;
+private int             key_version;
+private int             load_count;
+
+private static final long CHECK_INTERVAL = 2000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaPromptSet(LimbaMain lm)
+{
+   limba_main = lm;
+   ClassLoader cl = getClass().getClassLoader();
+   prompt_url = cl.getResource("resources/prompts.xml");
+   if (prompt_url == null) prompt_url = cl.getResource("prompts.xml");
+   prompt_file = null;
+   if (prompt_url != null && prompt_url.getProtocol().equals("file")) {
+      try {
+         prompt_file = new File(prompt_url.toURI());
+       }
+      catch (URISyntaxException e) { }
+    }
+   file_stamp = -1;
+   last_check = 0;
+   base_prompt = null;
+   command_prompts = new HashMap<>();
+   expanded_prompts = new HashMap<>();
+   key_version = -1;
+   load_count = 0;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Return the prompt for the given command: the base prompt followed by
+ *      the command-specific one, with key map names expanded.  Results are
+ *      cached until prompts.xml changes on disk or the key map changes.
+ **/
+
+synchronized String getPrompt(String cmd)
+{
+   checkReload();
+
+   int kv = limba_main.getKeyMapVersion();
+   if (kv != key_version) {
+      expanded_prompts.clear();
+      key_version = kv;
+    }
+
+   if (expanded_prompts.containsKey(cmd)) return expanded_prompts.get(cmd);
+
+   String base = base_prompt;
+   String ptxt = command_prompts.get(cmd);
+   Map<String,String> keymap = limba_main.getKeyMap();
+   if (keymap != null) {
+      base = IvyFile.expandName(base,keymap);
+      ptxt = IvyFile.expandName(ptxt,keymap);
+    }
+
+   String rslt = null;
+   if (base == null) rslt = ptxt;
+   else if (ptxt == null) rslt = base;
+   else rslt = base + " " + ptxt;
+
+   expanded_prompts.put(cmd,rslt);
+
+   return rslt;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Loading methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private void checkReload()
+{
+   if (prompt_url == null) return;
+
+   long now = System.currentTimeMillis();
+   if (file_stamp >= 0) {
+      // prompts inside a jar can't change
+      if (prompt_file == null) return;
+      if (now - last_check < CHECK_INTERVAL) return;
+    }
+   last_check = now;
+
+   long stamp = (prompt_file == null ? 0 : prompt_file.lastModified());
+   if (stamp == file_stamp) return;
+
+   if (load()) file_stamp = stamp;
+}
+
+
+private boolean load()
+{
+   Element xml = null;
+   try (InputStream ins = prompt_url.openStream()) {
+      xml = IvyXml.loadXmlFromStream(ins);
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Problem reading prompts from " + prompt_url,e);
+    }
+   if (xml == null) return false;
+
+   String base = null;
+   Map<String,String> prompts = new HashMap<>();
+   for (Element pmpt : IvyXml.children(xml,"PROMPT")) {
+      String what = IvyXml.getAttrString(pmpt,"COMMAND");
+      String txt = IvyXml.getText(pmpt);
+      if (txt == null) continue;
+      if (what == null) base = txt.trim();
+      else prompts.put(what,txt.trim());
+    }
+
+   base_prompt = base;
+   command_prompts = prompts;
+   expanded_prompts.clear();
+   ++load_count;
+   if (load_count > 1) {
+      IvyLog.logI("LIMBA","Reloaded prompts from " + prompt_url);
+    }
+
+   return true;
+}
+
+
+
+}       // end of class LimbaPromptSet
+
+
+
+
+/* end of LimbaPromptSet.java */
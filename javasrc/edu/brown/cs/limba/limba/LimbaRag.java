@@ -25,36 +25,36 @@ package edu.brown.cs.limba.limba;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
-import java.time.Duration;
+import java.nio.file.PathMatcher;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONObject;
 
-import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.DocumentSplitter;
-import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
 import dev.langchain4j.data.document.splitter.DocumentByLineSplitter;
-import dev.langchain4j.data.document.splitter.DocumentByRegexSplitter;
 import dev.langchain4j.data.segment.TextSegment;
-import dev.langchain4j.model.ollama.OllamaEmbeddingModel;
+import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.rag.content.Content;
 import dev.langchain4j.rag.content.retriever.ContentRetriever;
 import dev.langchain4j.rag.content.retriever.EmbeddingStoreContentRetriever;
 import dev.langchain4j.rag.query.Query;
 import dev.langchain4j.store.embedding.EmbeddingStore;
-import dev.langchain4j.store.embedding.EmbeddingStoreIngestor;
-import dev.langchain4j.store.embedding.chroma.ChromaApiVersion;
-import dev.langchain4j.store.embedding.chroma.ChromaEmbeddingStore;
-import dev.langchain4j.store.embedding.filter.comparison.IsIn;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.filter.comparison.IsEqualTo;
 import edu.brown.cs.ivy.file.IvyFile;
 import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
 
 class LimbaRag implements LimbaConstants
 {
@@ -69,20 +69,44 @@ class LimbaRag implements LimbaConstants
 private LimbaMain limba_main;
 private Collection<File> project_files;
 private Collection<File> all_files;
-private ContentRetriever content_retriever;
+private RagRetriever content_retriever;
+private volatile ContentRetriever active_retriever;
+private volatile LimbaRagStatus index_status;
+private RagIndexer rag_indexer;
 private String workspace_name;
 private long last_modified;
 private File config_file;
 private JSONObject local_data;
 private JSONObject global_data;
-private boolean remove_old;
 private String chroma_url;
+private volatile String rag_fingerprint;
+private LimbaRagManifest file_manifest;
+private Map<String,File> file_map;
+private List<String> update_ids;
+private List<String> remove_ids;
+private volatile LimbaRagIngester rag_ingester;
+private volatile LimbaVectorStore vector_store;
+private EmbeddingStore<TextSegment> rag_store;
+private DocumentSplitter rag_splitter;
+private EmbeddingModel rag_embedder;
+private volatile LimbaEmbeddingCache embed_cache;
+private volatile LimbaContextPacker context_packer;
+private List<PathMatcher> exclude_patterns;
+private int excluded_count;
+private volatile int tier_count;
+private volatile int tiers_done;
+private boolean rag_persistent;
+private LimbaRagWatcher rag_watcher;
+private Object update_lock;
+private volatile LimbaLexicalIndex lexical_index;
 
 private static boolean use_java_splitter = true;
 private static boolean rag_log = false;
 
-private static final int BLOCK_SIZE = 5;
-      
+// change when segment metadata changes so old indexes are rebuilt
+private static final int METADATA_VERSION = 3;
+
+
 
 /********************************************************************************/
 /*                                                                              */
@@ -94,12 +118,42 @@ LimbaRag(LimbaMain lm,List<File> files,String ws)
 {
    limba_main = lm;
    project_files = new HashSet<>();
-   content_retriever = null;
+   content_retriever = new RagRetriever();
+   active_retriever = null;
+   index_status = LimbaRagStatus.NONE;
+   rag_indexer = null;
+   rag_ingester = null;
+   vector_store = null;
+   rag_store = null;
+   rag_splitter = null;
+   rag_embedder = null;
+   embed_cache = null;
+   context_packer = null;
+   exclude_patterns = new ArrayList<>();
+   excluded_count = 0;
+   tier_count = 0;
+   tiers_done = 0;
+   rag_persistent = false;
+   rag_watcher = null;
+   update_lock = new Object();
+   lexical_index = null;
    workspace_name = ws;
-   chroma_url = "http://localhost:8000";
+   chroma_url = lm.getProperty("Limba.rag.chroma.url","http://localhost:8000/");
    
    loadConfigData();
    
+   FileSystem fs = FileSystems.getDefault();
+   String excl = lm.getProperty("Limba.rag.exclude","");
+   for (String pat : excl.split("[ ,;]+")) {
+      if (pat.isEmpty()) continue;
+      try {
+         exclude_patterns.add(fs.getPathMatcher("glob:" + pat));
+       }
+      catch (IllegalArgumentException e) {
+         IvyLog.logE("LIMBA","Bad RAG exclude pattern " + pat);
+       }
+    }
+   
    if (files != null) {
       project_files.addAll(files);
     }
@@ -115,65 +169,155 @@ LimbaRag(LimbaMain lm,List<File> files,String ws)
 /*                                                                              */
 /********************************************************************************/
 
+/**
+ *      Return the retriever for this project.  This returns immediately; if
+ *      the index is still being built, queries are answered from whatever
+ *      has been indexed so far.
+ **/
+
 ContentRetriever getContentRetriever()
 {
-   if (content_retriever == null && !project_files.isEmpty()) {
-      content_retriever = new EmptyContentRetriever();
-      content_retriever = setupRAG();
-    }
+   if (project_files.isEmpty()) return null;
+   
+   startIndexing();
    
    return content_retriever;
 }
 
 
+LimbaRagStatus getStatus()              { return index_status; }
+
+boolean isReady()                       { return index_status == LimbaRagStatus.READY; }
+
+
+/**
+ *      Start building the index in the background if that hasn't been
+ *      done already.
+ **/
+
+synchronized void startIndexing()
+{
+   if (rag_indexer != null || project_files.isEmpty()) return;
+   
+   index_status = LimbaRagStatus.STARTING;
+   rag_indexer = new RagIndexer();
+   rag_indexer.start();
+}
+
+
 Collection<File> getFiles()
 {
    return all_files;
 }
 
 
+String getFingerprint()
+{
+   return rag_fingerprint;
+}
+
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("RAG");
+   xw.field("STATUS",index_status);
+   xw.field("FILES",file_map.size());
+   xw.field("CHANGED",update_ids.size());
+   xw.field("REMOVED",remove_ids.size());
+   if (rag_ingester != null) rag_ingester.outputStatistics(xw);
+   if (vector_store != null) vector_store.outputStatistics(xw);
+   if (embed_cache != null) embed_cache.outputStatistics(xw);
+   if (context_packer != null) context_packer.outputStatistics(xw);
+   if (lexical_index != null) lexical_index.outputStatistics(xw);
+   if (rag_watcher != null) {
+      xw.begin("WATCHER");
+      xw.field("UPDATES",rag_watcher.getUpdateCount());
+      xw.field("PENDING",rag_watcher.getPendingCount());
+      xw.end("WATCHER");
+    }
+   xw.end("RAG");
+}
+
+
+void outputStatus(IvyXmlWriter xw)
+{
+   xw.begin("RAGSTATUS");
+   xw.field("STATUS",index_status);
+   xw.field("FILES",file_map.size());
+   xw.field("CHANGED",update_ids.size());
+   xw.field("EXCLUDED",excluded_count);
+   xw.field("TIER",tiers_done);
+   xw.field("TIERS",tier_count);
+   LimbaRagIngester ingest = rag_ingester;
+   if (ingest != null) {
+      xw.field("LOADED",ingest.getFileCount());
+      xw.field("SEGMENTS",ingest.getSegmentCount());
+    }
+   LimbaVectorStore vstore = vector_store;
+   if (vstore != null) vstore.outputStatus(xw);
+   LimbaLexicalIndex lex = lexical_index;
+   if (lex != null) xw.field("LEXICAL",lex.size());
+   xw.end("RAGSTATUS");
+}
+
+
+
 /********************************************************************************/
 /*                                                                              */
 /*      File/update management                                                  */
 /*                                                                              */
 /********************************************************************************/
 
+/**
+ *      Compare the files against the content hashes saved from the last
+ *      indexing run to find what needs to be (re)embedded and what should
+ *      be purged from the store.
+ **/
+
 private void checkUpdates()
 {
-   last_modified = 0;
-   remove_old = false;
-   
    IvyLog.logD("LIMBA","Update based on " + new Date(last_modified));
    
-   // force update -- DEBUGGING ONLY
-// last_modified = 0;
+   all_files = project_files;
    
-   remove_old = true;
-   
-   if (last_modified > 0) {
-      all_files = new ArrayList<>(project_files);
-      remove_old = true;
-      for (Iterator<File> it = project_files.iterator(); it.hasNext(); ) {
-         File f = it.next();
-         long lm = f.lastModified();
-         if (lm < last_modified) {
-            // remove files that don't need updating
-            it.remove();
-          }
+   file_map = new LinkedHashMap<>();
+   excluded_count = 0;
+   for (File f : project_files) {
+      if (f.length() == 0) continue;
+      if (isExcluded(f)) {
+         ++excluded_count;
+         continue;
        }
+      file_map.put(getUID(f),f);
     }
-   else {
-      all_files = project_files;
-    }
+   
+   remove_ids = new ArrayList<>();
+   file_manifest.setConfiguration(getSplitterConfig());
+   update_ids = file_manifest.checkFiles(file_map,remove_ids);
+   
+   IvyLog.logD("LIMBA","RAG files: " + file_map.size() + " total, " +
+         update_ids.size() + " changed, " + remove_ids.size() + " removed, " +
+         excluded_count + " excluded");
+   
+   rag_fingerprint = workspace_name + ":" + file_manifest.getFingerprint();
 }
 
 
-private void loadConfigData() 
+private File getConfigDirectory()
 {
    File f1 = new File(System.getProperty("user.home"));
    File f2 = new File(f1,".config");
    File f3 = new File(f2,"limba");
    f3.mkdirs();
+
+   return f3;
+}
+
+
+private void loadConfigData() 
+{
+   File f3 = getConfigDirectory();
+   File f2 = f3.getParentFile();
    
    local_data = new JSONObject();
    global_data = new JSONObject();
@@ -183,7 +327,7 @@ private void loadConfigData()
       String cnts = IvyFile.loadFile(f4);
       if (cnts != null && !cnts.isEmpty()) {
          global_data = new JSONObject(cnts);
-         chroma_url = local_data.optString("chromaUrl",chroma_url);
+         chroma_url = global_data.optString("chromaUrl",chroma_url);
          global_data.put("chromaUrl",chroma_url);
        }
     }
@@ -192,6 +336,7 @@ private void loadConfigData()
     }
    
    config_file = new File(f3,workspace_name + ".json");
+   file_manifest = new LimbaRagManifest(new File(f3,workspace_name + ".hashes.json"));
    try {
       String cnts = IvyFile.loadFile(config_file);
       if (cnts != null && !cnts.isEmpty()) {
@@ -224,126 +369,244 @@ private void updateLocalConfig()
 /*                                                                              */
 /********************************************************************************/
 
-private ContentRetriever setupRAG()
+/**
+ *      Build (or bring up to date) the index.  The retriever is made
+ *      available as soon as the store is open so that queries can be
+ *      answered from the saved index and the lexical index while the
+ *      changed files are embedded.
+ **/
+
+private void buildIndex()
 {
-   List<Document> docs = new ArrayList<>();
-   List<String> uids = new ArrayList<>();
-   for (File f : project_files) {
-      if (f.length() == 0) continue;
-      Path p = f.toPath();
-      Document d = FileSystemDocumentLoader.loadDocument(p);
-      d.metadata().put("id",getUID(f));
-      docs.add(d);
-      uids.add(getUID(f));
-    }
    DocumentSplitter splitter = getSplitter();
    
-   OllamaEmbeddingModel embed = OllamaEmbeddingModel.builder()
-         .baseUrl(limba_main.getUrl()) 
-         .modelName("nomic-embed-text")
-         .timeout(Duration.ofMinutes(2))
-         .maxRetries(10)
-         .logRequests(rag_log)
-         .logResponses(rag_log)
-         .build();
+   LimbaEmbedder embed = new LimbaEmbedder(limba_main.getBackendPool(),
+         limba_main.getScheduler(),"nomic-embed-text",rag_log);
    
-   EmbeddingStore<TextSegment> store = null;
-   if (chroma_url != null && !chroma_url.isEmpty() && !chroma_url.startsWith("*")) {
+   // segments go through the cache; queries go straight to the embedder
+   EmbeddingModel ingestembed = embed;
+   if (limba_main.getProperty("Limba.rag.embed.cache",true)) {
+      long mx = limba_main.getProperty("Limba.rag.embed.cache.mbytes",1024) * 1024L * 1024L;
       try {
-         ChromaEmbeddingStore cstore = ChromaEmbeddingStore.builder()
-            .apiVersion(ChromaApiVersion.V2)
-            .collectionName("LIMBA_" + workspace_name)
-            .baseUrl("http://localhost:8000/")
-            .tenantName("LIMBA")
-            .logRequests(rag_log)
-            .logResponses(rag_log)
-            .build();
-         if (last_modified <= 0) {
-            cstore.removeAll();
-            remove_old = false;
-          }
-         store = cstore;
-         IvyLog.logD("LIMBA","Using chroma store");
+         embed_cache = new LimbaEmbeddingCache(embed,embed.getModelName(),
+               getConfigDirectory(),mx);
+         ingestembed = embed_cache;
        }
-      catch (Throwable t) {
-         IvyLog.logE("LIMBA","Can't create chroma store", t);
+      catch (IOException e) {
+         IvyLog.logE("LIMBA","Can't open embedding cache",e);
        }
     }
    
-// if (store == null) {
-//    try {
-//       store = RedisEmbeddingStore.builder()
-//          .indexName("LIMBA" + IvyExecQuery.getProcessId()) 
-//          .metadataKeys(Set.of("file_name"))
-//          .host("localhost")
-//          .port(6379)
-//          .build();
-//       IvyLog.logD("LIMBA","Using redis store");   
-//     } 
-//    catch (Throwable t) {
-//       IvyLog.logI("LIMBA","Can't create redis store: " + t);
-//     }
-//  }
-  
-   if (store == null) {
-      store = new InMemoryEmbeddingStore<>();
+   LimbaVectorStore vstore = null;
+   String types = limba_main.getProperty("Limba.rag.store","CHROMA,LOCAL");
+   for (String typ : types.split("[ ,;]+")) {
+      if (typ.isEmpty()) continue;
+      try {
+         LimbaStoreType st = LimbaStoreType.valueOf(typ.toUpperCase());
+         vstore = LimbaVectorStore.createStore(st,limba_main,getConfigDirectory(),
+               workspace_name,chroma_url,rag_log);
+       }
+      catch (IllegalArgumentException e) {
+         IvyLog.logE("LIMBA","Unknown RAG store type " + typ);
+       }
+      if (vstore != null) break;
+    }
+   if (vstore == null) {
+      vstore = LimbaVectorStore.createStore(LimbaStoreType.MEMORY,limba_main,null,
+            workspace_name,null,rag_log);
+    }
+   
+   EmbeddingStore<TextSegment> store = vstore.getStore();
+   boolean persistent = vstore.isPersistent();
+   if (!persistent) {
+      // nothing is kept across runs: index everything
       last_modified = -1;
-      remove_old = false;
+      file_manifest.reset();
+      update_ids = new ArrayList<>(file_map.keySet());
+      remove_ids = new ArrayList<>();
     }
+   else if (file_manifest.isEmpty()) {
+      // no record of what the store holds; every file is replaced below
+      vstore.resetIndex(file_map.keySet());
+    }
+   else if (vstore.isEmpty()) {
+      // index was built elsewhere (e.g. another store); rebuild it here
+      file_manifest.reset();
+      update_ids = new ArrayList<>(file_map.keySet());
+      remove_ids = new ArrayList<>();
+    }
+   vector_store = vstore;
+   
+   rag_store = store;
+   rag_splitter = splitter;
+   rag_embedder = ingestembed;
+   rag_persistent = persistent;
+   
+   LimbaLexicalIndex lexical = null;
+   if (limba_main.getProperty("Limba.rag.hybrid",true)) lexical = new LimbaLexicalIndex();
+   lexical_index = lexical;
+   
+   // when packing, fetch more and let the packer choose what fits
+   boolean pack = limba_main.getProperty("Limba.rag.pack",true);
+   int nresult = limba_main.getProperty("Limba.rag.results",10);
+   if (pack) nresult = limba_main.getProperty("Limba.rag.pack.candidates",20);
    
-// need class okhttp3/Interceptor -- if this fails, defer to immemboery mode
    ContentRetriever retrv;
+   if (lexical != null) {
+      LimbaHybridRetriever hretrv = new LimbaHybridRetriever(limba_main,embed,store,lexical);
+      hretrv.setMaxResults(nresult);
+      hretrv.setScopeFunction(this::getScopeFilters);
+      retrv = hretrv;
+    }
+   else {
+      // no widening here, so only restrict to the project
+      retrv = EmbeddingStoreContentRetriever.builder()
+            .embeddingModel(embed)
+            .embeddingStore(store)
+            .maxResults(nresult)
+            .dynamicFilter((Query q) -> {
+                List<Filter> fs = getScopeFilters(q);
+                return (fs.isEmpty() ? null : fs.get(fs.size()-1));
+              })
+            .build();
+    }
+   if (pack) {
+      context_packer = new LimbaContextPacker(limba_main,retrv);
+      retrv = context_packer;
+    }
+   active_retriever = retrv;
+   IvyLog.logD("LIMBA","Build RAG content retreiver " + retrv);
+   
+   List<List<String>> tiers = getTiers(update_ids);
+   tier_count = tiers.size();
+   tiers_done = 0;
+   boolean fresh = vstore.isEmpty();
+   int failedtiers = 0;
+   
    try {
-      if (remove_old) {
-         store.removeAll(new IsIn("id",uids));
+      synchronized (update_lock) {
+         if (lexical != null) {
+            // splitting is cheap compared to embedding; make all files
+            // searchable lexically before embedding the changed ones
+            index_status = LimbaRagStatus.LEXICAL;
+            LimbaRagIngester lingest = new LimbaRagIngester(limba_main,splitter,null,null);
+            lingest.setLexicalIndex(lexical);
+            lingest.ingest(new LinkedHashMap<>(file_map));
+            IvyLog.logD("LIMBA","Lexical index has " + lexical.size() + " segments");
+          }
+         
+         index_status = LimbaRagStatus.PARTIAL;
+         if (!remove_ids.isEmpty()) {
+            vstore.removeFiles(remove_ids);
+            if (persistent) file_manifest.commitFiles(remove_ids);
+          }
+         IvyLog.logD("LIMBA","Ingest documents " + update_ids.size() + " in " +
+               tiers.size() + " tiers");
        }
-      EmbeddingStoreIngestor ingest = EmbeddingStoreIngestor.builder()
-         .documentSplitter(splitter)
-         .embeddingModel(embed)
-         .embeddingStore(store)
-         .build();
       
-      IvyLog.logD("LIMBA","Ingest documents " + docs.size());
-      if (docs.size() > BLOCK_SIZE) {
-         for (int i = 0; i < docs.size(); i += BLOCK_SIZE) {
-            int end = Math.min(i+BLOCK_SIZE,docs.size());
-            IvyLog.logD("LIMBA","Ingest " + i + " " + end);
-            List<Document> slist = docs.subList(i,end);
-            ingest.ingest(slist);
+      // the lock is released between tiers so that edits get in
+      for (List<String> tier : tiers) {
+         synchronized (update_lock) {
+            try {
+               Map<String,File> docs = new LinkedHashMap<>();
+               for (String uid : tier) {
+                  File f = file_map.get(uid);
+                  if (f != null) docs.put(uid,f);
+                }
+               // where the store allows, old segments of changed files are kept
+               // until the new ones are in
+               String rev = Long.toString(System.currentTimeMillis());
+               rag_ingester = new LimbaRagIngester(limba_main,splitter,ingestembed,store);
+               rag_ingester.setRevision(rev);
+               rag_ingester.setStoreBatch(vstore.getBatchSize());
+               if (!fresh) vstore.beginReplace(docs.keySet());
+               rag_ingester.ingest(docs);
+               // files that failed to load keep their old segments and are retried
+               Set<String> failed = rag_ingester.getFailedFiles();
+               for (String uid : failed) file_manifest.updateFile(uid,null);
+               List<String> done = new ArrayList<>(tier);
+               done.removeAll(failed);
+               if (!fresh) {
+                  docs.keySet().removeAll(failed);
+                  vstore.replaceFiles(docs.keySet(),rev);
+                }
+               if (persistent) {
+                  last_modified = System.currentTimeMillis();
+                  file_manifest.commitFiles(done);
+                  updateLocalConfig();
+                }
+             }
+            catch (Exception e) {
+               // forget the whole tier so it is indexed again on the next
+               // load (or when edited) and go on with the remaining tiers
+               IvyLog.logE("LIMBA","Problem indexing RAG tier " + (tiers_done+1),e);
+               for (String uid : tier) file_manifest.updateFile(uid,null);
+               ++failedtiers;
+             }
           }
+         ++tiers_done;
+         IvyLog.logD("LIMBA","Done RAG tier " + tiers_done + " of " + tiers.size());
+         startWatcher();
        }
-      else {
-         ingest.ingest(docs);
+      
+      synchronized (update_lock) {
+         if (persistent) {
+            last_modified = System.currentTimeMillis();
+            file_manifest.commit();
+          }
+         updateLocalConfig();
        }
       IvyLog.logD("LIMBA","Done ingest");
-      
-      last_modified = System.currentTimeMillis();
-      updateLocalConfig();
-            
-      retrv = EmbeddingStoreContentRetriever.builder()
-            .embeddingModel(embed)
-            .embeddingStore(store)
-            .maxResults(10)
-            .build();
-      IvyLog.logD("LIMBA","Build RAG content retreiver " + retrv);
+      if (failedtiers > 0) {
+         IvyLog.logE("LIMBA","RAG indexing failed for " + failedtiers + " of " +
+               tiers.size() + " tiers");
+         index_status = LimbaRagStatus.FAILED;
+       }
+      else {
+         index_status = LimbaRagStatus.READY;
+       }
     }
    catch (Throwable t) {
+      // keep serving whatever was indexed
       IvyLog.logE("LIMBA","Problem setting up RAG",t);
-      retrv = new EmptyContentRetriever();
+      index_status = LimbaRagStatus.FAILED;
     }
    
-   return retrv;
+   // edits to indexed files still need to be picked up
+   startWatcher();
 }
 
 
 
-private static final class EmptyContentRetriever implements ContentRetriever {
+/**
+ *      Stable retriever handed out to chains; it delegates to the real
+ *      retriever once the store is open.
+ **/
+
+private final class RagRetriever implements ContentRetriever {
    
-   @Override public List<Content> retrieve(Query query) { 
-      return new ArrayList<>();
+   @Override public List<Content> retrieve(Query query) {
+      ContentRetriever cr = active_retriever;
+      if (cr == null) return new ArrayList<>();
+      return cr.retrieve(query);
     }
 
-}       // end of inner class EmptyContentRetriever
+}       // end of inner class RagRetriever
+
+
+
+private final class RagIndexer extends Thread {
+   
+   RagIndexer() {
+      super("LimbaRagIndexer");
+      setDaemon(true);
+    }
+   
+   @Override public void run() {
+      buildIndex();
+    }
+   
+}       // end of inner class RagIndexer
 
 
 
@@ -366,6 +629,210 @@ private String getUID(File f)
 
 
 
+/**
+ *      Order the files needing indexing so that those the user is working
+ *      on come first: files edited recently, then the other files in the
+ *      same directories, then everything else, newest first.  The first
+ *      tier holds Limba.rag.max files; the rest are indexed afterwards in
+ *      smaller tiers.
+ **/
+
+private List<List<String>> getTiers(Collection<String> ids)
+{
+   int max = Math.max(1,limba_main.getProperty("Limba.rag.max",10000));
+   int size = Math.max(1,limba_main.getProperty("Limba.rag.tier.size",2000));
+   long recent = System.currentTimeMillis() -
+      limba_main.getProperty("Limba.rag.recent.days",14) * 24L * 60 * 60 * 1000;
+
+   Map<String,Long> times = new HashMap<>();
+   Set<File> hotdirs = new HashSet<>();
+   for (String uid : ids) {
+      File f = file_map.get(uid);
+      if (f == null) continue;
+      long t = f.lastModified();
+      times.put(uid,t);
+      if (t >= recent) hotdirs.add(f.getParentFile());
+    }
+
+   Map<String,Integer> rank = new HashMap<>();
+   for (Map.Entry<String,Long> ent : times.entrySet()) {
+      File f = file_map.get(ent.getKey());
+      int r = 2;
+      if (ent.getValue() >= recent) r = 0;
+      else if (hotdirs.contains(f.getParentFile())) r = 1;
+      rank.put(ent.getKey(),r);
+    }
+
+   List<String> order = new ArrayList<>(times.keySet());
+   order.sort((a,b) -> {
+      int c = Integer.compare(rank.get(a),rank.get(b));
+      if (c != 0) return c;
+      return Long.compare(times.get(b),times.get(a));
+    });
+
+   List<List<String>> rslt = new ArrayList<>();
+   int idx = 0;
+   while (idx < order.size()) {
+      int n = (rslt.isEmpty() ? max : size);
+      int end = Math.min(order.size(),idx + n);
+      rslt.add(new ArrayList<>(order.subList(idx,end)));
+      idx = end;
+    }
+
+   return rslt;
+}
+
+
+/**
+ *      Return metadata filters for the code the current request is about,
+ *      narrowest first: its class, its package, its project.  Empty if
+ *      the request doesn't say.
+ **/
+
+private List<Filter> getScopeFilters(Query q)
+{
+   List<Filter> rslt = new ArrayList<>();
+   LimbaRequest rq = LimbaRequest.getCurrent();
+   if (rq == null) return rslt;
+
+   Filter proj = null;
+   String file = rq.getScopeFile();
+   if (file != null && !file.isEmpty()) {
+      LimbaMonitor mon = limba_main.getMessageServer();
+      String pnm = (mon == null ? null : mon.getSourceProject(new File(file)));
+      if (pnm != null) proj = new IsEqualTo("project",pnm);
+    }
+   Filter pkg = null;
+   String pnm = rq.getScopePackage();
+   if (pnm != null && !pnm.isEmpty()) pkg = new IsEqualTo("package",pnm);
+   Filter cls = null;
+   String cnm = rq.getScopeClass();
+   if (cnm != null && !cnm.isEmpty()) {
+      if (cnm.contains(".")) cls = new IsEqualTo("class",cnm);
+      else if (pnm != null && !pnm.isEmpty()) cls = new IsEqualTo("class",pnm + "." + cnm);
+      else cls = new IsEqualTo("type",cnm);
+    }
+
+   Filter wide = proj;
+   if (pkg != null) wide = (wide == null ? pkg : wide.and(pkg));
+   if (cls != null) rslt.add(wide == null ? cls : wide.and(cls));
+   if (pkg != null) rslt.add(wide);
+   if (proj != null) rslt.add(proj);
+
+   return rslt;
+}
+
+
+private boolean isExcluded(File f)
+{
+   Path p = f.toPath();
+   for (PathMatcher pm : exclude_patterns) {
+      if (pm.matches(p)) return true;
+    }
+   return false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Incremental update methods                                              */
+/*                                                                              */
+/********************************************************************************/
+
+private void startWatcher()
+{
+   if (rag_watcher != null || !limba_main.getProperty("Limba.rag.watch",true)) return;
+
+   try {
+      rag_watcher = new LimbaRagWatcher(this,project_files,
+            limba_main.getProperty("Limba.rag.watch.delay",2000));
+      rag_watcher.start();
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Can't watch RAG files",e);
+    }
+}
+
+
+/**
+ *      Re-embed the given files if their contents changed.  New segments are
+ *      stored (tagged with a new revision) before the old ones for those
+ *      files are removed, so queries keep getting answers from the old
+ *      segments until the new ones are in place (except for stores that
+ *      must clear them first; see LimbaVectorStore.beginReplace).
+ **/
+
+void applyUpdates(Collection<File> files) throws Exception
+{
+   EmbeddingStore<TextSegment> store = rag_store;
+   LimbaVectorStore vstore = vector_store;
+   if (store == null || vstore == null) return;
+
+   synchronized (update_lock) {
+      List<String> changed = new ArrayList<>();
+      List<String> removed = new ArrayList<>();
+      Map<String,File> docs = new LinkedHashMap<>();
+      for (File f : files) {
+         if (isExcluded(f)) continue;
+         String uid = getUID(f);
+         if (!f.exists() || f.length() == 0) {
+            if (file_manifest.updateFile(uid,null)) removed.add(uid);
+            file_map.remove(uid);
+          }
+         else if (file_manifest.updateFile(uid,f)) {
+            changed.add(uid);
+            docs.put(uid,f);
+            file_map.put(uid,f);
+          }
+       }
+      if (changed.isEmpty() && removed.isEmpty()) return;
+
+      IvyLog.logD("LIMBA","Updating RAG index: " + changed.size() + " changed, " +
+            removed.size() + " removed");
+
+      String rev = Long.toString(System.currentTimeMillis());
+      try {
+         if (!docs.isEmpty()) {
+            LimbaRagIngester ingest = new LimbaRagIngester(limba_main,rag_splitter,
+                  rag_embedder,store);
+            ingest.setRevision(rev);
+            ingest.setLexicalIndex(lexical_index);
+            ingest.setStoreBatch(vstore.getBatchSize());
+            vstore.beginReplace(changed);
+            ingest.ingest(docs);
+            Set<String> failed = ingest.getFailedFiles();
+            for (String uid : failed) file_manifest.updateFile(uid,null);
+            changed.removeAll(failed);
+            vstore.replaceFiles(changed,rev);
+          }
+         if (!removed.isEmpty()) {
+            vstore.removeFiles(removed);
+            if (lexical_index != null) {
+               for (String uid : removed) lexical_index.removeFile(uid);
+             }
+          }
+       }
+      catch (Exception e) {
+         // forget these so the next change to them is tried again
+         for (String uid : changed) file_manifest.updateFile(uid,null);
+         throw e;
+       }
+
+      if (rag_persistent) {
+         // only these files: later tiers may not be indexed yet
+         List<String> done = new ArrayList<>(changed);
+         done.addAll(removed);
+         last_modified = System.currentTimeMillis();
+         file_manifest.commitFiles(done);
+         updateLocalConfig();
+       }
+      rag_fingerprint = workspace_name + ":" + file_manifest.getFingerprint();
+    }
+}
+
+
+
 /********************************************************************************/
 /*                                                                              */
 /*      Document splitter for Java Source Code                                  */
@@ -374,30 +841,28 @@ private String getUID(File f)
 
 private DocumentSplitter getSplitter()
 {
-   DocumentSplitter splitter1 = new DocumentByLineSplitter(128,4);
-   
-   // and may need refinement for complex real-world code.
-   String regex = "(?=\\s*(public|protected|private|static|void|int|String).*\\w+\\s*\\([^)]*\\)\\s*\\{)";
-   
-   // Use the DocumentByRegexSplitter
-   // Parameters: regex, joinDelimiter, maxSegmentSize (chars), maxOverlap (chars), subSplitter
-   DocumentByRegexSplitter splitter2 = new DocumentByRegexSplitter(
-         regex,      // The regex to split by
-         "\\n\\n",   // The delimiter to join parts with if they fit in max size
-         1000,       // Max segment size in characters (adjust as needed)
-         100,                    // Max overlap in characters (adjust as needed)
-         splitter1
-   );
-   
-   
-   // SHOULD USE DocumentByCodeSplitter when available
-   
-   if (use_java_splitter) return splitter2;
-   
+   int max = limba_main.getProperty("Limba.rag.split.max",1500);
+   int min = limba_main.getProperty("Limba.rag.split.min",300);
+
+   // line splitting is only used for unparsable files and oversized methods
+   DocumentSplitter splitter1 = new DocumentByLineSplitter(max,0);
+
+   if (use_java_splitter) return new LimbaJavaSplitter(splitter1,max,min);
+
    return splitter1;
 }
 
 
+private String getSplitterConfig()
+{
+   int max = limba_main.getProperty("Limba.rag.split.max",1500);
+   int min = limba_main.getProperty("Limba.rag.split.min",300);
+
+   return (use_java_splitter ? "java" : "line") + ":" + max + ":" + min + ":" +
+      METADATA_VERSION;
+}
+
+
 
 }       // end of class LimbaRag
 
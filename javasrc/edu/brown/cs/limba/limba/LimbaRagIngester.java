@@ -0,0 +1,425 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaRagIngester.java                                           */
+/*                                                                              */
+/*      Pipelined loading, splitting, embedding and storing                     */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaRagIngester implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaMain       limba_main;
+private DocumentSplitter doc_splitter;
+private EmbeddingModel  embed_model;
+private EmbeddingStore<TextSegment> embed_store;
+private int             load_threads;
+private int             embed_threads;
+private int             batch_size;
+private int             store_batch;
+private String          index_revision;
+private LimbaLexicalIndex lexical_index;
+
+private BlockingQueue<TextSegment> segment_queue;
+private BlockingQueue<StoreBatch> store_queue;
+private AtomicInteger   files_loaded;
+private Set<String>     failed_files;
+private AtomicLong      segments_split;
+private AtomicLong      segments_embedded;
+private AtomicLong      segments_stored;
+private volatile Throwable ingest_error;
+private volatile boolean loading_done;
+private volatile boolean embedding_done;
+private long            start_time;
+private long            end_time;
+
+private static final long POLL_TIME = 500;
+private static final long REPORT_TIME = 10000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaRagIngester(LimbaMain lm,DocumentSplitter splitter,EmbeddingModel embed,
+      EmbeddingStore<TextSegment> store)
+{
+   limba_main = lm;
+   doc_splitter = splitter;
+   embed_model = embed;
+   embed_store = store;
+
+   int ncpu = Runtime.getRuntime().availableProcessors();
+   load_threads = Math.max(1,lm.getProperty("Limba.rag.load.threads",Math.min(ncpu,8)));
+   // one embedding worker per request the backends can take at once; the
+   // worker count is what bounds concurrent embedding requests
+   int perbackend = lm.getProperty("Limba.rag.embed.concurrency",2);
+   int nbackend = 1;
+   LimbaBackendPool pool = lm.getBackendPool();
+   if (pool != null) nbackend = Math.max(1,pool.getHealthyBackends().size());
+   embed_threads = Math.max(1,perbackend * nbackend);
+   batch_size = Math.max(1,lm.getProperty("Limba.rag.embed.batch",32));
+   store_batch = 0;
+   index_revision = null;
+   lexical_index = null;
+
+   segment_queue = new LinkedBlockingQueue<>(batch_size * embed_threads * 4);
+   store_queue = new LinkedBlockingQueue<>(embed_threads * 2);
+   files_loaded = new AtomicInteger(0);
+   failed_files = ConcurrentHashMap.newKeySet();
+   segments_split = new AtomicLong(0);
+   segments_embedded = new AtomicLong(0);
+   segments_stored = new AtomicLong(0);
+   ingest_error = null;
+   loading_done = false;
+   embedding_done = false;
+   start_time = 0;
+   end_time = 0;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Tag every segment with this revision so that older segments for the
+ *      same files can be removed once the new ones are stored.
+ **/
+
+void setRevision(String rev)            { index_revision = rev; }
+
+
+/**
+ *      Also add the split segments of each file to the lexical index.  With
+ *      no embedding model only this is done.
+ **/
+
+void setLexicalIndex(LimbaLexicalIndex lex) { lexical_index = lex; }
+
+
+/**
+ *      Combine embedded batches so that each call to the store adds about
+ *      this many segments (for stores where each call is a request).
+ **/
+
+void setStoreBatch(int n)
+{
+   store_batch = Math.max(0,n);
+   int nq = Math.max(embed_threads * 2,(store_batch / batch_size + 1) * 2);
+   store_queue = new LinkedBlockingQueue<>(nq);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Ingestion methods                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Load, split, embed and store the given files (indexed by id).  Files
+ *      are loaded and split in parallel; segments are embedded in batches by
+ *      several workers spread across the embedding backends; a single writer
+ *      adds the results to the store.  The stages overlap so the embedding
+ *      backends are kept busy.  Throws the first error encountered.
+ **/
+
+void ingest(Map<String,File> files) throws Exception
+{
+   if (files.isEmpty()) return;
+
+   start_time = System.currentTimeMillis();
+   LimbaExecutor exec = limba_main.getExecutor();
+
+   List<CompletableFuture<Void>> loaders = new ArrayList<>();
+   BlockingQueue<Map.Entry<String,File>> work = new LinkedBlockingQueue<>(files.entrySet());
+   for (int i = 0; i < Math.min(load_threads,files.size()); ++i) {
+      loaders.add(exec.submit("LimbaRagLoader_" + i,() -> { load(work); return null; }));
+    }
+
+   List<CompletableFuture<Void>> embedders = new ArrayList<>();
+   List<CompletableFuture<Void>> writers = new ArrayList<>();
+   if (embed_model != null) {
+      for (int i = 0; i < embed_threads; ++i) {
+         embedders.add(exec.submit("LimbaRagEmbedder_" + i,() -> { embed(); return null; }));
+       }
+      writers.add(exec.submit("LimbaRagWriter",() -> { store(); return null; }));
+    }
+
+   waitFor(loaders);
+   loading_done = true;
+   waitFor(embedders);
+   embedding_done = true;
+   waitFor(writers);
+
+   end_time = System.currentTimeMillis();
+   report(true);
+
+   if (ingest_error instanceof Exception) throw (Exception) ingest_error;
+   if (ingest_error != null) throw new LimbaException("Problem ingesting",ingest_error);
+}
+
+
+private void waitFor(List<CompletableFuture<Void>> futs)
+{
+   long last = System.currentTimeMillis();
+   for (CompletableFuture<Void> f : futs) {
+      for ( ; ; ) {
+         try {
+            f.get(POLL_TIME,TimeUnit.MILLISECONDS);
+            break;
+          }
+         catch (java.util.concurrent.TimeoutException e) {
+            long now = System.currentTimeMillis();
+            if (now - last >= REPORT_TIME) {
+               report(false);
+               last = now;
+             }
+          }
+         catch (Throwable t) {
+            noteError(t);
+            break;
+          }
+       }
+    }
+}
+
+
+private void load(BlockingQueue<Map.Entry<String,File>> work)
+{
+   for ( ; ; ) {
+      if (ingest_error != null) return;
+      Map.Entry<String,File> ent = work.poll();
+      if (ent == null) return;
+      try {
+         Document d = FileSystemDocumentLoader.loadDocument(ent.getValue().toPath());
+         d.metadata().put("id",ent.getKey());
+         if (index_revision != null) d.metadata().put("revision",index_revision);
+         LimbaMonitor mon = limba_main.getMessageServer();
+         String proj = (mon == null ? null : mon.getSourceProject(ent.getValue()));
+         if (proj != null) d.metadata().put("project",proj);
+         List<TextSegment> segs = doc_splitter.split(d);
+         files_loaded.incrementAndGet();
+         if (lexical_index != null) lexical_index.setSegments(ent.getKey(),segs);
+         if (embed_model == null) {
+            segments_split.addAndGet(segs.size());
+            continue;
+          }
+         for (TextSegment seg : segs) {
+            while (!segment_queue.offer(seg,POLL_TIME,TimeUnit.MILLISECONDS)) {
+               if (ingest_error != null) return;
+             }
+            segments_split.incrementAndGet();
+          }
+       }
+      catch (InterruptedException e) {
+         return;
+       }
+      catch (Throwable t) {
+         IvyLog.logE("LIMBA","Problem loading " + ent.getValue() + " for RAG",t);
+         failed_files.add(ent.getKey());
+       }
+    }
+}
+
+
+private void embed() throws InterruptedException
+{
+   for ( ; ; ) {
+      if (ingest_error != null) return;
+      List<TextSegment> batch = new ArrayList<>();
+      TextSegment seg = segment_queue.poll(POLL_TIME,TimeUnit.MILLISECONDS);
+      if (seg == null) {
+         if (loading_done && segment_queue.isEmpty()) return;
+         continue;
+       }
+      batch.add(seg);
+      segment_queue.drainTo(batch,batch_size-1);
+
+      try {
+         List<Embedding> embeds = embed_model.embedAll(batch).content();
+         segments_embedded.addAndGet(batch.size());
+         StoreBatch sb = new StoreBatch(embeds,batch);
+         while (!store_queue.offer(sb,POLL_TIME,TimeUnit.MILLISECONDS)) {
+            if (ingest_error != null) return;
+          }
+       }
+      catch (RuntimeException e) {
+         noteError(e);
+         return;
+       }
+    }
+}
+
+
+private void store() throws InterruptedException
+{
+   for ( ; ; ) {
+      StoreBatch sb = store_queue.poll(POLL_TIME,TimeUnit.MILLISECONDS);
+      if (sb == null) {
+         if ((embedding_done || ingest_error != null) && store_queue.isEmpty()) return;
+         continue;
+       }
+      if (ingest_error != null) continue;
+      List<Embedding> embeds = sb.batch_embeddings;
+      List<TextSegment> segs = sb.batch_segments;
+      if (segs.size() < store_batch) {
+         embeds = new ArrayList<>(embeds);
+         segs = new ArrayList<>(segs);
+         while (segs.size() < store_batch) {
+            StoreBatch nsb = store_queue.poll();
+            if (nsb == null) break;
+            embeds.addAll(nsb.batch_embeddings);
+            segs.addAll(nsb.batch_segments);
+          }
+       }
+      try {
+         embed_store.addAll(embeds,segs);
+         segments_stored.addAndGet(segs.size());
+       }
+      catch (RuntimeException e) {
+         noteError(e);
+       }
+    }
+}
+
+
+private synchronized void noteError(Throwable t)
+{
+   if (ingest_error == null) {
+      IvyLog.logE("LIMBA","Problem during RAG ingestion",t);
+      ingest_error = t;
+    }
+}
+
+
+private static final class StoreBatch {
+
+   private List<Embedding> batch_embeddings;
+   private List<TextSegment> batch_segments;
+
+   StoreBatch(List<Embedding> embeds,List<TextSegment> segs) {
+      batch_embeddings = embeds;
+      batch_segments = segs;
+    }
+
+}       // end of inner class StoreBatch
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Progress reporting                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+long getSegmentCount()                  { return segments_stored.get(); }
+
+int getFileCount()                      { return files_loaded.get(); }
+
+
+/**
+ *      Return the ids of files that couldn't be loaded or split.  These
+ *      weren't indexed and shouldn't be recorded as such.
+ **/
+
+Set<String> getFailedFiles()            { return new HashSet<>(failed_files); }
+
+
+double getRate()
+{
+   long end = (end_time > 0 ? end_time : System.currentTimeMillis());
+   long time = end - start_time;
+   if (start_time == 0 || time <= 0) return 0;
+
+   return segments_stored.get() * 1000.0 / time;
+}
+
+
+private void report(boolean done)
+{
+   IvyLog.logI("LIMBA",(done ? "Finished" : "Progress") + " RAG ingestion: " +
+         files_loaded.get() + " files, " + segments_split.get() + " split, " +
+         segments_embedded.get() + " embedded, " + segments_stored.get() +
+         " stored, " + String.format("%.1f",getRate()) + " segments/sec");
+}
+
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("INGEST");
+   xw.field("FILES",files_loaded.get());
+   xw.field("SPLIT",segments_split.get());
+   xw.field("EMBEDDED",segments_embedded.get());
+   xw.field("STORED",segments_stored.get());
+   xw.field("RATE",getRate());
+   xw.field("LOADTHREADS",load_threads);
+   xw.field("EMBEDTHREADS",embed_threads);
+   xw.field("BATCH",batch_size);
+   if (end_time > 0) xw.field("TIME",end_time - start_time);
+   xw.end("INGEST");
+}
+
+
+
+}       // end of class LimbaRagIngester
+
+
+
+
+/* end of LimbaRagIngester.java */
@@ -0,0 +1,362 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaRagManifest.java                                           */
+/*                                                                              */
+/*      Content hashes of the files in the RAG index                            */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.brown.cs.ivy.file.IvyFile;
+import edu.brown.cs.ivy.file.IvyLog;
+
+class LimbaRagManifest implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private File            manifest_file;
+private Map<String,FileEntry> saved_entries;
+private Map<String,FileEntry> current_entries;
+private Set<String>     dropped_ids;
+private String          index_config;
+private String          saved_config;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaRagManifest(File f)
+{
+   manifest_file = f;
+   saved_entries = new TreeMap<>();
+   current_entries = new TreeMap<>();
+   dropped_ids = new HashSet<>();
+   index_config = null;
+   saved_config = null;
+   load();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized boolean isEmpty()          { return saved_entries.isEmpty(); }
+
+
+/**
+ *      Note how segments are produced (e.g. splitter and sizes).  If this
+ *      differs from what the saved index was built with, the saved state is
+ *      dropped so everything is reindexed.  The files it held are remembered
+ *      so that checkFiles() can still report the ones that are gone.
+ **/
+
+synchronized void setConfiguration(String cfg)
+{
+   index_config = cfg;
+   if (saved_config != null && !saved_config.equals(cfg) && !saved_entries.isEmpty()) {
+      IvyLog.logI("LIMBA","RAG index configuration changed; reindexing");
+      dropped_ids.addAll(saved_entries.keySet());
+      saved_entries = new TreeMap<>();
+    }
+}
+
+
+/**
+ *      Return a fingerprint of the current contents of all files.  This
+ *      changes only when some file's contents change.
+ **/
+
+synchronized String getFingerprint()
+{
+   StringBuffer buf = new StringBuffer();
+   for (Map.Entry<String,FileEntry> ent : current_entries.entrySet()) {
+      buf.append(ent.getKey());
+      buf.append("=");
+      buf.append(ent.getValue().content_hash);
+      buf.append("\n");
+    }
+
+   return LimbaResponseCache.digest(buf.toString());
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Comparison methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Compare the given files (indexed by id) against the saved manifest.
+ *      Returns the ids of files that are new or whose contents changed and
+ *      adds the ids of files that are no longer present to removed.  A
+ *      file whose time and length are unchanged is assumed not to have
+ *      changed and isn't read.
+ **/
+
+synchronized List<String> checkFiles(Map<String,File> files,Collection<String> removed)
+{
+   List<String> changed = new ArrayList<>();
+   current_entries = new TreeMap<>();
+
+   for (Map.Entry<String,File> ent : files.entrySet()) {
+      String id = ent.getKey();
+      File f = ent.getValue();
+      FileEntry old = saved_entries.get(id);
+      FileEntry fe = null;
+      if (old != null && old.last_modified == f.lastModified() &&
+            old.file_length == f.length()) {
+         fe = old;
+       }
+      else {
+         fe = computeEntry(f);
+         if (fe == null) {
+            // unreadable for now: leave whatever is indexed alone
+            if (old != null) current_entries.put(id,old);
+            continue;
+          }
+         if (old == null || !old.content_hash.equals(fe.content_hash)) {
+            changed.add(id);
+          }
+       }
+      current_entries.put(id,fe);
+    }
+
+   for (String id : saved_entries.keySet()) {
+      if (!files.containsKey(id)) removed.add(id);
+    }
+   for (String id : dropped_ids) {
+      if (!files.containsKey(id)) removed.add(id);
+    }
+   dropped_ids.clear();
+
+   return changed;
+}
+
+
+/**
+ *      Note that the file with the given id has changed (or been removed
+ *      if f is null).  Returns false if the contents are actually the same.
+ **/
+
+synchronized boolean updateFile(String id,File f)
+{
+   if (f == null || !f.exists()) {
+      return current_entries.remove(id) != null;
+    }
+
+   FileEntry fe = computeEntry(f);
+   if (fe == null) return false;
+   FileEntry old = current_entries.put(id,fe);
+
+   return old == null || !old.content_hash.equals(fe.content_hash);
+}
+
+
+/**
+ *      Save the current state once the index reflects it.
+ **/
+
+synchronized void commit()
+{
+   saved_entries = new TreeMap<>(current_entries);
+   save();
+}
+
+
+/**
+ *      Save the current state of just the given files (e.g. once one tier
+ *      of a large workspace has been indexed).
+ **/
+
+synchronized void commitFiles(Collection<String> ids)
+{
+   for (String id : ids) {
+      FileEntry fe = current_entries.get(id);
+      if (fe == null) saved_entries.remove(id);
+      else saved_entries.put(id,fe);
+    }
+   save();
+}
+
+
+/**
+ *      Forget the saved state so that everything is reindexed.
+ **/
+
+synchronized void reset()
+{
+   saved_entries = new TreeMap<>();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Hashing methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private static FileEntry computeEntry(File f)
+{
+   long mod = f.lastModified();
+   long len = f.length();
+   try {
+      byte [] cnts = Files.readAllBytes(f.toPath());
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte [] dig = md.digest(cnts);
+      StringBuffer buf = new StringBuffer();
+      for (byte b : dig) {
+         buf.append(String.format("%02x",b));
+       }
+      return new FileEntry(buf.toString(),mod,len);
+    }
+   catch (IOException e) {
+      IvyLog.logI("LIMBA","Can't read " + f + " for hashing: " + e);
+    }
+   catch (NoSuchAlgorithmException e) {
+      IvyLog.logE("LIMBA","SHA-256 not available",e);
+    }
+
+   return null;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      I/O methods                                                             */
+/*                                                                              */
+/********************************************************************************/
+
+private void load()
+{
+   if (!manifest_file.exists()) return;
+
+   try {
+      String cnts = IvyFile.loadFile(manifest_file);
+      if (cnts == null || cnts.isEmpty()) return;
+      JSONObject obj = new JSONObject(cnts);
+      saved_config = obj.optString("config",null);
+      JSONObject files = obj.getJSONObject("files");
+      for (String id : files.keySet()) {
+         JSONObject fobj = files.getJSONObject(id);
+         FileEntry fe = new FileEntry(fobj.getString("hash"),
+               fobj.optLong("modified",0),fobj.optLong("length",-1));
+         saved_entries.put(id,fe);
+       }
+      current_entries = new TreeMap<>(saved_entries);
+    }
+   catch (IOException | JSONException e) {
+      IvyLog.logI("LIMBA","Problem reading RAG manifest " + manifest_file + ": " + e);
+      saved_entries.clear();
+    }
+}
+
+
+private void save()
+{
+   JSONObject files = new JSONObject();
+   for (Map.Entry<String,FileEntry> ent : saved_entries.entrySet()) {
+      FileEntry fe = ent.getValue();
+      JSONObject fobj = new JSONObject();
+      fobj.put("hash",fe.content_hash);
+      fobj.put("modified",fe.last_modified);
+      fobj.put("length",fe.file_length);
+      files.put(ent.getKey(),fobj);
+    }
+   JSONObject obj = new JSONObject();
+   obj.put("files",files);
+   if (index_config != null) obj.put("config",index_config);
+
+   File tmp = new File(manifest_file.getPath() + ".tmp");
+   try (FileWriter fw = new FileWriter(tmp)) {
+      fw.write(obj.toString());
+      fw.write("\n");
+    }
+   catch (IOException e) {
+      IvyLog.logE("LIMBA","Problem writing RAG manifest",e);
+      return;
+    }
+   if (!tmp.renameTo(manifest_file)) {
+      IvyLog.logE("LIMBA","Problem saving RAG manifest " + manifest_file);
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Per-file information                                                    */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class FileEntry {
+
+   private String content_hash;
+   private long last_modified;
+   private long file_length;
+
+   FileEntry(String hash,long mod,long len) {
+      content_hash = hash;
+      last_modified = mod;
+      file_length = len;
+    }
+
+}       // end of inner class FileEntry
+
+
+
+}       // end of class LimbaRagManifest
+
+
+
+
+/* end of LimbaRagManifest.java */
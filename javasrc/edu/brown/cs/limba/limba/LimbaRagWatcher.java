@@ -0,0 +1,242 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaRagWatcher.java                                            */
+/*                                                                              */
+/*      Watch project files and update the RAG index as they change             */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import edu.brown.cs.ivy.file.IvyFile;
+import edu.brown.cs.ivy.file.IvyLog;
+
+/**
+ *      Background thread that watches the directories holding the RAG
+ *      files.  Changes are collected until things have been quiet for the
+ *      debounce delay and then handed to LimbaRag.applyUpdates, which
+ *      re-embeds only those files while the old segments keep serving.
+ *      New .java files in a watched directory are indexed as well, but new
+ *      directories aren't watched until the project is reloaded.
+ **/
+
+class LimbaRagWatcher extends Thread implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaRag        rag_model;
+private WatchService    watch_service;
+private Map<WatchKey,Path> watch_keys;
+private Set<String>     watched_files;
+private Map<Path,Set<File>> dir_files;
+private Set<File>       pending_files;
+private long            debounce_delay;
+private long            last_event;
+private int             update_count;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaRagWatcher(LimbaRag rag,Collection<File> files,long delay) throws IOException
+{
+   super("LimbaRagWatcher");
+   setDaemon(true);
+
+   rag_model = rag;
+   debounce_delay = Math.max(100,delay);
+   watch_service = FileSystems.getDefault().newWatchService();
+   watch_keys = new HashMap<>();
+   watched_files = new HashSet<>();
+   dir_files = new HashMap<>();
+   pending_files = new LinkedHashSet<>();
+   last_event = 0;
+   update_count = 0;
+
+   Set<File> dirs = new HashSet<>();
+   for (File f : files) {
+      String fnm = IvyFile.getCanonicalPath(f);
+      watched_files.add(fnm);
+      File dir = new File(fnm).getParentFile();
+      if (dir != null) {
+         dirs.add(dir);
+         dir_files.computeIfAbsent(dir.toPath(),(Path k) -> new HashSet<>()).add(new File(fnm));
+       }
+    }
+   for (File dir : dirs) {
+      try {
+         Path p = dir.toPath();
+         WatchKey key = p.register(watch_service,
+               StandardWatchEventKinds.ENTRY_CREATE,
+               StandardWatchEventKinds.ENTRY_MODIFY,
+               StandardWatchEventKinds.ENTRY_DELETE);
+         watch_keys.put(key,p);
+       }
+      catch (IOException e) {
+         IvyLog.logI("LIMBA","Can't watch " + dir + ": " + e);
+       }
+    }
+
+   IvyLog.logD("LIMBA","Watching " + watch_keys.size() + " directories for RAG updates");
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+int getUpdateCount()                    { return update_count; }
+
+
+synchronized int getPendingCount()      { return pending_files.size(); }
+
+
+void shutdown()
+{
+   try {
+      watch_service.close();
+    }
+   catch (IOException e) { }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Watching methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+@Override public void run()
+{
+   for ( ; ; ) {
+      WatchKey key = null;
+      try {
+         key = watch_service.poll(debounce_delay,TimeUnit.MILLISECONDS);
+       }
+      catch (InterruptedException e) { }
+      catch (ClosedWatchServiceException e) {
+         return;
+       }
+
+      if (key != null) {
+         Path dir = watch_keys.get(key);
+         for (WatchEvent<?> evt : key.pollEvents()) {
+            if (dir == null) continue;
+            if (evt.kind() == StandardWatchEventKinds.OVERFLOW) {
+               // events were lost: recheck everything in the directory
+               noteDirectory(dir);
+               continue;
+             }
+            Path p = dir.resolve((Path) evt.context());
+            if (!watched_files.contains(p.toString())) {
+               if (evt.kind() == StandardWatchEventKinds.ENTRY_DELETE) continue;
+               if (!p.toString().endsWith(".java")) continue;
+               addFile(dir,p.toFile());
+             }
+            noteChange(p.toFile());
+          }
+         if (!key.reset()) watch_keys.remove(key);
+       }
+
+      Set<File> todo = null;
+      synchronized (this) {
+         if (!pending_files.isEmpty() &&
+               System.currentTimeMillis() - last_event >= debounce_delay) {
+            todo = new LinkedHashSet<>(pending_files);
+            pending_files.clear();
+          }
+       }
+
+      if (todo != null) {
+         try {
+            rag_model.applyUpdates(todo);
+            ++update_count;
+          }
+         catch (Throwable t) {
+            IvyLog.logE("LIMBA","Problem applying RAG updates",t);
+          }
+       }
+    }
+}
+
+
+private synchronized void noteChange(File f)
+{
+   pending_files.add(f);
+   last_event = System.currentTimeMillis();
+}
+
+
+private void noteDirectory(Path dir)
+{
+   File [] fs = dir.toFile().listFiles();
+   if (fs != null) {
+      for (File f : fs) {
+         if (f.isFile() && f.getName().endsWith(".java")) addFile(dir,f);
+       }
+    }
+   // files that were deleted are rechecked too
+   for (File f : dir_files.get(dir)) noteChange(f);
+}
+
+
+private void addFile(Path dir,File f)
+{
+   if (watched_files.add(f.getPath())) {
+      dir_files.computeIfAbsent(dir,(Path k) -> new HashSet<>()).add(f);
+    }
+}
+
+
+
+}       // end of class LimbaRagWatcher
+
+
+
+
+/* end of LimbaRagWatcher.java */
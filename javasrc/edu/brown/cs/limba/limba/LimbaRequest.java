@@ -0,0 +1,203 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaRequest.java                                               */
+/*                                                                              */
+/*      Per-thread information about the command being processed                */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.Map;
+
+class LimbaRequest implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private String          reply_id;
+private String          command_name;
+private LimbaPriority   request_priority;
+private long            start_time;
+private int             retry_budget;
+private String          scope_file;
+private String          scope_package;
+private String          scope_class;
+
+private static ThreadLocal<LimbaRequest> current_request = new ThreadLocal<>();
+
+private static final Map<String,LimbaPriority> default_priorities = Map.of(
+      "FIND",LimbaPriority.NORMAL,
+      "FINDJDOC",LimbaPriority.BACKGROUND,
+      "TESTS",LimbaPriority.BACKGROUND);
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaRequest(LimbaMain lm,String rid,String cmd)
+{
+   reply_id = rid;
+   command_name = cmd;
+   request_priority = findPriority(lm,cmd);
+   start_time = System.currentTimeMillis();
+   retry_budget = lm.getProperty("Limba.retry.budget",12);
+   scope_file = null;
+   scope_package = null;
+   scope_class = null;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Thread association methods                                              */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Note that the current thread is processing the given command on
+ *      behalf of the given client request.
+ **/
+
+static LimbaRequest begin(LimbaMain lm,String rid,String cmd)
+{
+   LimbaRequest rq = new LimbaRequest(lm,rid,cmd);
+   current_request.set(rq);
+   return rq;
+}
+
+
+static void end()
+{
+   current_request.remove();
+}
+
+
+static LimbaRequest getCurrent()
+{
+   return current_request.get();
+}
+
+
+/**
+ *      Carry a request over to another thread working on its behalf.
+ **/
+
+static void setCurrent(LimbaRequest rq)
+{
+   if (rq == null) current_request.remove();
+   else current_request.set(rq);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+String getReplyId()                     { return reply_id; }
+
+String getCommandName()                 { return command_name; }
+
+LimbaPriority getPriority()             { return request_priority; }
+
+long getStartTime()                     { return start_time; }
+
+synchronized boolean hasBudget()        { return retry_budget > 0; }
+
+String getScopeFile()                   { return scope_file; }
+
+String getScopePackage()                { return scope_package; }
+
+String getScopeClass()                  { return scope_class; }
+
+
+/**
+ *      Note the code the request is about (any of these can be null).  RAG
+ *      retrieval uses this to look in the relevant part of the workspace
+ *      first.
+ **/
+
+void setScope(String file,String pkg,String cls)
+{
+   scope_file = file;
+   scope_package = pkg;
+   scope_class = cls;
+}
+
+
+/**
+ *      Use one LLM call from the budget for this request.  Returns false
+ *      if the budget is already used up.
+ **/
+
+synchronized boolean useAttempt()
+{
+   if (retry_budget <= 0) return false;
+   --retry_budget;
+   return true;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Priority methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Commands the user is actively waiting on are interactive; bulk
+ *      commands run in the background.  Limba.priority.<COMMAND> overrides.
+ **/
+
+private static LimbaPriority findPriority(LimbaMain lm,String cmd)
+{
+   if (cmd == null) return LimbaPriority.NORMAL;
+
+   LimbaPriority dflt = default_priorities.getOrDefault(cmd,LimbaPriority.INTERACTIVE);
+   String p = lm.getProperty("Limba.priority." + cmd,null);
+   if (p != null && !p.isBlank()) {
+      try {
+         return LimbaPriority.valueOf(p.trim().toUpperCase());
+       }
+      catch (IllegalArgumentException e) { }
+    }
+
+   return dflt;
+}
+
+
+
+}       // end of class LimbaRequest
+
+
+
+
+/* end of LimbaRequest.java */
@@ -0,0 +1,364 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaResponseCache.java                                         */
+/*                                                                              */
+/*      Persistent cache of LLM responses keyed by the expanded request         */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.memory.ChatMemory;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaResponseCache implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private File            cache_directory;
+private boolean         cache_enabled;
+private int             max_entries;
+private long            max_bytes;
+private long            total_bytes;
+private Map<String,Long> cache_index;
+private long            hit_count;
+private long            miss_count;
+private long            store_count;
+private long            evict_count;
+
+private static final String CACHE_SUFFIX = ".resp";
+
+private static final EnumSet<LimbaToolSet> DYNAMIC_TOOLS =
+   EnumSet.of(LimbaToolSet.DEBUG,LimbaToolSet.STACK,
+         LimbaToolSet.DIAD,LimbaToolSet.FAIT);
+
+private static final EnumSet<LimbaToolSet> SOURCE_TOOLS =
+   EnumSet.of(LimbaToolSet.PROJECT,LimbaToolSet.STRUCTURE);
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaResponseCache(LimbaMain lm)
+{
+   cache_enabled = lm.getProperty("Limba.cache.enable",true);
+   max_entries = lm.getProperty("Limba.cache.entries",2000);
+   max_bytes = lm.getProperty("Limba.cache.mbytes",64) * 1024L * 1024L;
+   total_bytes = 0;
+   hit_count = 0;
+   miss_count = 0;
+   store_count = 0;
+   evict_count = 0;
+
+   // access-ordered map of cache key to entry size gives us LRU order
+   cache_index = new LinkedHashMap<>(64,0.75f,true);
+
+   File f1 = new File(System.getProperty("user.home"));
+   File f2 = new File(f1,".config");
+   File f3 = new File(f2,"limba");
+   cache_directory = new File(f3,"responses");
+
+   if (cache_enabled) {
+      cache_directory.mkdirs();
+      if (!cache_directory.isDirectory()) {
+         IvyLog.logE("LIMBA","Can't create response cache directory " + cache_directory);
+         cache_enabled = false;
+       }
+      else {
+         loadIndex();
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Determine if a query with the given tools can be answered from the
+ *      cache.  Tools that look at the running program give answers that
+ *      depend on state we can't capture in the key.
+ **/
+
+boolean canCache(EnumSet<LimbaToolSet> tools)
+{
+   if (!cache_enabled) return false;
+   if (tools == null) return true;
+   for (LimbaToolSet ts : tools) {
+      if (DYNAMIC_TOOLS.contains(ts)) return false;
+    }
+   return true;
+}
+
+
+/**
+ *      Determine if a query with the given tools can read the project's
+ *      source.  Such answers are only good for the current version of the
+ *      source files.  No tools means the default PROJECT tools.
+ **/
+
+boolean usesSource(EnumSet<LimbaToolSet> tools)
+{
+   if (tools == null) return true;
+   for (LimbaToolSet ts : tools) {
+      if (SOURCE_TOOLS.contains(ts)) return true;
+    }
+   return false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Key computation                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      The key covers everything that shapes the answer, including the
+ *      command's context (in key order, so it doesn't depend on map order).
+ **/
+
+String computeKey(String prompt,String model,EnumSet<LimbaToolSet> tools,
+      Map<String,?> context,String ragid,ChatMemory history)
+{
+   StringBuffer buf = new StringBuffer();
+   buf.append("MODEL:");
+   buf.append(model);
+   buf.append("\nTOOLS:");
+   buf.append(tools == null ? "*" : tools.toString());
+   buf.append("\nRAG:");
+   buf.append(ragid == null ? "*" : ragid);
+   if (context != null) {
+      for (Map.Entry<String,?> ent : new TreeMap<>(context).entrySet()) {
+         buf.append("\nCONTEXT:");
+         buf.append(ent.getKey());
+         buf.append("=");
+         buf.append(String.valueOf(ent.getValue()));
+       }
+    }
+   if (history != null) {
+      for (ChatMessage msg : history.messages()) {
+         buf.append("\nHISTORY:");
+         buf.append(msg.toString());
+       }
+    }
+   buf.append("\nPROMPT:");
+   buf.append(prompt);
+
+   return digest(buf.toString());
+}
+
+
+static String digest(String text)
+{
+   try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte [] dvl = md.digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuffer rslt = new StringBuffer();
+      for (byte b : dvl) {
+         rslt.append(String.format("%02x",b & 0xff));
+       }
+      return rslt.toString();
+    }
+   catch (NoSuchAlgorithmException e) {
+      IvyLog.logE("LIMBA","Problem getting message digest",e);
+    }
+
+   return Integer.toHexString(text.hashCode());
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Lookup and storage                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized String lookup(String key)
+{
+   if (!cache_enabled || key == null) return null;
+
+   Long len = cache_index.get(key);
+   if (len == null) {
+      ++miss_count;
+      return null;
+    }
+
+   File f = getCacheFile(key);
+   try {
+      String rslt = Files.readString(f.toPath(),StandardCharsets.UTF_8);
+      f.setLastModified(System.currentTimeMillis());
+      ++hit_count;
+      IvyLog.logD("LIMBA","Response cache hit " + key);
+      return rslt;
+    }
+   catch (IOException e) {
+      IvyLog.logI("LIMBA","Problem reading cached response " + f + ": " + e);
+      removeEntry(key);
+    }
+
+   ++miss_count;
+   return null;
+}
+
+
+synchronized void store(String key,String resp)
+{
+   if (!cache_enabled || key == null || resp == null) return;
+   if (resp.equals(NO_RESPONSE)) return;
+   if (resp.contains("<function=")) return;
+
+   byte [] data = resp.getBytes(StandardCharsets.UTF_8);
+   if (data.length > max_bytes) return;
+
+   File f = getCacheFile(key);
+   try {
+      Files.write(f.toPath(),data);
+    }
+   catch (IOException e) {
+      IvyLog.logI("LIMBA","Problem writing response cache " + f + ": " + e);
+      return;
+    }
+
+   Long old = cache_index.put(key,(long) data.length);
+   if (old != null) total_bytes -= old;
+   total_bytes += data.length;
+   ++store_count;
+
+   evict();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Eviction and index maintenance                                          */
+/*                                                                              */
+/********************************************************************************/
+
+private void evict()
+{
+   Iterator<Map.Entry<String,Long>> it = cache_index.entrySet().iterator();
+   while (it.hasNext() &&
+         (cache_index.size() > max_entries || total_bytes > max_bytes)) {
+      Map.Entry<String,Long> ent = it.next();
+      it.remove();
+      total_bytes -= ent.getValue();
+      getCacheFile(ent.getKey()).delete();
+      ++evict_count;
+    }
+}
+
+
+private void removeEntry(String key)
+{
+   Long len = cache_index.remove(key);
+   if (len != null) total_bytes -= len;
+   getCacheFile(key).delete();
+}
+
+
+private void loadIndex()
+{
+   File [] files = cache_directory.listFiles((File d,String n) -> n.endsWith(CACHE_SUFFIX));
+   if (files == null) return;
+
+   // oldest first so that the most recently used entries end up at the tail
+   List<File> order = new ArrayList<>(Arrays.asList(files));
+   order.sort(Comparator.comparingLong(File::lastModified));
+   for (File f : order) {
+      String nm = f.getName();
+      String key = nm.substring(0,nm.length() - CACHE_SUFFIX.length());
+      cache_index.put(key,f.length());
+      total_bytes += f.length();
+    }
+
+   evict();
+
+   IvyLog.logD("LIMBA","Response cache loaded " + cache_index.size() + " entries, " +
+         total_bytes + " bytes");
+}
+
+
+private File getCacheFile(String key)
+{
+   return new File(cache_directory,key + CACHE_SUFFIX);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+synchronized void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("CACHE");
+   xw.field("ENABLED",cache_enabled);
+   xw.field("HITS",hit_count);
+   xw.field("MISSES",miss_count);
+   xw.field("STORES",store_count);
+   xw.field("EVICTIONS",evict_count);
+   xw.field("ENTRIES",cache_index.size());
+   xw.field("BYTES",total_bytes);
+   xw.end("CACHE");
+}
+
+
+
+}       // end of class LimbaResponseCache
+
+
+
+
+/* end of LimbaResponseCache.java */
@@ -0,0 +1,231 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaRetryPolicy.java                                           */
+/*                                                                              */
+/*      Shared retry budget and circuit breakers for LLM requests               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dev.langchain4j.exception.HttpException;
+import dev.langchain4j.exception.InternalServerException;
+import dev.langchain4j.exception.UnresolvedModelServerException;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaRetryPolicy implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaMain       limba_main;
+private Map<LimbaModelType,LimbaCircuit> api_circuits;
+private int             model_retries;
+private AtomicLong      attempt_count;
+private AtomicLong      fail_fast_count;
+private AtomicLong      exhausted_count;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaRetryPolicy(LimbaMain lm)
+{
+   limba_main = lm;
+   api_circuits = new EnumMap<>(LimbaModelType.class);
+   model_retries = lm.getProperty("Limba.retry.model",0);
+   attempt_count = new AtomicLong(0);
+   fail_fast_count = new AtomicLong(0);
+   exhausted_count = new AtomicLong(0);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Retries done inside the langchain model itself.  These are kept low
+ *      since askOllama and its callers already retry under the budget.
+ **/
+
+int getModelRetries()                   { return model_retries; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Retry budget                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Note that the current request is about to make an LLM call.  Each
+ *      user action has a fixed budget of calls shared by all the retry
+ *      loops it goes through; once that is used up we stop.
+ **/
+
+void startAttempt() throws LimbaException
+{
+   attempt_count.incrementAndGet();
+
+   LimbaRequest rq = LimbaRequest.getCurrent();
+   if (rq == null || rq.useAttempt()) return;
+
+   exhausted_count.incrementAndGet();
+   throw new LimbaException("Retry budget exhausted for " + rq.getCommandName() +
+         " " + rq.getReplyId());
+}
+
+
+/**
+ *      Return true if the current request can afford another LLM call.
+ **/
+
+boolean canRetry()
+{
+   LimbaRequest rq = LimbaRequest.getCurrent();
+   if (rq == null) return true;
+
+   return rq.hasBudget();
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Circuit breakers                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Fail fast if every target for the given model type has an open
+ *      circuit rather than queueing behind a backend that is known bad.
+ **/
+
+void checkAvailable(LimbaModelType mt) throws LimbaException
+{
+   if (mt == null) return;
+
+   LimbaBackendPool pool = limba_main.getBackendPool();
+   if (mt == LimbaModelType.OLLAMA_MODEL && pool != null && !pool.isEmpty()) {
+      for (LimbaBackend lb : pool.getBackends()) {
+         if (lb.getCircuit().isAvailable()) return;
+       }
+    }
+   else if (getApiCircuit(mt).isAvailable()) return;
+
+   fail_fast_count.incrementAndGet();
+   throw new LimbaException("Circuit open for " + mt);
+}
+
+
+void startApiRequest(LimbaModelType mt) throws LimbaException
+{
+   if (mt == null || getApiCircuit(mt).startRequest()) return;
+
+   fail_fast_count.incrementAndGet();
+   throw new LimbaException("Circuit open for " + mt);
+}
+
+
+void endApiRequest(LimbaModelType mt,boolean ok)
+{
+   if (mt != null) getApiCircuit(mt).endRequest(ok);
+}
+
+
+/**
+ *      Determine if a failed request says something about the target itself:
+ *      it couldn't be reached, timed out, or had a server error.  Other
+ *      failures (tool errors, output we couldn't use, bad requests) don't
+ *      count against the target's circuit.
+ **/
+
+static boolean isBackendFailure(Throwable t)
+{
+   for (int i = 0; t != null && i < 10; ++i) {
+      if (t instanceof IOException) return true;
+      if (t instanceof java.util.concurrent.TimeoutException) return true;
+      if (t instanceof dev.langchain4j.exception.TimeoutException) return true;
+      if (t instanceof InternalServerException) return true;
+      if (t instanceof UnresolvedModelServerException) return true;
+      if (t instanceof HttpException) {
+         return ((HttpException) t).statusCode() >= 500;
+       }
+      if (t.getCause() == t) break;
+      t = t.getCause();
+    }
+
+   return false;
+}
+
+
+private synchronized LimbaCircuit getApiCircuit(LimbaModelType mt)
+{
+   return api_circuits.computeIfAbsent(mt,
+         (LimbaModelType t) -> LimbaCircuit.create(limba_main,t.toString()));
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("RETRY");
+   xw.field("ATTEMPTS",attempt_count.get());
+   xw.field("FAILFAST",fail_fast_count.get());
+   xw.field("EXHAUSTED",exhausted_count.get());
+   xw.field("MODELRETRIES",model_retries);
+   synchronized (this) {
+      for (LimbaCircuit lc : api_circuits.values()) {
+         lc.outputXml(xw);
+       }
+    }
+   xw.end("RETRY");
+}
+
+
+
+}       // end of class LimbaRetryPolicy
+
+
+
+
+/* end of LimbaRetryPolicy.java */
@@ -0,0 +1,360 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaScheduler.java                                             */
+/*                                                                              */
+/*      Priority scheduling and concurrency limits for LLM requests             */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaScheduler implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaBackendPool backend_pool;
+private int             backend_limit;
+private int             api_limit;
+private int             api_active;
+private Map<LimbaPriority,LinkedHashMap<String,Deque<Waiter>>> wait_queues;
+private Map<LimbaPriority,WaitStats> wait_stats;
+private Lock            sched_lock;
+private Condition       sched_changed;
+
+private static final long RECHECK_TIME = 5000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaScheduler(LimbaMain lm,LimbaBackendPool pool)
+{
+   backend_pool = pool;
+   backend_limit = lm.getProperty("Limba.sched.backend.limit",2);
+   api_limit = lm.getProperty("Limba.sched.api.limit",8);
+   api_active = 0;
+   wait_queues = new EnumMap<>(LimbaPriority.class);
+   wait_stats = new EnumMap<>(LimbaPriority.class);
+   // explicit locks: a virtual thread waiting on a monitor pins its carrier
+   sched_lock = new ReentrantLock();
+   sched_changed = sched_lock.newCondition();
+   for (LimbaPriority p : LimbaPriority.values()) {
+      wait_queues.put(p,new LinkedHashMap<>());
+      wait_stats.put(p,new WaitStats());
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Scheduling methods                                                      */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Wait for a slot for an LLM request made by the current thread.  For
+ *      ollama models this returns the backend to use; otherwise (or if no
+ *      backends are configured) it returns null after taking a slot from
+ *      the shared api limit.  Either way the caller must call release().
+ *      Requests are served by priority and then round-robin across client
+ *      request ids so that one busy client can't starve the others.
+ **/
+
+LimbaBackend acquire(boolean ollama) throws InterruptedException
+{
+   LimbaRequest rq = LimbaRequest.getCurrent();
+   LimbaPriority p = (rq == null ? LimbaPriority.NORMAL : rq.getPriority());
+   String rid = (rq == null ? Thread.currentThread().getName() : rq.getReplyId());
+   Waiter w = new Waiter(ollama && backend_pool != null && !backend_pool.isEmpty());
+
+   sched_lock.lock();
+   try {
+      Map<String,Deque<Waiter>> q = wait_queues.get(p);
+      q.computeIfAbsent(rid,(String k) -> new ArrayDeque<>()).add(w);
+      dispatch();
+      try {
+         while (!w.is_assigned) {
+            // backends can become healthy without a release, so recheck
+            sched_changed.await(RECHECK_TIME,TimeUnit.MILLISECONDS);
+            dispatch();
+          }
+       }
+      catch (InterruptedException e) {
+         if (!removeWaiter(p,rid,w)) release(w.for_backend,true);
+         throw e;
+       }
+    }
+   finally {
+      sched_lock.unlock();
+    }
+
+   long delay = System.currentTimeMillis() - w.start_time;
+   wait_stats.get(p).record(delay);
+   if (delay > 1000) {
+      IvyLog.logD("LIMBA","Request " + rid + " waited " + delay + " ms at " + p);
+    }
+
+   return w.for_backend;
+}
+
+
+/**
+ *      Take a backend for an embedding request without waiting.  Embedding
+ *      traffic isn't counted against the chat limit, so it never holds up
+ *      queued chat requests.
+ **/
+
+LimbaBackend acquireEmbed()
+{
+   if (backend_pool == null) return null;
+
+   return backend_pool.acquireEmbed();
+}
+
+
+/**
+ *      Release an embedding request.  Its result may have changed the
+ *      backend's circuit, so waiting requests are dispatched right away.
+ **/
+
+void releaseEmbed(LimbaBackend lb,boolean ok)
+{
+   sched_lock.lock();
+   try {
+      backend_pool.releaseEmbed(lb,ok);
+      dispatch();
+    }
+   finally {
+      sched_lock.unlock();
+    }
+}
+
+
+/**
+ *      Take a second backend for a hedged request without waiting.  Returns
+ *      null if no other backend has a free slot.
+ **/
+
+LimbaBackend acquireOther(LimbaBackend exclude)
+{
+   if (backend_pool == null) return null;
+
+   sched_lock.lock();
+   try {
+      return backend_pool.acquireOther(exclude,backend_limit);
+    }
+   finally {
+      sched_lock.unlock();
+    }
+}
+
+
+void release(LimbaBackend lb,boolean ok)
+{
+   sched_lock.lock();
+   try {
+      if (lb != null) backend_pool.release(lb,ok);
+      else if (api_active > 0) --api_active;
+      dispatch();
+    }
+   finally {
+      sched_lock.unlock();
+    }
+}
+
+
+private void dispatch()
+{
+   boolean backendfull = false;
+   boolean apifull = false;
+   boolean assigned = false;
+
+   for (LimbaPriority p : LimbaPriority.values()) {
+      LinkedHashMap<String,Deque<Waiter>> q = wait_queues.get(p);
+      boolean progress = true;
+      while (progress && !q.isEmpty()) {
+         progress = false;
+         List<String> rids = new ArrayList<>(q.keySet());
+         for (String rid : rids) {
+            Deque<Waiter> dq = q.get(rid);
+            Waiter w = dq.peek();
+            if (w.use_backend ? backendfull : apifull) continue;
+            if (!assign(w)) {
+               if (w.use_backend) backendfull = true;
+               else apifull = true;
+               continue;
+             }
+            dq.poll();
+            // move this client to the end of the round robin order
+            q.remove(rid);
+            if (!dq.isEmpty()) q.put(rid,dq);
+            progress = true;
+            assigned = true;
+          }
+       }
+      // lower priorities only get slots that higher ones can't use
+    }
+
+   if (assigned) sched_changed.signalAll();
+}
+
+
+private boolean assign(Waiter w)
+{
+   if (w.use_backend) {
+      LimbaBackend lb = backend_pool.tryAcquire(backend_limit);
+      if (lb == null) return false;
+      w.for_backend = lb;
+    }
+   else {
+      if (api_limit > 0 && api_active >= api_limit) return false;
+      ++api_active;
+    }
+
+   w.is_assigned = true;
+   return true;
+}
+
+
+private boolean removeWaiter(LimbaPriority p,String rid,Waiter w)
+{
+   if (w.is_assigned) return false;
+
+   Map<String,Deque<Waiter>> q = wait_queues.get(p);
+   Deque<Waiter> dq = q.get(rid);
+   if (dq != null) {
+      dq.remove(w);
+      if (dq.isEmpty()) q.remove(rid);
+    }
+
+   return true;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Waiting request                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class Waiter {
+
+   private boolean use_backend;
+   private long start_time;
+   private boolean is_assigned;
+   private LimbaBackend for_backend;
+
+   Waiter(boolean backend) {
+      use_backend = backend;
+      start_time = System.currentTimeMillis();
+      is_assigned = false;
+      for_backend = null;
+    }
+
+}       // end of inner class Waiter
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class WaitStats {
+
+   private long request_count;
+   private long total_wait;
+   private long max_wait;
+
+   synchronized void record(long ms) {
+      ++request_count;
+      total_wait += ms;
+      max_wait = Math.max(max_wait,ms);
+    }
+
+   synchronized void outputXml(IvyXmlWriter xw,LimbaPriority p,int waiting) {
+      xw.begin("QUEUE");
+      xw.field("PRIORITY",p);
+      xw.field("WAITING",waiting);
+      xw.field("REQUESTS",request_count);
+      xw.field("TOTALWAIT",total_wait);
+      xw.field("MAXWAIT",max_wait);
+      if (request_count > 0) {
+         xw.field("AVGWAIT",((double) total_wait) / request_count);
+       }
+      xw.end("QUEUE");
+    }
+
+}       // end of inner class WaitStats
+
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   sched_lock.lock();
+   try {
+      xw.begin("SCHEDULER");
+      xw.field("BACKENDLIMIT",backend_limit);
+      xw.field("APILIMIT",api_limit);
+      xw.field("APIACTIVE",api_active);
+      for (LimbaPriority p : LimbaPriority.values()) {
+         int ct = 0;
+         for (Deque<Waiter> dq : wait_queues.get(p).values()) ct += dq.size();
+         wait_stats.get(p).outputXml(xw,p,ct);
+       }
+      xw.end("SCHEDULER");
+    }
+   finally {
+      sched_lock.unlock();
+    }
+}
+
+
+
+}       // end of class LimbaScheduler
+
+
+
+
+/* end of LimbaScheduler.java */
@@ -34,6 +34,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.CompilationUnit;
@@ -60,6 +64,8 @@ private List<ASTNode>   helper_nodes;
 private boolean         use_constructor;
 private Set<String> import_set;
 private Boolean         tests_passed;
+private Lock            test_lock;
+private Condition       test_done;
 private List<JcompMessage> compilation_errors;
 private List<String>    fail_messages;
 private int             line_offset;
@@ -78,6 +84,8 @@ LimbaSolution(LimbaFinder lf,String name,String text0) throws LimbaException
 {
    limba_finder = lf;
    tests_passed = null;
+   test_lock = new ReentrantLock();
+   test_done = test_lock.newCondition();
    main_node = null;
    helper_nodes = new ArrayList<>();
    use_constructor = false;
@@ -204,22 +212,33 @@ String getText()
 
 LimbaFindType getFindType()             { return LimbaFindType.METHOD; }
 
-synchronized void setTestsPassed(boolean fg)
+void setTestsPassed(boolean fg)
 {
-   tests_passed = fg;
-   notifyAll();
+   test_lock.lock();
+   try {
+      tests_passed = fg;
+      test_done.signalAll();
+    }
+   finally {
+      test_lock.unlock();
+    }
 }
 
-synchronized boolean waitForTesting()
+boolean waitForTesting()
 {
-   while (tests_passed == null) {
-      try {
-         wait(3000);
+   test_lock.lock();
+   try {
+      while (tests_passed == null) {
+         try {
+            test_done.await(3000,TimeUnit.MILLISECONDS);
+          }
+         catch (InterruptedException e) { }
        }
-      catch (InterruptedException e) { }
+      return tests_passed;
+    }
+   finally {
+      test_lock.unlock();
     }
-
-   return tests_passed;
 }
 
 
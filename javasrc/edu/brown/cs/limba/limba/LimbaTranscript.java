@@ -0,0 +1,450 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaTranscript.java                                            */
+/*                                                                              */
+/*      Background writer for the html transcript                               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import edu.brown.cs.ivy.file.IvyFormat;
+import edu.brown.cs.ivy.file.IvyLog;
+
+class LimbaTranscript implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private enum EntryType { START, RAW, REQUEST, RESPONSE, AGENT, MESSAGE, END, CLOSE }
+
+private BlockingQueue<Entry> entry_queue;
+private volatile boolean is_active;
+private long            max_size;
+private int             keep_count;
+private long            drop_count;
+private WriterThread    writer_thread;
+
+private static final int BATCH_SIZE = 256;
+private static final int SECTION_SIZE = 200;
+private static final long SECTION_TIME = 30000;
+private static final long CLOSE_TIME = 5000;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaTranscript(LimbaMain lm)
+{
+   entry_queue = new ArrayBlockingQueue<>(lm.getProperty("Limba.transcript.queue",1000));
+   is_active = false;
+   max_size = lm.getProperty("Limba.transcript.maxsize",10) * 1024L * 1024L;
+   keep_count = lm.getProperty("Limba.transcript.keep",5);
+   drop_count = 0;
+   writer_thread = null;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+boolean isActive()                      { return is_active; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Entry methods                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Start (or switch) the transcript file.  Output already queued goes to
+ *      the previous file.
+ **/
+
+synchronized void start(String file,boolean append)
+{
+   if (writer_thread == null) {
+      writer_thread = new WriterThread();
+      writer_thread.start();
+    }
+   is_active = true;
+   enqueue(new Entry(EntryType.START,file,append));
+}
+
+
+/**
+ *      Write out everything queued, including the sections of requests that
+ *      haven't finished, and close the file.  Called on exit since the
+ *      writer is a daemon thread.
+ **/
+
+void close()
+{
+   WriterThread wt;
+   synchronized (this) {
+      if (!is_active) return;
+      is_active = false;
+      wt = writer_thread;
+    }
+   if (wt == null) return;
+
+   Entry e = new Entry(EntryType.CLOSE,null,false);
+   try {
+      if (entry_queue.offer(e,CLOSE_TIME,TimeUnit.MILLISECONDS)) {
+         e.close_done.await(CLOSE_TIME,TimeUnit.MILLISECONDS);
+       }
+    }
+   catch (InterruptedException ex) { }
+}
+
+
+void addRaw(String text)                { add(EntryType.RAW,text); }
+
+void addRequest(String text)            { add(EntryType.REQUEST,text); }
+
+void addResponse(String text)           { add(EntryType.RESPONSE,text); }
+
+void addAgent(String text)              { add(EntryType.AGENT,text); }
+
+void addMessage(String text)            { add(EntryType.MESSAGE,text); }
+
+
+/**
+ *      Note that the current request is done so its section can be written.
+ **/
+
+void endRequest()
+{
+   if (!is_active || LimbaRequest.getCurrent() == null) return;
+
+   add(EntryType.END,null);
+}
+
+
+private void add(EntryType typ,String text)
+{
+   if (!is_active) return;
+
+   enqueue(new Entry(typ,text,false));
+}
+
+
+private void enqueue(Entry e)
+{
+   // never hold up the request thread; drop the entry instead
+   if (entry_queue.offer(e)) return;
+
+   synchronized (this) {
+      ++drop_count;
+      if (drop_count == 1 || drop_count % 100 == 0) {
+         IvyLog.logI("LIMBA","Transcript queue full; dropped " + drop_count + " entries");
+       }
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Transcript entry                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class Entry {
+
+   private EntryType entry_type;
+   private String entry_text;
+   private boolean do_append;
+   private String reply_id;
+   private CountDownLatch close_done;
+
+   Entry(EntryType typ,String text,boolean append) {
+      entry_type = typ;
+      entry_text = text;
+      do_append = append;
+      close_done = (typ == EntryType.CLOSE ? new CountDownLatch(1) : null);
+      LimbaRequest rq = LimbaRequest.getCurrent();
+      reply_id = (rq == null ? null : rq.getReplyId());
+    }
+
+   String format() {
+      String text = entry_text;
+      switch (entry_type) {
+         case RAW :
+            return text;
+         case REQUEST :
+            return "<div align='right'><p style='text-indent: 50px;'><font color='blue'>" +
+               IvyFormat.formatText(text) + "</font></p></div>";
+         case RESPONSE :
+            return "<div align='left'><p><font color='black'>" +
+               IvyFormat.formatText(text) + "</font></p></div>\n<br><hl><br>";
+         case AGENT :
+            return "<br><div align='left'><p><font color='darkmagenta'>AGENT: " +
+               IvyFormat.formatText(text) + "</font></p></div>";
+         case MESSAGE :
+            return "<br><div align='center'><p><font color='darkgreen'>" +
+               IvyFormat.formatText(text) + "</font></p></div><br>";
+         default :
+            return null;
+       }
+    }
+
+}       // end of inner class Entry
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Writer thread                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Entries for a request are held until the request finishes (or gets
+ *      large or old) and then written together, so concurrent commands
+ *      don't interleave.  Formatting is also done here rather than on the
+ *      request thread.
+ **/
+
+private final class WriterThread extends Thread {
+
+   private File output_file;
+   private Writer output_writer;
+   private long output_size;
+   private Map<String,Section> open_sections;
+
+   WriterThread() {
+      super("LimbaTranscriptWriter");
+      setDaemon(true);
+      output_file = null;
+      output_writer = null;
+      output_size = 0;
+      open_sections = new LinkedHashMap<>();
+    }
+
+   @Override public void run() {
+      List<Entry> batch = new ArrayList<>();
+      for ( ; ; ) {
+         try {
+            Entry e = entry_queue.poll(SECTION_TIME,TimeUnit.MILLISECONDS);
+            if (e != null) {
+               batch.add(e);
+               entry_queue.drainTo(batch,BATCH_SIZE);
+             }
+          }
+         catch (InterruptedException ex) { }
+         for (Entry e : batch) {
+            process(e);
+          }
+         batch.clear();
+         flushOldSections();
+         flush();
+       }
+    }
+
+   private void process(Entry e) {
+      if (e.entry_type == EntryType.START) {
+         flushAllSections();
+         open(e.entry_text,e.do_append);
+         return;
+       }
+      if (e.entry_type == EntryType.CLOSE) {
+         flushAllSections();
+         close();
+         e.close_done.countDown();
+         return;
+       }
+      if (e.reply_id == null) {
+         write(e.format());
+         return;
+       }
+      Section s = open_sections.get(e.reply_id);
+      if (e.entry_type == EntryType.END) {
+         if (s != null) writeSection(open_sections.remove(e.reply_id));
+         return;
+       }
+      if (s == null) {
+         s = new Section(e.reply_id);
+         open_sections.put(e.reply_id,s);
+       }
+      s.section_text.add(e.format());
+      if (s.section_text.size() >= SECTION_SIZE) {
+         writeSection(open_sections.remove(e.reply_id));
+       }
+    }
+
+   private void flushOldSections() {
+      long now = System.currentTimeMillis();
+      List<Section> old = new ArrayList<>();
+      for (Section s : open_sections.values()) {
+         if (now - s.start_time > SECTION_TIME) old.add(s);
+       }
+      for (Section s : old) {
+         open_sections.remove(s.reply_id);
+         writeSection(s);
+       }
+    }
+
+   private void flushAllSections() {
+      for (Section s : open_sections.values()) writeSection(s);
+      open_sections.clear();
+    }
+
+   private void writeSection(Section s) {
+      if (s.section_text.isEmpty()) return;
+      write("<div class='rid' title='" + s.reply_id + "'>");
+      for (String t : s.section_text) write(t);
+      write("</div>");
+    }
+
+   private void write(String text) {
+      if (text == null || output_writer == null) return;
+      try {
+         output_writer.write(text);
+         output_writer.write("\n");
+         output_size += text.length() + 1;
+       }
+      catch (IOException ex) {
+         IvyLog.logE("LIMBA","Problem writing transcript",ex);
+       }
+      if (max_size > 0 && output_size > max_size) rotate();
+    }
+
+   private void flush() {
+      if (output_writer == null) return;
+      try {
+         output_writer.flush();
+       }
+      catch (IOException ex) { }
+    }
+
+   private void open(String name,boolean append) {
+      close();
+      IvyLog.logD("LIMBA","Start transcript " + name);
+      output_file = new File(name);
+      boolean fg = output_file.exists() && append;
+      try {
+         output_writer = new BufferedWriter(new FileWriter(output_file,append));
+         output_size = (fg ? output_file.length() : 0);
+         if (!fg) write("<html>");
+       }
+      catch (IOException ex) {
+         IvyLog.logE("LIMBA","Can't open transcript file " + output_file);
+         output_writer = null;
+       }
+    }
+
+   private void close() {
+      if (output_writer == null) return;
+      try {
+         output_writer.close();
+       }
+      catch (IOException ex) { }
+      output_writer = null;
+    }
+
+   /**
+    *    Compress the current file to name.1.gz, shifting older ones up and
+    *    dropping any beyond the keep count, then start a new file.
+    **/
+
+   private void rotate() {
+      if (output_file == null) return;
+      close();
+      String base = output_file.getPath();
+      File last = new File(base + "." + keep_count + ".gz");
+      last.delete();
+      for (int i = keep_count-1; i >= 1; --i) {
+         File f = new File(base + "." + i + ".gz");
+         if (f.exists()) f.renameTo(new File(base + "." + (i+1) + ".gz"));
+       }
+      if (keep_count > 0) {
+         compress(output_file,new File(base + ".1.gz"));
+       }
+      output_file.delete();
+      open(base,false);
+    }
+
+   private void compress(File src,File dst) {
+      try (InputStream ins = new FileInputStream(src);
+            OutputStream ots = new GZIPOutputStream(new FileOutputStream(dst))) {
+         ins.transferTo(ots);
+       }
+      catch (IOException ex) {
+         IvyLog.logE("LIMBA","Problem compressing transcript",ex);
+       }
+    }
+
+}       // end of inner class WriterThread
+
+
+private static final class Section {
+
+   private String reply_id;
+   private long start_time;
+   private List<String> section_text;
+
+   Section(String rid) {
+      reply_id = rid;
+      start_time = System.currentTimeMillis();
+      section_text = new ArrayList<>();
+    }
+
+}       // end of inner class Section
+
+
+
+}       // end of class LimbaTranscript
+
+
+
+
+/* end of LimbaTranscript.java */
@@ -0,0 +1,365 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaVectorStore.java                                           */
+/*                                                                              */
+/*      Pluggable vector stores for the RAG index                               */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.chroma.ChromaApiVersion;
+import dev.langchain4j.store.embedding.chroma.ChromaEmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+import dev.langchain4j.store.embedding.filter.comparison.IsIn;
+import dev.langchain4j.store.embedding.filter.comparison.IsNotEqualTo;
+import dev.langchain4j.store.embedding.filter.comparison.IsNotIn;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+/**
+ *      A place to keep the embedded segments of a project.  Each kind of
+ *      store (see LimbaStoreType) has its own subclass; LimbaRag only deals
+ *      with this interface.  Segments are identified by the "id" (file) and
+ *      "revision" metadata set by the ingester so that files can be
+ *      replaced or removed without touching the rest of the store.
+ **/
+
+abstract class LimbaVectorStore implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private EmbeddingStore<TextSegment> embed_store;
+private int             delete_batch;
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Creation methods                                                        */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Create a store of the given type.  Returns null if the store can't
+ *      be created (e.g. the server isn't running).
+ **/
+
+static LimbaVectorStore createStore(LimbaStoreType typ,LimbaMain lm,File dir,
+      String ws,String url,boolean log)
+{
+   try {
+      switch (typ) {
+         case CHROMA :
+            if (url == null || url.isEmpty() || url.startsWith("*")) return null;
+            return new ChromaStore(lm,ws,url,log);
+         case LOCAL :
+            return new LocalStore(lm,dir,ws);
+         case MEMORY :
+            return new MemoryStore();
+       }
+    }
+   catch (Throwable t) {
+      IvyLog.logE("LIMBA","Can't create " + typ + " store",t);
+    }
+
+   return null;
+}
+
+
+protected LimbaVectorStore(EmbeddingStore<TextSegment> store,int delbatch)
+{
+   embed_store = store;
+   delete_batch = Math.max(1,delbatch);
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Access methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+EmbeddingStore<TextSegment> getStore()          { return embed_store; }
+
+abstract LimbaStoreType getStoreType();
+
+/**
+ *      Return true if the contents persist across runs.
+ **/
+
+abstract boolean isPersistent();
+
+/**
+ *      Return true if the store is known to hold nothing when it is opened.
+ *      Stores that can't tell cheaply return false.
+ **/
+
+abstract boolean isEmpty();
+
+/**
+ *      Return the number of segments to send to the store at once; 0 means
+ *      whatever the embedder produces.
+ **/
+
+int getBatchSize()                              { return 0; }
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Update methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Called when there is no record of what the store holds.  Stores that
+ *      are cheap to clear do so; others drop the segments of files that are
+ *      no longer in the project and rely on per-file replacement for the rest.
+ **/
+
+void resetIndex(Collection<String> keep)
+{
+   if (keep.isEmpty()) embed_store.removeAll();
+   else embed_store.removeAll(new IsNotIn("id",keep));
+}
+
+
+/**
+ *      Called before new segments of the given files are added.  Stores
+ *      whose filters match segments without a revision need do nothing:
+ *      replaceFiles() removes the old segments once the new ones are in.
+ **/
+
+void beginReplace(Collection<String> ids)       { }
+
+
+/**
+ *      Remove all segments of the given files.
+ **/
+
+void removeFiles(Collection<String> ids)
+{
+   for (List<String> blk : split(ids)) {
+      embed_store.removeAll(new IsIn("id",blk));
+    }
+}
+
+
+/**
+ *      Remove the segments of the given files that weren't added by the
+ *      given revision, i.e. the ones the new revision replaces.
+ **/
+
+void replaceFiles(Collection<String> ids,String rev)
+{
+   for (List<String> blk : split(ids)) {
+      Filter f = new IsIn("id",blk).and(new IsNotEqualTo("revision",rev));
+      embed_store.removeAll(f);
+    }
+}
+
+
+void close()                                    { }
+
+
+private List<List<String>> split(Collection<String> ids)
+{
+   List<List<String>> rslt = new ArrayList<>();
+   List<String> blk = null;
+   for (String id : ids) {
+      if (blk == null || blk.size() >= delete_batch) {
+         blk = new ArrayList<>();
+         rslt.add(blk);
+       }
+      blk.add(id);
+    }
+   return rslt;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Output methods                                                          */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("STORE");
+   xw.field("TYPE",getStoreType());
+   xw.end("STORE");
+}
+
+
+void outputStatus(IvyXmlWriter xw)
+{
+   xw.field("STORE",getStoreType());
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Chroma server                                                           */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class ChromaStore extends LimbaVectorStore {
+
+   private String chroma_url;
+   private int batch_size;
+
+   ChromaStore(LimbaMain lm,String ws,String url,boolean log) {
+      super(ChromaEmbeddingStore.builder()
+            .apiVersion(ChromaApiVersion.V2)
+            .collectionName("LIMBA_" + ws)
+            .baseUrl(url)
+            .tenantName("LIMBA")
+            .logRequests(log)
+            .logResponses(log)
+            .build(),lm.getProperty("Limba.rag.chroma.batch",256));
+      chroma_url = url;
+      batch_size = lm.getProperty("Limba.rag.chroma.batch",256);
+      IvyLog.logD("LIMBA","Using chroma store at " + url);
+    }
+
+   @Override LimbaStoreType getStoreType()      { return LimbaStoreType.CHROMA; }
+   @Override boolean isPersistent()             { return true; }
+   @Override boolean isEmpty()                  { return false; }
+   @Override int getBatchSize()                 { return batch_size; }
+
+   // chroma's $ne doesn't match a missing key, so segments stored without a
+   // revision would survive replaceFiles(); remove the old segments first
+   @Override void beginReplace(Collection<String> ids) {
+      removeFiles(ids);
+    }
+
+   @Override void outputStatistics(IvyXmlWriter xw) {
+      xw.begin("STORE");
+      xw.field("TYPE",getStoreType());
+      xw.field("URL",chroma_url);
+      xw.field("BATCH",batch_size);
+      xw.end("STORE");
+    }
+
+}       // end of inner class ChromaStore
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Embedded local store                                                    */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class LocalStore extends LimbaVectorStore {
+
+   private LimbaLocalStore local_store;
+
+   LocalStore(LimbaMain lm,File dir,String ws) throws IOException {
+      this(lm,createLocal(lm,dir,ws));
+    }
+
+   private LocalStore(LimbaMain lm,LimbaLocalStore store) {
+      super(store,Integer.MAX_VALUE);
+      local_store = store;
+      local_store.enableIndex(lm.getProperty("Limba.rag.hnsw.links",16),
+            lm.getProperty("Limba.rag.hnsw.construction",100),
+            lm.getProperty("Limba.rag.hnsw.ef",64),
+            lm.getProperty("Limba.rag.hnsw.min",5000));
+      IvyLog.logD("LIMBA","Using local store with " + local_store.size() + " segments");
+    }
+
+   private static LimbaLocalStore createLocal(LimbaMain lm,File dir,String ws)
+         throws IOException {
+      String quant = lm.getProperty("Limba.rag.quantize","INT8");
+      LimbaLocalStore store = new LimbaLocalStore(dir,ws,quant.equalsIgnoreCase("INT8"),
+            lm.getProperty("Limba.rag.rerank",true));
+      store.setRerankFactor(lm.getProperty("Limba.rag.rerank.factor",4));
+      return store;
+    }
+
+   @Override LimbaStoreType getStoreType()      { return LimbaStoreType.LOCAL; }
+   @Override boolean isPersistent()             { return true; }
+   @Override boolean isEmpty()                  { return local_store.isEmpty(); }
+
+   @Override void resetIndex(Collection<String> keep) {
+      local_store.removeAll();
+    }
+
+   @Override void close() {
+      local_store.close();
+    }
+
+   @Override void outputStatistics(IvyXmlWriter xw) {
+      local_store.outputStatistics(xw);
+    }
+
+   @Override void outputStatus(IvyXmlWriter xw) {
+      super.outputStatus(xw);
+      xw.field("STORED",local_store.size());
+      xw.field("ANN",local_store.isIndexReady());
+    }
+
+}       // end of inner class LocalStore
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      In-memory store (nothing kept across runs)                              */
+/*                                                                              */
+/********************************************************************************/
+
+private static final class MemoryStore extends LimbaVectorStore {
+
+   MemoryStore() {
+      super(new InMemoryEmbeddingStore<>(),Integer.MAX_VALUE);
+    }
+
+   @Override LimbaStoreType getStoreType()      { return LimbaStoreType.MEMORY; }
+   @Override boolean isPersistent()             { return false; }
+   @Override boolean isEmpty()                  { return true; }
+
+}       // end of inner class MemoryStore
+
+
+
+}       // end of class LimbaVectorStore
+
+
+
+
+/* end of LimbaVectorStore.java */
@@ -0,0 +1,414 @@
+/********************************************************************************/
+/*                                                                              */
+/*              LimbaWarmer.java                                                */
+/*                                                                              */
+/*      Preload ollama models and keep them resident                            */
+/*                                                                              */
+/********************************************************************************/
+/*      Copyright 2011 Brown University -- Steven P. Reiss                    */
+/*********************************************************************************
+ *  Copyright 2011, Brown University, Providence, RI.                            *
+ *                                                                               *
+ *                        All Rights Reserved                                    *
+ *                                                                               *
+ * This program and the accompanying materials are made available under the      *
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution, *
+ * and is available at                                                           *
+ *      http://www.eclipse.org/legal/epl-v10.html                                *
+ *                                                                               *
+ ********************************************************************************/
+
+
+
+package edu.brown.cs.limba.limba;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+import edu.brown.cs.ivy.exec.IvyExec;
+import edu.brown.cs.ivy.file.IvyLog;
+import edu.brown.cs.ivy.xml.IvyXmlWriter;
+
+class LimbaWarmer implements LimbaConstants
+{
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Private Storage                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+private LimbaMain       limba_main;
+private LimbaBackendPool backend_pool;
+private String          keep_alive;
+private long            refresh_interval;
+private Set<String>     chat_models;
+private Set<String>     embed_models;
+private Map<String,Long> warm_times;
+private Map<String,CompletableFuture<Boolean>> pulled_models;
+private Set<String>     present_models;
+private Map<String,Integer> ready_models;
+private long            start_time;
+private volatile long   first_response;
+private volatile long   warm_done;
+private KeepAliveThread keep_alive_thread;
+
+private static final HttpClient warm_client = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Constructors                                                            */
+/*                                                                              */
+/********************************************************************************/
+
+LimbaWarmer(LimbaMain lm,LimbaBackendPool pool,long start)
+{
+   limba_main = lm;
+   backend_pool = pool;
+   keep_alive = lm.getProperty("Limba.warm.keepalive","30m");
+   refresh_interval = lm.getProperty("Limba.warm.refresh",20) * 60000L;
+   chat_models = ConcurrentHashMap.newKeySet();
+   embed_models = ConcurrentHashMap.newKeySet();
+   warm_times = new ConcurrentHashMap<>();
+   pulled_models = new ConcurrentHashMap<>();
+   present_models = ConcurrentHashMap.newKeySet();
+   ready_models = new ConcurrentHashMap<>();
+   start_time = start;
+   first_response = 0;
+   warm_done = 0;
+   keep_alive_thread = null;
+
+   addModels(chat_models,lm.getProperty("Limba.warm.models",null));
+   addModels(embed_models,lm.getProperty("Limba.warm.embed",null));
+}
+
+
+private static void addModels(Set<String> rslt,String spec)
+{
+   if (spec == null) return;
+
+   StringTokenizer tok = new StringTokenizer(spec,", ");
+   while (tok.hasMoreTokens()) {
+      rslt.add(tok.nextToken());
+    }
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Warm up methods                                                         */
+/*                                                                              */
+/********************************************************************************/
+
+/**
+ *      Start loading the configured models (plus the given default chat
+ *      model) on every healthy backend in parallel.  This does not wait;
+ *      a request that arrives first just waits on ollama's own load.
+ **/
+
+void start(String model)
+{
+   if (model != null) chat_models.add(model);
+
+   List<CompletableFuture<Boolean>> waits = warmAll();
+   CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[0]))
+      .whenComplete((Void v,Throwable t) -> {
+         warm_done = System.currentTimeMillis();
+         IvyLog.logI("LIMBA","Model warm up finished in " +
+               (warm_done - start_time) + " ms");
+       });
+
+   if (keep_alive_thread == null && refresh_interval > 0) {
+      keep_alive_thread = new KeepAliveThread();
+      keep_alive_thread.start();
+    }
+}
+
+
+/**
+ *      Note that a model is about to be used.  A model that isn't on a
+ *      backend yet has to be fetched before the request can succeed, so
+ *      wait for that.  If it hasn't been warmed yet start loading it on all
+ *      backends without blocking the caller.  Once the model is known to be
+ *      on all the healthy backends it isn't checked again until the set of
+ *      healthy backends grows.
+ **/
+
+void useModel(String model)
+{
+   if (model == null) return;
+
+   List<LimbaBackend> healthy = backend_pool.getHealthyBackends();
+   Integer ready = ready_models.get(model);
+   if (ready == null || ready < healthy.size()) {
+      boolean all = true;
+      for (LimbaBackend lb : healthy) {
+         String key = lb.getUrl() + "/" + model;
+         if (present_models.contains(key)) continue;
+         Boolean has = hasModel(lb,model);
+         if (has == null) all = false;
+         else if (has || pullModel(lb,model)) present_models.add(key);
+         else all = false;
+       }
+      if (all) ready_models.put(model,healthy.size());
+    }
+
+   if (chat_models.add(model)) {
+      for (LimbaBackend lb : backend_pool.getHealthyBackends()) {
+         warm(lb,model,false);
+       }
+    }
+}
+
+
+private List<CompletableFuture<Boolean>> warmAll()
+{
+   List<CompletableFuture<Boolean>> rslt = new ArrayList<>();
+
+   for (LimbaBackend lb : backend_pool.getHealthyBackends()) {
+      for (String m : chat_models) rslt.add(warm(lb,m,false));
+      for (String m : embed_models) rslt.add(warm(lb,m,true));
+    }
+
+   return rslt;
+}
+
+
+private CompletableFuture<Boolean> warm(LimbaBackend lb,String model,boolean embed)
+{
+   return limba_main.getExecutor().submit("LimbaWarm_" + model,() ->
+      loadModel(lb,model,embed));
+}
+
+
+/**
+ *      Ask the backend to load the model without generating anything.  The
+ *      keep_alive setting tells ollama how long to keep it in memory.
+ **/
+
+private boolean loadModel(LimbaBackend lb,String model,boolean embed)
+{
+   long start = System.currentTimeMillis();
+
+   JSONObject body = new JSONObject();
+   body.put("model",model);
+   body.put("keep_alive",keep_alive);
+   if (embed) body.put("input","");
+
+   String api = (embed ? "/api/embed" : "/api/generate");
+   HttpRequest rqst = HttpRequest.newBuilder()
+         .uri(URI.create(lb.getUrl() + api))
+         .timeout(Duration.ofMinutes(10))
+         .header("Content-Type","application/json")
+         .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+         .build();
+
+   try {
+      HttpResponse<String> resp = warm_client.send(rqst,
+            HttpResponse.BodyHandlers.ofString());
+      if (resp.statusCode() == 404 && !embed) {
+         return pullModel(lb,model);
+       }
+      if (resp.statusCode() != 200) {
+         IvyLog.logI("LIMBA","Warm up of " + model + " on " + lb + " failed: " +
+               resp.statusCode() + " " + resp.body());
+         return false;
+       }
+    }
+   catch (InterruptedException e) {
+      return false;
+    }
+   catch (IOException e) {
+      IvyLog.logI("LIMBA","Warm up of " + model + " on " + lb + " failed: " + e);
+      return false;
+    }
+
+   long time = System.currentTimeMillis() - start;
+   present_models.add(lb.getUrl() + "/" + model);
+   warm_times.putIfAbsent(lb.getUrl() + "/" + model,time);
+   IvyLog.logD("LIMBA","Warmed " + model + " on " + lb + " in " + time + " ms");
+
+   return true;
+}
+
+
+/**
+ *      Check whether the backend has the model without loading it.  If we
+ *      can't tell, return null; the caller assumes it does rather than
+ *      holding up the request, but doesn't remember that.
+ **/
+
+private Boolean hasModel(LimbaBackend lb,String model)
+{
+   JSONObject body = new JSONObject();
+   body.put("model",model);
+
+   HttpRequest rqst = HttpRequest.newBuilder()
+         .uri(URI.create(lb.getUrl() + "/api/show"))
+         .timeout(Duration.ofSeconds(30))
+         .header("Content-Type","application/json")
+         .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+         .build();
+
+   try {
+      HttpResponse<String> resp = warm_client.send(rqst,
+            HttpResponse.BodyHandlers.ofString());
+      if (resp.statusCode() == 404) return false;
+      if (resp.statusCode() == 200) return true;
+      return null;
+    }
+   catch (InterruptedException e) {
+      return null;
+    }
+   catch (IOException e) {
+      return null;
+    }
+}
+
+
+/**
+ *      The model isn't on the server.  Fall back on limballama.csh which
+ *      uses ollama run to fetch it (possibly via ssh).  Each model is only
+ *      fetched once per backend at a time; other callers wait for that fetch.
+ **/
+
+private boolean pullModel(LimbaBackend lb,String model)
+{
+   CompletableFuture<Boolean> fut = new CompletableFuture<>();
+   String key = lb.getUrl() + "/" + model;
+   CompletableFuture<Boolean> prev = pulled_models.putIfAbsent(key,fut);
+   if (prev != null) return prev.join();
+
+   boolean ok = false;
+   try {
+      ok = runPull(lb,model);
+    }
+   finally {
+      // a failed fetch can be tried again by a later request
+      if (!ok) pulled_models.remove(key,fut);
+      fut.complete(ok);
+    }
+
+   return ok;
+}
+
+
+private boolean runPull(LimbaBackend lb,String model)
+{
+   try {
+      String cmd = "limballama.csh " + model;
+      if (lb.getUseHost() != null) {
+         cmd += " " + lb.getUseHost() + " " + lb.getHost();
+       }
+      else {
+         cmd += " " + lb.getUrl() + "/";
+       }
+      IvyExec exec = new IvyExec(cmd,IvyExec.IGNORE_OUTPUT);
+      IvyLog.logD("LIMBA","Running setup commands: " + exec.getCommand());
+      exec.waitFor();
+      return true;
+    }
+   catch (IOException e) {
+      IvyLog.logI("LIMBA","Problem prepping ollama: " + e);
+    }
+
+   return false;
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Time to first response                                                  */
+/*                                                                              */
+/********************************************************************************/
+
+void noteResponse()
+{
+   if (first_response != 0) return;
+
+   synchronized (this) {
+      if (first_response != 0) return;
+      first_response = System.currentTimeMillis();
+    }
+   IvyLog.logI("LIMBA","Time to first response " + (first_response - start_time) +
+         " ms");
+}
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Keep alive thread                                                       */
+/*                                                                              */
+/********************************************************************************/
+
+private final class KeepAliveThread extends Thread {
+
+   KeepAliveThread() {
+      super("LimbaKeepAlive");
+      setDaemon(true);
+    }
+
+   @Override public void run() {
+      for ( ; ; ) {
+         try {
+            Thread.sleep(refresh_interval);
+          }
+         catch (InterruptedException e) { }
+         warmAll();
+       }
+    }
+
+}       // end of inner class KeepAliveThread
+
+
+
+/********************************************************************************/
+/*                                                                              */
+/*      Statistics                                                              */
+/*                                                                              */
+/********************************************************************************/
+
+void outputStatistics(IvyXmlWriter xw)
+{
+   xw.begin("WARMUP");
+   xw.field("KEEPALIVE",keep_alive);
+   if (warm_done != 0) xw.field("WARMTIME",warm_done - start_time);
+   if (first_response != 0) xw.field("TTFR",first_response - start_time);
+   for (Map.Entry<String,Long> ent : warm_times.entrySet()) {
+      xw.begin("MODEL");
+      xw.field("NAME",ent.getKey());
+      xw.field("LOADTIME",ent.getValue());
+      xw.end("MODEL");
+    }
+   xw.end("WARMUP");
+}
+
+
+
+}       // end of class LimbaWarmer
+
+
+
+
+/* end of LimbaWarmer.java */